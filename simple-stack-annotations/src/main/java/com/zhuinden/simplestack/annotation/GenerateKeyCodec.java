@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a key class for the simple-stack-compiler annotation processor.
+ *
+ * For each annotated key, a {@code KeyCodec} is generated that writes the values of the key without reflection,
+ * and every key of the compilation is registered in the generated {@code KeyCodecRegistry}.
+ *
+ * The key is created either by its non-private static {@code create()} factory method, or by its non-private constructor.
+ * Each parameter must have a non-private accessor method or field of the same name (or a {@code get}/{@code is} getter),
+ * and must be an {@code int}, {@code long}, {@code boolean}, {@code double}, {@code String}, or another key annotated with {@link GenerateKeyCodec}.
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface GenerateKeyCodec {
+    /**
+     * The type id of the key, which is persisted with the key. It must be unique and non-negative, and must not change between versions of the app.
+     *
+     * @return the type id
+     */
+    int id();
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the navigation operations of the {@link Backstack} at different history sizes.
+ *
+ * Every benchmark leaves the history as it found it, so the history size stays constant across invocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BackstackBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    int historySize;
+
+    Backstack backstack;
+    List<Object> history;
+    List<Object> otherHistory;
+    Object newKey;
+    Object firstKey;
+
+    @Setup
+    public void setup() {
+        history = BenchmarkKey.history("a", historySize);
+        otherHistory = BenchmarkKey.history("b", historySize);
+        newKey = new BenchmarkKey("c", 0);
+        firstKey = history.get(0);
+        backstack = new Backstack(history);
+        backstack.setStateChanger(new SynchronousStateChanger(), Backstack.INITIALIZE);
+    }
+
+    @Benchmark
+    public List<Object> goToNewKeyThenGoBack() {
+        backstack.goTo(newKey);
+        backstack.goBack();
+        return backstack.getHistory();
+    }
+
+    @Benchmark
+    public List<Object> goToExistingKeyThenSetHistory() {
+        backstack.goTo(firstKey);
+        backstack.setHistory(history, StateChange.FORWARD);
+        return backstack.getHistory();
+    }
+
+    @Benchmark
+    public List<Object> setHistory() {
+        backstack.setHistory(otherHistory, StateChange.REPLACE);
+        backstack.setHistory(history, StateChange.REPLACE);
+        return backstack.getHistory();
+    }
+}
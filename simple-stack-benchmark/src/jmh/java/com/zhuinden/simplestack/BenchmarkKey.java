@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A plain key used by the benchmarks.
+ */
+final class BenchmarkKey {
+    private final String name;
+    private final int index;
+
+    BenchmarkKey(String name, int index) {
+        this.name = name;
+        this.index = index;
+    }
+
+    static List<Object> history(String name, int size) {
+        List<Object> history = new ArrayList<>(size);
+        for(int i = 0; i < size; i++) {
+            history.add(new BenchmarkKey(name, i));
+        }
+        return history;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) {
+            return true;
+        }
+        if(o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        BenchmarkKey that = (BenchmarkKey) o;
+        return index == that.index && name.equals(that.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + index;
+    }
+
+    @Override
+    public String toString() {
+        return name + index;
+    }
+}
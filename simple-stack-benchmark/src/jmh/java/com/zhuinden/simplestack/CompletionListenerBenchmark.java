@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of notifying the {@link Backstack.CompletionListener}s of a completed state change.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompletionListenerBenchmark {
+    private static class CountingCompletionListener
+            implements Backstack.CompletionListener {
+        int count;
+
+        @Override
+        public void stateChangeCompleted(StateChange stateChange) {
+            count++;
+        }
+    }
+
+    @Param({"0", "1", "10", "100"})
+    int listenerCount;
+
+    Backstack backstack;
+    Object newKey;
+    CountingCompletionListener[] listeners;
+
+    @Setup
+    public void setup() {
+        backstack = new Backstack(BenchmarkKey.history("a", 10));
+        newKey = new BenchmarkKey("b", 0);
+        listeners = new CountingCompletionListener[listenerCount];
+        for(int i = 0; i < listenerCount; i++) {
+            listeners[i] = new CountingCompletionListener();
+            backstack.addCompletionListener(listeners[i]);
+        }
+        backstack.setStateChanger(new SynchronousStateChanger(), Backstack.INITIALIZE);
+    }
+
+    @Benchmark
+    public int goToNewKeyThenGoBack() {
+        backstack.goTo(newKey);
+        backstack.goBack();
+        return listenerCount == 0 ? 0 : listeners[0].count;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the {@link HistoryBuilder} operations commonly used to build a new history.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBuilderBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    int historySize;
+
+    List<Object> history;
+    Object newKey;
+    Object middleKey;
+    Object lastKey;
+
+    @Setup
+    public void setup() {
+        history = BenchmarkKey.history("a", historySize);
+        newKey = new BenchmarkKey("b", 0);
+        middleKey = history.get(historySize / 2);
+        lastKey = history.get(historySize - 1);
+    }
+
+    @Benchmark
+    public ArrayList<Object> addAndBuild() {
+        return HistoryBuilder.from(history).add(newKey).build();
+    }
+
+    @Benchmark
+    public ArrayList<Object> removeLastAndBuild() {
+        return HistoryBuilder.from(history).removeLast().build();
+    }
+
+    @Benchmark
+    public ArrayList<Object> removeUntilAndBuild() {
+        return HistoryBuilder.from(history).removeUntil(middleKey).build();
+    }
+
+    @Benchmark
+    public int indexOf() {
+        return HistoryBuilder.from(history).indexOf(lastKey);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the state clear path of the {@link BackstackManager}, which runs after every completed state change.
+ *
+ * Every key in the history has a saved state, and the state of the key that is navigated to is cleared when navigating back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateClearBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    int historySize;
+
+    BackstackManager backstackManager;
+    Backstack backstack;
+    Object newKey;
+
+    @Setup
+    public void setup() {
+        List<Object> history = BenchmarkKey.history("a", historySize);
+        newKey = new BenchmarkKey("b", 0);
+        backstackManager = new BackstackManager();
+        backstackManager.setup(history);
+        backstackManager.setStateChanger(new SynchronousStateChanger());
+        backstack = backstackManager.getBackstack();
+        for(Object key : history) {
+            backstackManager.getSavedState(key);
+        }
+    }
+
+    @Benchmark
+    public int goToNewKeyThenGoBack() {
+        backstack.goTo(newKey);
+        backstackManager.getSavedState(newKey);
+        backstack.goBack();
+        return backstackManager.keyStateMap.size();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+import android.util.SparseArray;
+
+/**
+ * JVM stub of the Android class, only containing what the core of simple-stack uses.
+ * Parcelling is not part of the benchmarks, so every method throws.
+ */
+public final class Parcel {
+    private Parcel() {
+    }
+
+    public static Parcel obtain() {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final int dataSize() {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final void recycle() {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final <T extends Parcelable> T readParcelable(ClassLoader loader) {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final SparseArray readSparseArray(ClassLoader loader) {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final byte readByte() {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final void writeParcelable(Parcelable p, int parcelableFlags) {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final void writeSparseArray(SparseArray<Object> val) {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final void writeByte(byte val) {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final byte[] marshall() {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final void unmarshall(byte[] data, int offset, int length) {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final int dataPosition() {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final void setDataPosition(int pos) {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final String readString() {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final void writeString(String val) {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final int readInt() {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final void writeInt(int val) {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final byte[] createByteArray() {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public final void writeByteArray(byte[] b) {
+        throw new UnsupportedOperationException("Stub!");
+    }
+}
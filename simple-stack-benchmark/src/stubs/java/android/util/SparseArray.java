@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.util;
+
+import java.util.TreeMap;
+
+/**
+ * JVM stub of the Android class, only containing what the core of simple-stack uses.
+ */
+public class SparseArray<E> {
+    private final TreeMap<Integer, E> values = new TreeMap<>();
+
+    public SparseArray() {
+    }
+
+    public SparseArray(int initialCapacity) {
+    }
+
+    public E get(int key) {
+        return values.get(key);
+    }
+
+    public void put(int key, E value) {
+        values.put(key, value);
+    }
+
+    public void clear() {
+        values.clear();
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
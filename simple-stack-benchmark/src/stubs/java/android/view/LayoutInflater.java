@@ -0,0 +1,30 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.view;
+
+import android.content.Context;
+
+/**
+ * JVM stub of the Android class, only containing what the core of simple-stack uses.
+ * Inflation is not part of the benchmarks, so every method throws.
+ */
+public abstract class LayoutInflater {
+    public static LayoutInflater from(Context context) {
+        throw new UnsupportedOperationException("Stub!");
+    }
+
+    public abstract LayoutInflater cloneInContext(Context newContext);
+}
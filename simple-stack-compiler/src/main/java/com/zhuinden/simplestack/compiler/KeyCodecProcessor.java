@@ -0,0 +1,403 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack.compiler;
+
+import com.zhuinden.simplestack.annotation.GenerateKeyCodec;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@code KeyCodec} for each {@link GenerateKeyCodec}-annotated class, and a {@code KeyCodecRegistry} that registers them in a {@code CodecKeyParceler}.
+ *
+ * The registry is generated into the package specified by the {@code simplestack.registryPackage} option,
+ * or into the common package of the keys if the option is not set.
+ */
+public class KeyCodecProcessor
+        extends AbstractProcessor {
+    static final String REGISTRY_PACKAGE_OPTION = "simplestack.registryPackage";
+    static final String REGISTRY_NAME = "KeyCodecRegistry";
+    static final String CODEC_SUFFIX = "_KeyCodec";
+
+    private static final String CREATE_METHOD_NAME = "create";
+
+    private static final Comparator<KeyModel> BY_TYPE_ID = new Comparator<KeyModel>() {
+        @Override
+        public int compare(KeyModel first, KeyModel second) {
+            return first.typeId < second.typeId ? -1 : (first.typeId == second.typeId ? 0 : 1);
+        }
+    };
+
+    private Elements elements;
+    private Types types;
+    private Filer filer;
+    private Messager messager;
+
+    private final Map<Integer, KeyModel> keysByTypeId = new HashMap<>();
+    private boolean hasErrors = false;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        elements = processingEnv.getElementUtils();
+        types = processingEnv.getTypeUtils();
+        filer = processingEnv.getFiler();
+        messager = processingEnv.getMessager();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(GenerateKeyCodec.class.getCanonicalName());
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return Collections.singleton(REGISTRY_PACKAGE_OPTION);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for(Element element : roundEnv.getElementsAnnotatedWith(GenerateKeyCodec.class)) {
+            KeyModel keyModel = createKeyModel(element);
+            if(keyModel == null) {
+                hasErrors = true;
+                continue;
+            }
+            KeyModel previous = keysByTypeId.get(keyModel.typeId);
+            if(previous != null) {
+                error(element, "Type id [" + keyModel.typeId + "] is already used by [" + previous.getTypeName() + "]!");
+                continue;
+            }
+            keysByTypeId.put(keyModel.typeId, keyModel);
+            writeCodec(keyModel);
+        }
+        if(roundEnv.processingOver() && !hasErrors && !keysByTypeId.isEmpty()) {
+            writeRegistry();
+        }
+        return true;
+    }
+
+    private KeyModel createKeyModel(Element element) {
+        if(element.getKind() != ElementKind.CLASS) {
+            error(element, "Only classes can be annotated with @GenerateKeyCodec!");
+            return null;
+        }
+        TypeElement type = (TypeElement) element;
+        int typeId = type.getAnnotation(GenerateKeyCodec.class).id();
+        if(typeId < 0) {
+            error(type, "Type id cannot be negative!");
+            return null;
+        }
+        if(!type.getModifiers().contains(Modifier.PUBLIC)) {
+            error(type, "A key annotated with @GenerateKeyCodec must be public!");
+            return null;
+        }
+        if(type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) {
+            error(type, "A nested key annotated with @GenerateKeyCodec must be static!");
+            return null;
+        }
+        if(!type.getTypeParameters().isEmpty()) {
+            error(type, "A key annotated with @GenerateKeyCodec cannot have type parameters!");
+            return null;
+        }
+        String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+        ExecutableElement creator = findCreator(type);
+        if(creator == null) {
+            return null;
+        }
+        List<KeyModel.Property> properties = new ArrayList<>();
+        for(VariableElement parameter : creator.getParameters()) {
+            KeyModel.Property property = createProperty(type, packageName, parameter);
+            if(property == null) {
+                return null;
+            }
+            properties.add(property);
+        }
+        return new KeyModel(type, typeId, packageName, getCodecSimpleName(type, packageName), creator, properties);
+    }
+
+    private ExecutableElement findCreator(TypeElement type) {
+        List<ExecutableElement> factoryMethods = new ArrayList<>();
+        for(ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if(method.getSimpleName().contentEquals(CREATE_METHOD_NAME) //
+                    && method.getModifiers().contains(Modifier.STATIC) //
+                    && !method.getModifiers().contains(Modifier.PRIVATE) //
+                    && types.isSameType(method.getReturnType(), type.asType())) {
+                factoryMethods.add(method);
+            }
+        }
+        if(factoryMethods.size() == 1) {
+            return factoryMethods.get(0);
+        }
+        if(factoryMethods.size() > 1) {
+            error(type, "A key annotated with @GenerateKeyCodec must have only one static create() method!");
+            return null;
+        }
+        List<ExecutableElement> constructors = new ArrayList<>();
+        if(!type.getModifiers().contains(Modifier.ABSTRACT)) {
+            for(ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+                if(!constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                    constructors.add(constructor);
+                }
+            }
+        }
+        if(constructors.size() != 1) {
+            error(type, "A key annotated with @GenerateKeyCodec must have either a non-private static create() method, or exactly one non-private constructor!");
+            return null;
+        }
+        return constructors.get(0);
+    }
+
+    private KeyModel.Property createProperty(TypeElement type, String packageName, VariableElement parameter) {
+        String name = parameter.getSimpleName().toString();
+        TypeMirror parameterType = parameter.asType();
+        KeyModel.Kind kind = getKind(parameterType);
+        if(kind == null) {
+            error(parameter, "Parameter [" + name + "] must be an int, long, boolean, double, String, or a key annotated with @GenerateKeyCodec!");
+            return null;
+        }
+        String accessor = findAccessor(type, packageName, name, parameterType);
+        if(accessor == null) {
+            error(parameter, "Parameter [" + name + "] must have an accessible method or field of the same type named [" + name + "], or a getter!");
+            return null;
+        }
+        String typeName = kind == KeyModel.Kind.KEY ? ((TypeElement) types.asElement(parameterType)).getQualifiedName().toString() : kind.typeName;
+        return new KeyModel.Property(name, accessor, kind, typeName);
+    }
+
+    private KeyModel.Kind getKind(TypeMirror typeMirror) {
+        switch(typeMirror.getKind()) {
+            case INT:
+                return KeyModel.Kind.INT;
+            case LONG:
+                return KeyModel.Kind.LONG;
+            case BOOLEAN:
+                return KeyModel.Kind.BOOLEAN;
+            case DOUBLE:
+                return KeyModel.Kind.DOUBLE;
+            case DECLARED:
+                TypeElement typeElement = (TypeElement) ((DeclaredType) typeMirror).asElement();
+                if(typeElement.getQualifiedName().contentEquals(String.class.getCanonicalName())) {
+                    return KeyModel.Kind.STRING;
+                }
+                if(typeElement.getAnnotation(GenerateKeyCodec.class) != null) {
+                    return KeyModel.Kind.KEY;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private String findAccessor(TypeElement type, String packageName, String name, TypeMirror propertyType) {
+        String capitalizedName = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        List<String> methodNames = new ArrayList<>();
+        methodNames.add(name);
+        methodNames.add("get" + capitalizedName);
+        if(propertyType.getKind() == TypeKind.BOOLEAN) {
+            methodNames.add("is" + capitalizedName);
+        }
+        List<? extends Element> members = elements.getAllMembers(type);
+        for(String methodName : methodNames) {
+            for(ExecutableElement method : ElementFilter.methodsIn(members)) {
+                if(method.getSimpleName().contentEquals(methodName) //
+                        && method.getParameters().isEmpty() //
+                        && isAccessible(method, packageName) //
+                        && types.isSameType(method.getReturnType(), propertyType)) {
+                    return methodName + "()";
+                }
+            }
+        }
+        for(VariableElement field : ElementFilter.fieldsIn(members)) {
+            if(field.getSimpleName().contentEquals(name) //
+                    && isAccessible(field, packageName) //
+                    && types.isSameType(field.asType(), propertyType)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private boolean isAccessible(Element member, String packageName) {
+        Set<Modifier> modifiers = member.getModifiers();
+        if(modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.PRIVATE)) {
+            return false;
+        }
+        return modifiers.contains(Modifier.PUBLIC) //
+                || elements.getPackageOf(member).getQualifiedName().contentEquals(packageName);
+    }
+
+    private static String getCodecSimpleName(TypeElement type, String packageName) {
+        String qualifiedName = type.getQualifiedName().toString();
+        String simpleNames = packageName.isEmpty() ? qualifiedName : qualifiedName.substring(packageName.length() + 1);
+        return simpleNames.replace('.', '_') + CODEC_SUFFIX;
+    }
+
+    private void writeCodec(KeyModel keyModel) {
+        String keyType = keyModel.getTypeName();
+        StringBuilder source = new StringBuilder();
+        source.append("// Generated by simple-stack-compiler. Do not modify!\n");
+        if(!keyModel.packageName.isEmpty()) {
+            source.append("package ").append(keyModel.packageName).append(";\n\n");
+        }
+        source.append("public final class ").append(keyModel.codecSimpleName).append("\n");
+        source.append("        implements com.zhuinden.simplestack.KeyCodec<").append(keyType).append("> {\n");
+        source.append("    public static final int TYPE_ID = ").append(keyModel.typeId).append(";\n\n");
+
+        source.append("    @Override\n");
+        source.append("    public void encode(").append(keyType).append(" key, com.zhuinden.simplestack.KeyEncoder encoder) {\n");
+        for(KeyModel.Property property : keyModel.properties) {
+            source.append("        encoder.write").append(property.kind.methodSuffix).append("(key.").append(property.accessor).append(");\n");
+        }
+        source.append("    }\n\n");
+
+        source.append("    @Override\n");
+        source.append("    public ").append(keyType).append(" decode(com.zhuinden.simplestack.KeyDecoder decoder) {\n");
+        for(KeyModel.Property property : keyModel.properties) {
+            source.append("        ").append(property.typeName).append(" ").append(property.name).append(" = decoder.");
+            if(property.kind == KeyModel.Kind.KEY) {
+                source.append("<").append(property.typeName).append(">");
+            }
+            source.append("read").append(property.kind.methodSuffix).append("();\n");
+        }
+        source.append("        return ");
+        if(keyModel.creator.getKind() == ElementKind.CONSTRUCTOR) {
+            source.append("new ").append(keyType);
+        } else {
+            source.append(keyType).append(".").append(keyModel.creator.getSimpleName());
+        }
+        source.append("(");
+        for(int i = 0, size = keyModel.properties.size(); i < size; i++) {
+            source.append(i == 0 ? "" : ", ").append(keyModel.properties.get(i).name);
+        }
+        source.append(");\n");
+        source.append("    }\n");
+        source.append("}\n");
+        writeSource(keyModel.getCodecName(), source, keyModel.type);
+    }
+
+    private void writeRegistry() {
+        List<KeyModel> keyModels = new ArrayList<>(keysByTypeId.values());
+        Collections.sort(keyModels, BY_TYPE_ID);
+        String packageName = getRegistryPackage(keyModels);
+        if(packageName == null) {
+            return;
+        }
+        StringBuilder source = new StringBuilder();
+        source.append("// Generated by simple-stack-compiler. Do not modify!\n");
+        source.append("package ").append(packageName).append(";\n\n");
+        source.append("/**\n");
+        source.append(" * Registers the codec of every key annotated with @GenerateKeyCodec in the module.\n");
+        source.append(" */\n");
+        source.append("public final class ").append(REGISTRY_NAME).append(" {\n");
+        source.append("    private ").append(REGISTRY_NAME).append("() {\n");
+        source.append("    }\n\n");
+        source.append("    public static com.zhuinden.simplestack.CodecKeyParceler.Builder register(com.zhuinden.simplestack.CodecKeyParceler.Builder builder) {\n");
+        source.append("        return builder");
+        for(KeyModel keyModel : keyModels) {
+            source.append("\n                .register(").append(keyModel.getCodecName()).append(".TYPE_ID, ");
+            source.append(keyModel.getTypeName()).append(".class, new ").append(keyModel.getCodecName()).append("())");
+        }
+        source.append(";\n");
+        source.append("    }\n\n");
+        source.append("    public static com.zhuinden.simplestack.CodecKeyParceler createKeyParceler() {\n");
+        source.append("        return register(com.zhuinden.simplestack.CodecKeyParceler.builder()).build();\n");
+        source.append("    }\n");
+        source.append("}\n");
+        Element[] originatingElements = new Element[keyModels.size()];
+        for(int i = 0, size = keyModels.size(); i < size; i++) {
+            originatingElements[i] = keyModels.get(i).type;
+        }
+        writeSource(packageName + "." + REGISTRY_NAME, source, originatingElements);
+    }
+
+    private String getRegistryPackage(List<KeyModel> keyModels) {
+        String packageName = processingEnv.getOptions().get(REGISTRY_PACKAGE_OPTION);
+        if(packageName == null) {
+            packageName = keyModels.get(0).packageName;
+            for(KeyModel keyModel : keyModels) {
+                packageName = getCommonPackage(packageName, keyModel.packageName);
+            }
+        }
+        if(packageName.isEmpty()) {
+            messager.printMessage(Diagnostic.Kind.ERROR,
+                    "The keys have no common package, the package of the " + REGISTRY_NAME + " must be specified with the [" + REGISTRY_PACKAGE_OPTION + "] option!");
+            return null;
+        }
+        return packageName;
+    }
+
+    static String getCommonPackage(String first, String second) {
+        if(first.equals(second) || second.startsWith(first + ".")) {
+            return first;
+        }
+        int lastDot = first.lastIndexOf('.');
+        return lastDot < 0 ? "" : getCommonPackage(first.substring(0, lastDot), second);
+    }
+
+    private void writeSource(String name, CharSequence source, Element... originatingElements) {
+        try {
+            JavaFileObject sourceFile = filer.createSourceFile(name, originatingElements);
+            Writer writer = sourceFile.openWriter();
+            try {
+                writer.write(source.toString());
+            } finally {
+                writer.close();
+            }
+        } catch(IOException e) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Could not write [" + name + "]: " + e.getMessage(), originatingElements[0]);
+        }
+    }
+
+    private void error(Element element, String message) {
+        hasErrors = true;
+        messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
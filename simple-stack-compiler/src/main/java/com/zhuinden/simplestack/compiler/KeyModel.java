@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack.compiler;
+
+import java.util.List;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * The model of a {@code GenerateKeyCodec}-annotated class, from which its codec is generated.
+ */
+class KeyModel {
+    enum Kind {
+        INT("Int", "int"),
+        LONG("Long", "long"),
+        BOOLEAN("Boolean", "boolean"),
+        DOUBLE("Double", "double"),
+        STRING("String", "java.lang.String"),
+        KEY("Key", null);
+
+        final String methodSuffix;
+        final String typeName;
+
+        Kind(String methodSuffix, String typeName) {
+            this.methodSuffix = methodSuffix;
+            this.typeName = typeName;
+        }
+    }
+
+    static class Property {
+        final String name;
+        final String accessor;
+        final Kind kind;
+        final String typeName;
+
+        Property(String name, String accessor, Kind kind, String typeName) {
+            this.name = name;
+            this.accessor = accessor;
+            this.kind = kind;
+            this.typeName = typeName;
+        }
+    }
+
+    final TypeElement type;
+    final int typeId;
+    final String packageName;
+    final String codecSimpleName;
+    final ExecutableElement creator;
+    final List<Property> properties;
+
+    KeyModel(TypeElement type, int typeId, String packageName, String codecSimpleName, ExecutableElement creator, List<Property> properties) {
+        this.type = type;
+        this.typeId = typeId;
+        this.packageName = packageName;
+        this.codecSimpleName = codecSimpleName;
+        this.creator = creator;
+        this.properties = properties;
+    }
+
+    String getTypeName() {
+        return type.getQualifiedName().toString();
+    }
+
+    String getCodecName() {
+        return packageName.isEmpty() ? codecSimpleName : packageName + "." + codecSimpleName;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack.compiler;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KeyCodecProcessorTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    File generatedSources;
+    File classes;
+
+    DiagnosticCollector<JavaFileObject> diagnostics;
+
+    @Before
+    public void before()
+            throws IOException {
+        generatedSources = temporaryFolder.newFolder("generated");
+        classes = temporaryFolder.newFolder("classes");
+        diagnostics = new DiagnosticCollector<>();
+    }
+
+    private static JavaFileObject source(String className, String... lines) {
+        final StringBuilder content = new StringBuilder();
+        for(String line : lines) {
+            content.append(line).append('\n');
+        }
+        return new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return content;
+            }
+        };
+    }
+
+    private boolean process(List<String> options, JavaFileObject... sources)
+            throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        try {
+            List<String> allOptions = new ArrayList<>(options);
+            allOptions.addAll(Arrays.asList("-s", generatedSources.getAbsolutePath(), "-d", classes.getAbsolutePath()));
+            List<JavaFileObject> allSources = new ArrayList<>(Arrays.asList(sources));
+            allSources.addAll(RUNTIME_API);
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, allOptions, null, allSources);
+            task.setProcessors(Collections.singletonList(new KeyCodecProcessor()));
+            return task.call();
+        } finally {
+            fileManager.close();
+        }
+    }
+
+    private String generated(String path)
+            throws IOException {
+        return new String(Files.readAllBytes(new File(generatedSources, path).toPath()), Charset.forName("UTF-8"));
+    }
+
+    private List<String> errors() {
+        List<String> errors = new ArrayList<>();
+        for(Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if(diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic.getMessage(null));
+            }
+        }
+        return errors;
+    }
+
+    // the generated sources are compiled against the API of the simple-stack library
+    private static final List<JavaFileObject> RUNTIME_API = Arrays.asList( //
+            source("com.zhuinden.simplestack.KeyCodec",
+                    "package com.zhuinden.simplestack;",
+                    "public interface KeyCodec<T> {",
+                    "    void encode(T key, KeyEncoder encoder);",
+                    "    T decode(KeyDecoder decoder);",
+                    "}"),
+            source("com.zhuinden.simplestack.KeyEncoder",
+                    "package com.zhuinden.simplestack;",
+                    "public final class KeyEncoder {",
+                    "    public void writeInt(int value) {}",
+                    "    public void writeLong(long value) {}",
+                    "    public void writeBoolean(boolean value) {}",
+                    "    public void writeDouble(double value) {}",
+                    "    public void writeString(String value) {}",
+                    "    public void writeKey(Object key) {}",
+                    "}"),
+            source("com.zhuinden.simplestack.KeyDecoder",
+                    "package com.zhuinden.simplestack;",
+                    "public final class KeyDecoder {",
+                    "    public int readInt() { return 0; }",
+                    "    public long readLong() { return 0; }",
+                    "    public boolean readBoolean() { return false; }",
+                    "    public double readDouble() { return 0; }",
+                    "    public String readString() { return null; }",
+                    "    public <T> T readKey() { return null; }",
+                    "}"),
+            source("com.zhuinden.simplestack.CodecKeyParceler",
+                    "package com.zhuinden.simplestack;",
+                    "public class CodecKeyParceler {",
+                    "    public static Builder builder() { return new Builder(); }",
+                    "    public static class Builder {",
+                    "        public <T> Builder register(int typeId, Class<T> keyType, KeyCodec<? super T> codec) { return this; }",
+                    "        public CodecKeyParceler build() { return new CodecKeyParceler(); }",
+                    "    }",
+                    "}"));
+
+    JavaFileObject tasksKey = source("com.example.keys.TasksKey",
+            "package com.example.keys;",
+            "@com.zhuinden.simplestack.annotation.GenerateKeyCodec(id = 1)",
+            "public abstract class TasksKey {",
+            "    abstract String filter();",
+            "    public abstract int page();",
+            "    public static TasksKey create(String filter, int page) { return null; }",
+            "}");
+
+    JavaFileObject taskDetailKey = source("com.example.keys.detail.TaskDetailKey",
+            "package com.example.keys.detail;",
+            "@com.zhuinden.simplestack.annotation.GenerateKeyCodec(id = 2)",
+            "public class TaskDetailKey {",
+            "    final com.example.keys.TasksKey parent;",
+            "    private final boolean editable;",
+            "    private final long taskId;",
+            "    public TaskDetailKey(com.example.keys.TasksKey parent, boolean editable, long taskId) {",
+            "        this.parent = parent; this.editable = editable; this.taskId = taskId;",
+            "    }",
+            "    public boolean isEditable() { return editable; }",
+            "    public long getTaskId() { return taskId; }",
+            "}");
+
+    @Test
+    public void codecIsGeneratedForFactoryMethod()
+            throws IOException {
+        assertThat(process(Collections.<String>emptyList(), tasksKey)).isTrue();
+        assertThat(new File(classes, "com/example/keys/TasksKey_KeyCodec.class").exists()).isTrue();
+        String codec = generated("com/example/keys/TasksKey_KeyCodec.java");
+        assertThat(codec).contains("public static final int TYPE_ID = 1;");
+        assertThat(codec).contains("encoder.writeString(key.filter());");
+        assertThat(codec).contains("encoder.writeInt(key.page());");
+        assertThat(codec).contains("return com.example.keys.TasksKey.create(filter, page);");
+    }
+
+    @Test
+    public void codecIsGeneratedForConstructorWithGettersAndNestedKeys()
+            throws IOException {
+        assertThat(process(Collections.<String>emptyList(), tasksKey, taskDetailKey)).isTrue();
+        String codec = generated("com/example/keys/detail/TaskDetailKey_KeyCodec.java");
+        assertThat(codec).contains("encoder.writeKey(key.parent);");
+        assertThat(codec).contains("encoder.writeBoolean(key.isEditable());");
+        assertThat(codec).contains("encoder.writeLong(key.getTaskId());");
+        assertThat(codec).contains("com.example.keys.TasksKey parent = decoder.<com.example.keys.TasksKey>readKey();");
+        assertThat(codec).contains("return new com.example.keys.detail.TaskDetailKey(parent, editable, taskId);");
+    }
+
+    @Test
+    public void registryIsGeneratedIntoTheCommonPackage()
+            throws IOException {
+        assertThat(process(Collections.<String>emptyList(), taskDetailKey, tasksKey)).isTrue();
+        String registry = generated("com/example/keys/KeyCodecRegistry.java");
+        assertThat(registry).contains("package com.example.keys;");
+        assertThat(registry.indexOf("TasksKey_KeyCodec.TYPE_ID")).isLessThan(registry.indexOf("TaskDetailKey_KeyCodec.TYPE_ID"));
+    }
+
+    @Test
+    public void registryPackageCanBeSpecified()
+            throws IOException {
+        assertThat(process(Collections.singletonList("-A" + KeyCodecProcessor.REGISTRY_PACKAGE_OPTION + "=com.example.app"), tasksKey)).isTrue();
+        assertThat(generated("com/example/app/KeyCodecRegistry.java")).contains("package com.example.app;");
+    }
+
+    @Test
+    public void duplicateTypeIdIsAnError()
+            throws IOException {
+        JavaFileObject otherKey = source("com.example.keys.OtherKey",
+                "package com.example.keys;",
+                "@com.zhuinden.simplestack.annotation.GenerateKeyCodec(id = 1)",
+                "public class OtherKey {",
+                "}");
+        assertThat(process(Collections.<String>emptyList(), tasksKey, otherKey)).isFalse();
+        assertThat(errors()).containsExactly("Type id [1] is already used by [com.example.keys.TasksKey]!");
+        assertThat(new File(generatedSources, "com/example/keys/KeyCodecRegistry.java").exists()).isFalse();
+    }
+
+    @Test
+    public void unsupportedParameterIsAnError()
+            throws IOException {
+        JavaFileObject listKey = source("com.example.keys.ListKey",
+                "package com.example.keys;",
+                "@com.zhuinden.simplestack.annotation.GenerateKeyCodec(id = 3)",
+                "public class ListKey {",
+                "    public final java.util.List<String> items;",
+                "    public ListKey(java.util.List<String> items) { this.items = items; }",
+                "}");
+        assertThat(process(Collections.<String>emptyList(), listKey)).isFalse();
+        assertThat(errors()).hasSize(1);
+        assertThat(errors().get(0)).contains("Parameter [items] must be");
+    }
+
+    @Test
+    public void parameterWithoutAccessorIsAnError()
+            throws IOException {
+        JavaFileObject hiddenKey = source("com.example.keys.HiddenKey",
+                "package com.example.keys;",
+                "@com.zhuinden.simplestack.annotation.GenerateKeyCodec(id = 4)",
+                "public class HiddenKey {",
+                "    private final String name;",
+                "    public HiddenKey(String name) { this.name = name; }",
+                "}");
+        assertThat(process(Collections.<String>emptyList(), hiddenKey)).isFalse();
+        assertThat(errors().get(0)).contains("Parameter [name] must have an accessible method or field");
+    }
+
+    @Test
+    public void commonPackageIsFound() {
+        assertThat(KeyCodecProcessor.getCommonPackage("com.example.keys", "com.example.keys.detail")).isEqualTo("com.example.keys");
+        assertThat(KeyCodecProcessor.getCommonPackage("com.example.keys.detail", "com.example.keys")).isEqualTo("com.example.keys");
+        assertThat(KeyCodecProcessor.getCommonPackage("com.example.keystore", "com.example.keys")).isEqualTo("com.example");
+        assertThat(KeyCodecProcessor.getCommonPackage("com.example", "org.example")).isEqualTo("");
+    }
+}
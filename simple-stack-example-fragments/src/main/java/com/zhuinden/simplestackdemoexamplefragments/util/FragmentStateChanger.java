@@ -33,7 +33,7 @@ public class FragmentStateChanger {
             Key oldKey = (Key) _oldKey;
             Fragment fragment = fragmentManager.findFragmentByTag(oldKey.getFragmentTag());
             if(fragment != null) {
-                if(!stateChange.getNewState().contains(oldKey)) {
+                if(stateChange.getRemovedKeys().contains(oldKey)) {
                     fragmentTransaction.remove(fragment);
                 } else if(!fragment.isDetached()) {
                     fragmentTransaction.detach(fragment);
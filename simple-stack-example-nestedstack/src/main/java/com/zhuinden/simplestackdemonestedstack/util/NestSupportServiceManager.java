@@ -56,19 +56,17 @@ public class NestSupportServiceManager {
 
     public void setupServices(StateChange stateChange, boolean isFromCompositeKey) {
         StateBundle states = serviceTree.getNode(rootKey).getService(SERVICE_STATES);
-        for(Object _previousKey : stateChange.getPreviousState()) {
+        for(Object _previousKey : stateChange.getRemovedKeys()) {
             Key previousKey = (Key) _previousKey;
-            if(!stateChange.getNewState().contains(previousKey)) {
-                activeKeys.remove(previousKey);
-                if(!isFromCompositeKey) {
-                    ServiceTree.Node previousNode = serviceTree.getNode(previousKey);
-                    if(states != null) {
-                        serviceTree.traverseSubtree(previousNode, ServiceTree.Walk.POST_ORDER, (node, cancellationToken) -> {
-                            states.remove(node.getKey().toString());
-                        });
-                    }
-                    serviceTree.removeNodeAndChildren(previousNode);
+            activeKeys.remove(previousKey);
+            if(!isFromCompositeKey) {
+                ServiceTree.Node previousNode = serviceTree.getNode(previousKey);
+                if(states != null) {
+                    serviceTree.traverseSubtree(previousNode, ServiceTree.Walk.POST_ORDER, (node, cancellationToken) -> {
+                        states.remove(node.getKey().toString());
+                    });
                 }
+                serviceTree.removeNodeAndChildren(previousNode);
             }
         }
         for(Object _newKey : stateChange.getNewState()) {
@@ -44,18 +44,16 @@ public class ServiceManager {
     public void setupServices(StateChange stateChange) {
         // services
         StateBundle states = serviceTree.getNode(rootKey).getService(SERVICE_STATES);
-        for(Object _previousKey : stateChange.getPreviousState()) {
+        for(Object _previousKey : stateChange.getRemovedKeys()) {
             Key previousKey = (Key) _previousKey;
-            if(!stateChange.getNewState().contains(previousKey)) {
-                ServiceTree.Node previousNode = serviceTree.getNode(previousKey);
-                if(states != null) {
-                    serviceTree.traverseSubtree(previousNode, ServiceTree.Walk.POST_ORDER, (node, cancellationToken) -> {
-                        states.remove(node.getKey().toString());
-                        Log.i(TAG, "Destroy [" + node + "]");
-                    });
-                }
-                serviceTree.removeNodeAndChildren(previousNode);
+            ServiceTree.Node previousNode = serviceTree.getNode(previousKey);
+            if(states != null) {
+                serviceTree.traverseSubtree(previousNode, ServiceTree.Walk.POST_ORDER, (node, cancellationToken) -> {
+                    states.remove(node.getKey().toString());
+                    Log.i(TAG, "Destroy [" + node + "]");
+                });
             }
+            serviceTree.removeNodeAndChildren(previousNode);
         }
         for(Object _newKey : stateChange.getNewState()) {
             Key newKey = (Key) _newKey;
@@ -5,7 +5,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import com.zhuinden.simpleservicesexample.application.Key;
-import com.zhuinden.simplestack.KeyContextWrapper;
+import com.zhuinden.simplestack.navigator.Navigator;
 
 import java.util.List;
 
@@ -37,7 +37,7 @@ public class ViewPagerAdapter
     @Override
     public Object instantiateItem(ViewGroup container, int position) {
         Key key = keys.get(position);
-        View view = LayoutInflater.from(new KeyContextWrapper(container.getContext(), key)).inflate(key.layout(), container, false);
+        View view = LayoutInflater.from(Navigator.getManager(container.getContext()).createContext(container.getContext(), key)).inflate(key.layout(), container, false);
         container.addView(view);
         return view;
     }
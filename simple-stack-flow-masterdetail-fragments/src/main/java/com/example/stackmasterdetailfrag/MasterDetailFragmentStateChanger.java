@@ -46,7 +46,7 @@ public class MasterDetailFragmentStateChanger {
 
         for(Object _previousKey : stateChange.getPreviousState()) {
             Path previousKey = (Path) _previousKey;
-            if(!stateChange.getNewState().contains(_previousKey)) {
+            if(stateChange.getRemovedKeys().contains(_previousKey)) {
                 removeFragment(fragmentTransaction, previousKey);
             } else {
                 if(!previousKey.equals(masterKey) && !previousKey.equals(detailKey)) {
@@ -58,8 +58,9 @@ public class MasterDetailFragmentStateChanger {
         Path previousTop = stateChange.topPreviousState(); // remove outlying master
         if(previousTop != null && (previousTop instanceof MasterDetailPath)) {
             MasterDetailPath previousMasterDetailTop = (MasterDetailPath) previousTop;
-            if(!previousMasterDetailTop.isMaster() && !stateChange.getNewState()
-                    .contains(previousMasterDetailTop) && !stateChange.getNewState()
+            if(!previousMasterDetailTop.isMaster() && stateChange.getRemovedKeys()
+                    .contains(previousMasterDetailTop) && !stateChange.getRetainedKeys()
+                    .contains(previousMasterDetailTop.getMaster()) && !stateChange.getAddedKeys()
                     .contains(previousMasterDetailTop.getMaster()) && !stateChange.<MasterDetailPath>topNewState().getMaster()
                     .equals(previousMasterDetailTop.getMaster())) {
                 Fragment previousMaster = fragmentManager.findFragmentByTag(previousMasterDetailTop.getMaster().getFragmentTag());
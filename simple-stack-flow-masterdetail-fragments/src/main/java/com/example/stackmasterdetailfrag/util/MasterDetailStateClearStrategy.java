@@ -7,6 +7,7 @@ import com.zhuinden.simplestack.BackstackManager;
 import com.zhuinden.simplestack.SavedState;
 import com.zhuinden.simplestack.StateChange;
 
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -18,20 +19,18 @@ public class MasterDetailStateClearStrategy
         implements BackstackManager.StateClearStrategy {
     @Override
     public void clearStatesNotIn(@NonNull Map<Object, SavedState> keyStateMap, @NonNull StateChange stateChange) {
-        Set<Object> keys = keyStateMap.keySet();
-        Iterator<Object> keyIterator = keys.iterator();
+        Set<Object> masters = new HashSet<>();
+        for(Object newKey : stateChange.getNewState()) {
+            if(newKey instanceof MasterDetailPath) {
+                masters.add(((MasterDetailPath) newKey).getMaster());
+            }
+        }
+        Set<Object> retainedKeys = stateChange.getRetainedKeys();
+        Set<Object> addedKeys = stateChange.getAddedKeys();
+        Iterator<Object> keyIterator = keyStateMap.keySet().iterator();
         while(keyIterator.hasNext()) {
             Object key = keyIterator.next();
-            boolean isMasterOf = false;
-            for(Object newKey : stateChange.getNewState()) {
-                if(newKey instanceof MasterDetailPath) {
-                    if(key.equals(((MasterDetailPath) newKey).getMaster())) {
-                        isMasterOf = true;
-                        break;
-                    }
-                }
-            }
-            if(!stateChange.getNewState().contains(key) && !isMasterOf) {
+            if(!retainedKeys.contains(key) && !addedKeys.contains(key) && !masters.contains(key)) {
                 keyIterator.remove();
             }
         }
@@ -18,11 +18,10 @@ package com.zhuinden.simplestack;
 import android.content.Context;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.lang.annotation.Retention;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -50,16 +49,26 @@ public class Backstack {
     public static final int REATTACH = 1;
     //
 
-    private final List<Object> originalStack = new ArrayList<>();
-
-    private final List<Object> initialKeys;
-    private List<Object> initialParameters;
-    private List<Object> stack = originalStack;
+    private final PersistentHistory initialKeys;
+    private PersistentHistory initialParameters;
+    private volatile PersistentHistory stack = PersistentHistory.empty(); // published for reads from other threads
 
     private LinkedList<PendingStateChange> queuedStateChanges = new LinkedList<>();
 
+    private final HistoryIndex historyIndex = new HistoryIndex();
+
     private StateChanger stateChanger;
 
+    private boolean isStateChangeCoalescingEnabled = false;
+
+    private boolean isStateChangeSupersedingEnabled = false;
+
+    private boolean isDispatchingStateChanges = false;
+
+    private Tracer tracer = NO_OP_TRACER;
+
+    private KeyContextCache contextCache = null;
+
     /**
      * Creates the Backstack with the provided initial keys.
      *
@@ -69,8 +78,8 @@ public class Backstack {
         if(initialKeys == null || initialKeys.length <= 0) {
             throw new IllegalArgumentException("At least one initial key must be defined");
         }
-        this.initialKeys = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(initialKeys)));
-        setInitialParameters(new ArrayList<>(this.initialKeys));
+        this.initialKeys = PersistentHistory.from(Arrays.asList(initialKeys));
+        setInitialParameters(this.initialKeys);
     }
 
     /**
@@ -85,15 +94,15 @@ public class Backstack {
         if(initialKeys.size() <= 0) {
             throw new IllegalArgumentException("Initial key list should contain at least one element");
         }
-        this.initialKeys = Collections.unmodifiableList(new ArrayList<>(initialKeys));
-        setInitialParameters(new ArrayList<>(this.initialKeys));
+        this.initialKeys = PersistentHistory.from(initialKeys);
+        setInitialParameters(this.initialKeys);
     }
 
     void setInitialParameters(List<?> initialKeys) {
         if(initialKeys == null || initialKeys.size() <= 0) {
             throw new IllegalArgumentException("At least one initial key must be defined");
         }
-        this.initialParameters = new ArrayList<>(initialKeys);
+        this.initialParameters = PersistentHistory.from(initialKeys);
     }
 
     /**
@@ -118,8 +127,7 @@ public class Backstack {
         this.stateChanger = stateChanger;
         if(registerMode == INITIALIZE && (queuedStateChanges.size() <= 1 || stack.isEmpty())) {
             if(!beginStateChangeIfPossible()) {
-                ArrayList<Object> newHistory = new ArrayList<>();
-                newHistory.addAll(selectActiveHistory());
+                PersistentHistory newHistory = selectActiveHistory();
                 stack = initialParameters;
                 enqueueStateChange(newHistory, StateChange.REPLACE, true);
             }
@@ -135,6 +143,50 @@ public class Backstack {
         this.stateChanger = null;
     }
 
+    /**
+     * Sets whether consecutive {@link StateChange}s enqueued while no {@link StateChanger} is set should be merged into one.
+     * If enabled, the merged state change goes from the history before the first merged change to the history of the last one,
+     * so that the {@link StateChanger} only handles a single state change when it is reattached.
+     *
+     * By default, coalescing is disabled.
+     *
+     * @param isEnabled true if state changes enqueued while there is no state changer should be coalesced.
+     */
+    public void setStateChangeCoalescingEnabled(boolean isEnabled) {
+        this.isStateChangeCoalescingEnabled = isEnabled;
+    }
+
+    /**
+     * Returns whether state changes enqueued while no {@link StateChanger} is set are coalesced.
+     *
+     * @return true if coalescing is enabled.
+     */
+    public boolean isStateChangeCoalescingEnabled() {
+        return isStateChangeCoalescingEnabled;
+    }
+
+    /**
+     * Sets whether a newly enqueued {@link StateChange} supersedes the ones that have not yet completed.
+     * If enabled, enqueued state changes that have not yet started are dropped,
+     * and if the {@link StateChanger} implements {@link StateChanger.CancellationListener}, it is notified to finish the state change in progress.
+     *
+     * By default, superseding is disabled.
+     *
+     * @param isEnabled true if the latest state change should supersede the previous ones.
+     */
+    public void setStateChangeSupersedingEnabled(boolean isEnabled) {
+        this.isStateChangeSupersedingEnabled = isEnabled;
+    }
+
+    /**
+     * Returns whether a newly enqueued {@link StateChange} supersedes the ones that have not yet completed.
+     *
+     * @return true if superseding is enabled.
+     */
+    public boolean isStateChangeSupersedingEnabled() {
+        return isStateChangeSupersedingEnabled;
+    }
+
     /**
      * Goes to the new key.
      * If the key is found, then it goes backward to the existing key.
@@ -145,20 +197,17 @@ public class Backstack {
     public void goTo(@NonNull Object newKey) {
         checkNewKey(newKey);
 
-        ArrayList<Object> newHistory = new ArrayList<>();
-        boolean isNewKey = true;
-        for(Object key : selectActiveHistory()) {
-            newHistory.add(key);
-            if(key.equals(newKey)) {
-                isNewKey = false;
-                break;
-            }
-        }
+        PersistentHistory activeHistory = selectActiveHistory();
+        int index = historyIndex.indexOf(activeHistory, newKey);
+        PersistentHistory newHistory;
         int direction;
-        if(isNewKey) {
-            newHistory.add(newKey);
+        if(index == HistoryIndex.NOT_FOUND) {
+            newHistory = activeHistory.push(newKey);
+            historyIndex.onPush(newHistory, newKey);
             direction = StateChange.FORWARD;
         } else {
+            newHistory = activeHistory.truncate(index + 1);
+            historyIndex.onTruncate(activeHistory, newHistory);
             direction = StateChange.BACKWARD;
         }
         enqueueStateChange(newHistory, direction, false);
@@ -169,29 +218,45 @@ public class Backstack {
      * If the key is found, then it goes backward to the existing key.
      * If the key is not found, then it goes forward to the newly added key.
      *
+     * While a state change is pending, the call is ignored, unless superseding is enabled (see {@link Backstack#setStateChangeSupersedingEnabled(boolean)}),
+     * in which case the top of the history of the last enqueued state change is removed, superseding the pending state changes.
+     *
      * @return true if a state change is pending or is handled with a state change, false if there is only one state left.
      */
     public boolean goBack() {
         if(isStateChangePending()) {
+            if(isStateChangeSupersedingEnabled) {
+                goBackInActiveHistory();
+            }
             return true;
         }
         if(stack.size() <= 1) {
             resetBackstack();
             return false;
         }
-        ArrayList<Object> newHistory = new ArrayList<>();
+        goBackInActiveHistory();
+        return true;
+    }
 
-        List<Object> activeHistory = selectActiveHistory();
-        for(int i = 0; i < activeHistory.size() - 1; i++) {
-            newHistory.add(activeHistory.get(i));
+    /**
+     * Enqueues a state change that removes the top of the active history, which includes the enqueued state changes.
+     *
+     * @return true if the state change was enqueued, false if the active history has only one key.
+     */
+    boolean goBackInActiveHistory() {
+        PersistentHistory activeHistory = selectActiveHistory();
+        if(activeHistory.size() <= 1) {
+            return false;
         }
+        PersistentHistory newHistory = activeHistory.truncate(activeHistory.size() - 1);
+        historyIndex.onTruncate(activeHistory, newHistory);
         enqueueStateChange(newHistory, StateChange.BACKWARD, false);
         return true;
     }
 
     private void resetBackstack() {
-        stack.clear();
-        initialParameters = new ArrayList<>(initialKeys);
+        stack = PersistentHistory.empty();
+        initialParameters = initialKeys;
     }
 
     /**
@@ -202,32 +267,135 @@ public class Backstack {
      */
     public void setHistory(@NonNull List<Object> newHistory, @StateChange.StateChangeDirection int direction) {
         checkNewHistory(newHistory);
-        enqueueStateChange(newHistory, direction, false);
+        enqueueStateChange(PersistentHistory.from(newHistory), direction, false);
+    }
+
+    /**
+     * Begins a {@link Transaction} on a copy of the active history.
+     * The operations of the transaction are applied to the backstack as a single {@link StateChange} by {@link Transaction#commit(int)}.
+     *
+     * @return the new transaction.
+     */
+    public Transaction beginTransaction() {
+        return new Transaction(HistoryBuilder.from(selectActiveHistory()));
+    }
+
+    /**
+     * A set of navigation operations that are applied to the {@link Backstack} as a single {@link StateChange}.
+     * It is created by {@link Backstack#beginTransaction()}, and can only be committed once.
+     */
+    public class Transaction {
+        private final HistoryBuilder historyBuilder;
+
+        private boolean isCommitted = false;
+
+        Transaction(HistoryBuilder historyBuilder) {
+            this.historyBuilder = historyBuilder;
+        }
+
+        /**
+         * Goes to the new key.
+         * If the key is found, then the keys after it are removed. If the key is not found, it is added as the new top.
+         *
+         * @param newKey the target key.
+         * @return the current transaction.
+         */
+        public Transaction goTo(@NonNull Object newKey) {
+            checkNotCommitted();
+            checkNewKey(newKey);
+            int index = historyBuilder.indexOf(newKey);
+            if(index == -1) {
+                historyBuilder.add(newKey);
+            } else {
+                while(historyBuilder.size() > index + 1) {
+                    historyBuilder.removeLast();
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Removes the top key.
+         *
+         * @return the current transaction.
+         */
+        public Transaction goBack() {
+            checkNotCommitted();
+            historyBuilder.removeLast();
+            return this;
+        }
+
+        /**
+         * Removes all keys after the provided key. If the key is not found, an exception is thrown.
+         *
+         * @param key the key to go back to.
+         * @return the current transaction.
+         */
+        public Transaction removeUntil(@NonNull Object key) {
+            checkNotCommitted();
+            historyBuilder.removeUntil(key);
+            return this;
+        }
+
+        /**
+         * Replaces the top key with the provided key.
+         *
+         * @param newKey the new top key.
+         * @return the current transaction.
+         */
+        public Transaction replaceTop(@NonNull Object newKey) {
+            checkNotCommitted();
+            checkNewKey(newKey);
+            historyBuilder.removeLast();
+            historyBuilder.add(newKey);
+            return this;
+        }
+
+        /**
+         * Enqueues the result of the transaction as a single {@link StateChange}.
+         *
+         * @param direction The direction of the state change: BACKWARD, FORWARD or REPLACE.
+         */
+        public void commit(@StateChange.StateChangeDirection int direction) {
+            checkNotCommitted();
+            if(historyBuilder.isEmpty()) {
+                throw new IllegalStateException("The transaction cannot remove every key from the history!");
+            }
+            isCommitted = true;
+            enqueueStateChange(PersistentHistory.from(historyBuilder.build()), direction, false);
+        }
+
+        private void checkNotCommitted() {
+            if(isCommitted) {
+                throw new IllegalStateException("The transaction is already committed!");
+            }
+        }
     }
 
     /**
      * Returns the last element in the list, or null if the history is empty.
+     * It can be called from any thread.
      *
      * @param <T> the type of the key
      * @return the top key
      */
     public <T> T top() {
-        if(stack.isEmpty()) {
+        PersistentHistory history = stack;
+        if(history.isEmpty()) {
             return null;
         }
         // noinspection unchecked
-        return (T) stack.get(stack.size() - 1);
+        return (T) history.get(history.size() - 1);
     }
 
     /**
-     * Returns an unmodifiable copy of the current history.
+     * Returns an unmodifiable snapshot of the current history.
+     * It can be called from any thread.
      *
-     * @return the unmodifiable copy of history.
+     * @return the unmodifiable snapshot of history.
      */
     public List<Object> getHistory() {
-        List<Object> copy = new ArrayList<>();
-        copy.addAll(stack);
-        return Collections.unmodifiableList(copy);
+        return stack;
     }
 
     /**
@@ -248,13 +416,65 @@ public class Backstack {
         return !queuedStateChanges.isEmpty();
     }
 
-    private void enqueueStateChange(List<Object> newHistory, int direction, boolean initialization) {
+    private void enqueueStateChange(PersistentHistory newHistory, int direction, boolean initialization) {
+        if(!initialization && (isStateChangeSupersedingEnabled || isStateChangeCoalescingEnabled && !hasStateChanger())) {
+            boolean isDirectionResolved = true;
+            while(canDropLastStateChange()) {
+                PendingStateChange lastStateChange = queuedStateChanges.removeLast();
+                isDirectionResolved = isDirectionResolved && lastStateChange.direction == direction;
+                if(!isStateChangeSupersedingEnabled) {
+                    break; // coalescing only merges with the last state change
+                }
+            }
+            if(!isDirectionResolved) {
+                PersistentHistory previousHistory = queuedStateChanges.isEmpty() ? stack : queuedStateChanges.getLast().newHistory;
+                direction = resolveDirection(previousHistory, newHistory);
+            }
+        }
         PendingStateChange pendingStateChange = new PendingStateChange(newHistory, direction, initialization);
         queuedStateChanges.add(pendingStateChange);
+        tracer.onStateChangeEnqueued(System.nanoTime(), queuedStateChanges.size(), newHistory.size());
+        if(!initialization && isStateChangeSupersedingEnabled) {
+            requestCancellationOfStateChangeInProgress();
+        }
         beginStateChangeIfPossible();
     }
 
-    private List<Object> selectActiveHistory() {
+    private boolean canDropLastStateChange() {
+        if(queuedStateChanges.isEmpty()) {
+            return false;
+        }
+        PendingStateChange lastStateChange = queuedStateChanges.getLast();
+        return lastStateChange.getStatus() == PendingStateChange.Status.ENQUEUED && !lastStateChange.initialization;
+    }
+
+    private void requestCancellationOfStateChangeInProgress() {
+        PendingStateChange firstStateChange = queuedStateChanges.getFirst();
+        if(firstStateChange.getStatus() == PendingStateChange.Status.IN_PROGRESS && !firstStateChange.isCancellationRequested) {
+            firstStateChange.isCancellationRequested = true;
+            if(stateChanger instanceof StateChanger.CancellationListener) {
+                ((StateChanger.CancellationListener) stateChanger).stateChangeCancelled(firstStateChange.stateChange);
+            }
+        }
+    }
+
+    private static int resolveDirection(List<Object> previousHistory, List<Object> newHistory) {
+        if(previousHistory.isEmpty()) {
+            return StateChange.REPLACE;
+        }
+        Object previousTop = previousHistory.get(previousHistory.size() - 1);
+        Object newTop = newHistory.get(newHistory.size() - 1);
+        if(previousTop.equals(newTop)) {
+            return StateChange.REPLACE;
+        } else if(previousHistory.contains(newTop)) {
+            return StateChange.BACKWARD;
+        } else if(newHistory.contains(previousTop)) {
+            return StateChange.FORWARD;
+        }
+        return StateChange.REPLACE;
+    }
+
+    private PersistentHistory selectActiveHistory() {
         if(stack.isEmpty() && queuedStateChanges.size() <= 0) {
             return initialParameters;
         } else if(queuedStateChanges.size() <= 0) {
@@ -264,33 +484,44 @@ public class Backstack {
         }
     }
 
+    private boolean canBeginStateChange() {
+        return hasStateChanger() && isStateChangePending() && queuedStateChanges.getFirst()
+                .getStatus() == PendingStateChange.Status.ENQUEUED;
+    }
+
     private boolean beginStateChangeIfPossible() {
-        if(hasStateChanger() && isStateChangePending()) {
-            PendingStateChange pendingStateChange = queuedStateChanges.getFirst();
-            if(pendingStateChange.getStatus() == PendingStateChange.Status.ENQUEUED) {
+        if(!canBeginStateChange()) {
+            return false;
+        }
+        if(isDispatchingStateChanges) {
+            return true; // the dispatch loop further up the call stack begins it
+        }
+        isDispatchingStateChanges = true;
+        try {
+            // state changes that complete synchronously are executed by this loop, instead of by recursion through the callback
+            while(canBeginStateChange()) {
+                PendingStateChange pendingStateChange = queuedStateChanges.getFirst();
                 pendingStateChange.setStatus(PendingStateChange.Status.IN_PROGRESS);
                 changeState(pendingStateChange);
-                return true;
             }
+        } finally {
+            isDispatchingStateChanges = false;
         }
-        return false;
+        return true;
     }
 
     private void changeState(final PendingStateChange pendingStateChange) {
         boolean initialization = pendingStateChange.initialization;
-        List<Object> newHistory = pendingStateChange.newHistory;
+        PersistentHistory newHistory = pendingStateChange.newHistory;
         @StateChange.StateChangeDirection int direction = pendingStateChange.direction;
 
-        List<Object> previousState;
+        PersistentHistory previousState;
         if(initialization) {
-            previousState = Collections.emptyList();
+            previousState = PersistentHistory.empty();
         } else {
-            previousState = new ArrayList<>();
-            previousState.addAll(stack);
+            previousState = stack;
         }
-        final StateChange stateChange = new StateChange(Collections.unmodifiableList(previousState),
-                Collections.unmodifiableList(newHistory),
-                direction);
+        final StateChange stateChange = new StateChange(previousState, newHistory, direction, contextCache);
         StateChanger.Callback completionCallback = new StateChanger.Callback() {
             @Override
             public void stateChangeComplete() {
@@ -303,19 +534,18 @@ public class Backstack {
             }
         };
         pendingStateChange.completionCallback = completionCallback;
+        pendingStateChange.stateChange = stateChange;
+        tracer.onStateChangeDispatched(System.nanoTime(), queuedStateChanges.size(), newHistory.size());
         stateChanger.handleStateChange(stateChange, completionCallback);
     }
 
     private void completeStateChange(StateChange stateChange) {
-        if(initialParameters == stack) {
-            stack = originalStack;
-        }
-        stack.clear();
-        stack.addAll(stateChange.newState);
-
+        tracer.onStateChangeCompleted(System.nanoTime(), queuedStateChanges.size(), stateChange.newState.size());
         PendingStateChange pendingStateChange = queuedStateChanges.removeFirst();
         pendingStateChange.setStatus(PendingStateChange.Status.COMPLETED);
+        stack = pendingStateChange.newHistory;
         notifyCompletionListeners(stateChange);
+        tracer.onCompletionListenersNotified(System.nanoTime(), queuedStateChanges.size(), stateChange.newState.size());
         beginStateChangeIfPossible();
     }
 
@@ -367,6 +597,116 @@ public class Backstack {
         }
     }
 
+    // tracing
+
+    /**
+     * A Tracer receives timing events of the {@link StateChange}s handled by the {@link Backstack}.
+     * It is set with {@link Backstack#setTracer(Tracer)}.
+     *
+     * Events carry the value of {@link System#nanoTime()} at the time of the event, the number of queued state changes (including the one in progress),
+     * and the size of the history that is the target of the state change.
+     * The phases are reported by {@link BackstackManager} and by the navigator's DefaultStateChanger.
+     *
+     * Methods are called on the thread that owns the {@link StateChanger}, and should not block.
+     */
+    public interface Tracer {
+        int PHASE_STATE_CLEAR = 0;
+        int PHASE_PERSIST = 1;
+        int PHASE_INFLATE = 2;
+        int PHASE_RESTORE = 3;
+        int PHASE_VIEW_CHANGE = 4;
+
+        /**
+         * Called when a {@link StateChange} is enqueued.
+         */
+        void onStateChangeEnqueued(long timeNanos, int queueDepth, int historySize);
+
+        /**
+         * Called when a {@link StateChange} is dispatched to the {@link StateChanger}.
+         */
+        void onStateChangeDispatched(long timeNanos, int queueDepth, int historySize);
+
+        /**
+         * Called when {@link StateChanger.Callback#stateChangeComplete()} is called for the {@link StateChange} in progress.
+         */
+        void onStateChangeCompleted(long timeNanos, int queueDepth, int historySize);
+
+        /**
+         * Called when every {@link CompletionListener} has been notified of the completed {@link StateChange}.
+         */
+        void onCompletionListenersNotified(long timeNanos, int queueDepth, int historySize);
+
+        /**
+         * Called when a phase of handling a {@link StateChange} begins.
+         *
+         * @param phase one of the PHASE_ constants
+         */
+        void onPhaseStarted(int phase, long timeNanos);
+
+        /**
+         * Called when a phase of handling a {@link StateChange} ends.
+         *
+         * @param phase one of the PHASE_ constants
+         */
+        void onPhaseEnded(int phase, long timeNanos);
+    }
+
+    /**
+     * A {@link Tracer} that ignores every event. It can be extended to receive only some of the events.
+     */
+    public static class NoOpTracer
+            implements Tracer {
+        @Override
+        public void onStateChangeEnqueued(long timeNanos, int queueDepth, int historySize) {
+        }
+
+        @Override
+        public void onStateChangeDispatched(long timeNanos, int queueDepth, int historySize) {
+        }
+
+        @Override
+        public void onStateChangeCompleted(long timeNanos, int queueDepth, int historySize) {
+        }
+
+        @Override
+        public void onCompletionListenersNotified(long timeNanos, int queueDepth, int historySize) {
+        }
+
+        @Override
+        public void onPhaseStarted(int phase, long timeNanos) {
+        }
+
+        @Override
+        public void onPhaseEnded(int phase, long timeNanos) {
+        }
+    }
+
+    private static final Tracer NO_OP_TRACER = new NoOpTracer();
+
+    /**
+     * Sets the {@link Tracer} that receives the timing events of state changes.
+     *
+     * @param tracer the tracer, or null to remove the current tracer.
+     */
+    public void setTracer(@Nullable Tracer tracer) {
+        this.tracer = tracer == null ? NO_OP_TRACER : tracer;
+    }
+
+    /**
+     * Returns the {@link Tracer} of this backstack. If none was set, a tracer that ignores every event is returned.
+     *
+     * @return the tracer.
+     */
+    @NonNull
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    // set by the BackstackManager, so that its state changes create the contexts of keys through its cache
+    void setContextCache(@Nullable KeyContextCache contextCache) {
+        this.contextCache = contextCache;
+    }
+
     // force execute
 
     /**
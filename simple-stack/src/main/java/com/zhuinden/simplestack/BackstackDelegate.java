@@ -23,6 +23,7 @@ import android.view.View;
 import com.zhuinden.statebundle.StateBundle;
 
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * A delegate class that manages the {@link Backstack}'s Activity lifecycle integration,
@@ -65,12 +66,78 @@ public class BackstackDelegate {
         this.stateClearStrategy = stateClearStrategy;
     }
 
+    /**
+     * Specifies a {@link BackstackManager.SavedStateStore}, which keeps the state of keys that are not at the top of the history out of memory.
+     *
+     * If used, this method must be called before {@link BackstackDelegate#onCreate(Bundle, Object, ArrayList)}.
+     *
+     * @param savedStateStore     The {@link BackstackManager.SavedStateStore}.
+     * @param retainedTopKeyCount The number of keys at the top of the history whose state is always kept in memory.
+     * @param executor            The executor on which the states are written and deleted, in order.
+     */
+    public void setSavedStateStore(BackstackManager.SavedStateStore savedStateStore, int retainedTopKeyCount, Executor executor) {
+        if(savedStateStore == null) {
+            throw new IllegalArgumentException("Specified saved state store should not be null!");
+        }
+        if(retainedTopKeyCount < 1) {
+            throw new IllegalArgumentException("At least the top key must be retained!");
+        }
+        if(executor == null) {
+            throw new IllegalArgumentException("Specified saved state store executor should not be null!");
+        }
+        this.savedStateStore = savedStateStore;
+        this.storeRetainedTopKeyCount = retainedTopKeyCount;
+        this.savedStateStoreExecutor = executor;
+    }
+
+    /**
+     * Specifies a {@link BackstackManager.SavedStateStore} into which a snapshot of the backstack is written on the given executor when the state changer is detached,
+     * so that the saved instance state only needs to contain a pointer to the snapshot.
+     *
+     * If used, this method must be called before {@link BackstackDelegate#onCreate(Bundle, Object, ArrayList)}.
+     *
+     * @param snapshotStore The {@link BackstackManager.SavedStateStore} of the snapshots.
+     * @param executor      The executor on which the snapshots are written.
+     */
+    public void setSnapshotStore(BackstackManager.SavedStateStore snapshotStore, Executor executor) {
+        if(snapshotStore == null) {
+            throw new IllegalArgumentException("Specified snapshot store should not be null!");
+        }
+        if(executor == null) {
+            throw new IllegalArgumentException("Specified snapshot executor should not be null!");
+        }
+        this.snapshotStore = snapshotStore;
+        this.snapshotExecutor = executor;
+    }
+
+    /**
+     * Specifies a {@link NavigationJournal}, which records the history after each state change,
+     * so that it can be restored even if the process was killed without saving its instance state.
+     * The journal should be cleared with {@link NavigationJournal#clear()} when the Activity is finishing.
+     *
+     * If used, this method must be called before {@link BackstackDelegate#onCreate(Bundle, Object, ArrayList)}.
+     *
+     * @param navigationJournal The {@link NavigationJournal}.
+     */
+    public void setNavigationJournal(NavigationJournal navigationJournal) {
+        if(navigationJournal == null) {
+            throw new IllegalArgumentException("Specified navigation journal should not be null!");
+        }
+        this.navigationJournal = navigationJournal;
+    }
+
     private static final String HISTORY = "simplestack.HISTORY";
 
     private StateChanger stateChanger;
 
     private KeyParceler keyParceler = new DefaultKeyParceler();
     private BackstackManager.StateClearStrategy stateClearStrategy = new DefaultStateClearStrategy();
+    private BackstackManager.SavedStateStore savedStateStore = null;
+    private int storeRetainedTopKeyCount = 1;
+    private Executor savedStateStoreExecutor = null;
+    private BackstackManager.SavedStateStore snapshotStore = null;
+    private Executor snapshotExecutor = null;
+    private NavigationJournal navigationJournal = null;
 
     /**
      * Persistence tag allows you to have multiple {@link BackstackDelegate}s in the same activity.
@@ -134,6 +201,13 @@ public class BackstackDelegate {
             backstackManager = new BackstackManager();
             backstackManager.setKeyParceler(keyParceler);
             backstackManager.setStateClearStrategy(stateClearStrategy);
+            if(savedStateStore != null) {
+                backstackManager.setSavedStateStore(savedStateStore, storeRetainedTopKeyCount, savedStateStoreExecutor);
+            }
+            if(snapshotStore != null) {
+                backstackManager.setSnapshotStore(snapshotStore, snapshotExecutor);
+            }
+            backstackManager.setNavigationJournal(navigationJournal);
             backstackManager.setup(initialKeys);
             if(savedInstanceState != null) {
                 backstackManager.fromBundle(savedInstanceState.<StateBundle>getParcelable(getHistoryTag()));
@@ -214,10 +288,25 @@ public class BackstackDelegate {
 
     /**
      * The onDestroy() delegate for the Activity.
-     * Forces any pending state change to execute with {@link Backstack#executePendingStateChange()}.
+     * Forces any pending state change to execute with {@link Backstack#executePendingStateChange()},
+     * and releases the contexts of the keys, which reference the Activity.
      */
     public void onDestroy() {
         getBackstack().executePendingStateChange();
+        backstackManager.releaseContexts();
+    }
+
+    /**
+     * The onTrimMemory() delegate for the Activity.
+     * Releases the view hierarchy state of the keys below the top of the history, depending on the memory pressure.
+     *
+     * @param level the level provided by {@link android.content.ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void onTrimMemory(int level) {
+        if(backstackManager == null) {
+            throw new IllegalStateException("You can call this method only after `onCreate()`");
+        }
+        backstackManager.trimMemory(level);
     }
 
     // ----- get backstack
@@ -15,6 +15,8 @@
  */
 package com.zhuinden.simplestack;
 
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -24,9 +26,14 @@ import android.view.View;
 import com.zhuinden.statebundle.StateBundle;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * The backstack manager manages a {@link Backstack} internally, and wraps it with the ability of persisting view state and the backstack history itself.
@@ -48,8 +55,69 @@ public class BackstackManager
         void clearStatesNotIn(@NonNull Map<Object, SavedState> keyStateMap, @NonNull StateChange stateChange);
     }
 
+    /**
+     * A {@link StateClearStrategy} that keeps only the {@link SavedState}s of the keys that are retained or added by the {@link StateChange}.
+     *
+     * The restored states of other keys are dropped without decoding them, instead of being decoded before {@link StateClearStrategy#clearStatesNotIn(Map, StateChange)}.
+     * The {@link DefaultStateClearStrategy} behaves like this, but its subclasses do so only if they implement this interface.
+     */
+    public interface RetainedKeysStateClearStrategy
+            extends StateClearStrategy {
+    }
+
+    /**
+     * Specifies the storage used to keep the view hierarchy state and bundle of cold keys out of memory and out of the saved instance state.
+     * Cold keys are the keys that are not at the top of the history. The {@link FileSavedStateStore} stores them in files.
+     *
+     * While the state of a key is stored, its {@link SavedState} in the key state map has no view hierarchy state and no bundle.
+     * The state is loaded back when it is requested with {@link BackstackManager#getSavedState(Object)}.
+     */
+    public interface SavedStateStore {
+        /**
+         * Stores the data under the given handle.
+         *
+         * @param handle the unique handle of the data
+         * @param data   the marshalled state
+         * @return true if the data was stored, false if the state should be kept in memory instead.
+         */
+        boolean write(@NonNull String handle, @NonNull byte[] data);
+
+        /**
+         * Reads the data stored under the given handle.
+         *
+         * @param handle the handle of the data
+         * @return the data, or null if it cannot be read.
+         */
+        @Nullable
+        byte[] read(@NonNull String handle);
+
+        /**
+         * Deletes the data stored under the given handle.
+         *
+         * @param handle the handle of the data
+         */
+        void delete(@NonNull String handle);
+
+        /**
+         * Deletes all stored data, except the data of the given handles. Used to remove data that is no longer referenced, for example after process death.
+         *
+         * @param handles the handles of the data to keep
+         */
+        void retainAll(@NonNull Collection<String> handles);
+    }
+
+    /**
+     * The name of the system service through which the contexts created by the backstack manager provide it.
+     *
+     * @see KeyContextWrapper#getBackstackManager(Context)
+     */
+    public static final String TAG = "Backstack.MANAGER";
+
     private static final String HISTORY_TAG = "HISTORY";
     private static final String STATES_TAG = "STATES";
+    private static final String KEYS_TAG = "KEYS";
+    private static final String HISTORY_INDICES_TAG = "HISTORY_INDICES";
+    private static final String ENCODED_KEYS_TAG = "ENCODED_KEYS";
 
     static String getHistoryTag() {
         return HISTORY_TAG;
@@ -59,7 +127,20 @@ public class BackstackManager
         return STATES_TAG;
     }
 
-    private final StateChanger managedStateChanger = new StateChanger() {
+    static String getKeysTag() {
+        return KEYS_TAG;
+    }
+
+    static String getHistoryIndicesTag() {
+        return HISTORY_INDICES_TAG;
+    }
+
+    static String getEncodedKeysTag() {
+        return ENCODED_KEYS_TAG;
+    }
+
+    private class ManagedStateChanger
+            implements StateChanger, StateChanger.CancellationListener {
         @Override
         public void handleStateChange(final StateChange stateChange, final Callback completionCallback) {
             stateChanger.handleStateChange(stateChange, new Callback() {
@@ -67,15 +148,43 @@ public class BackstackManager
                 public void stateChangeComplete() {
                     completionCallback.stateChangeComplete();
                     if(!backstack.isStateChangePending()) {
+                        Backstack.Tracer tracer = backstack.getTracer();
+                        tracer.onPhaseStarted(Backstack.Tracer.PHASE_STATE_CLEAR, System.nanoTime());
+                        if(isDroppingRestoredStatesLazily(stateClearStrategy)) {
+                            clearRestoredStatesNotIn(stateChange);
+                        } else {
+                            restoreSavedStates();
+                        }
                         stateClearStrategy.clearStatesNotIn(keyStateMap, stateChange);
+                        contextCache.releaseContextsNotIn(keyStateMap, stateChange);
+                        tracer.onPhaseEnded(Backstack.Tracer.PHASE_STATE_CLEAR, System.nanoTime());
+                        if(coldStateStore != null) {
+                            coldStateStore.storeColdStates(keyStateMap, stateChange.getNewState());
+                        }
                     }
                 }
             });
         }
-    };
+
+        @Override
+        public void stateChangeCancelled(StateChange stateChange) {
+            if(stateChanger instanceof CancellationListener) {
+                ((CancellationListener) stateChanger).stateChangeCancelled(stateChange);
+            }
+        }
+    }
+
+    private final StateChanger managedStateChanger = new ManagedStateChanger();
+
+    private final KeyContextCache contextCache = new KeyContextCache(this);
+
+    private static final Backstack.Tracer NO_OP_TRACER = new Backstack.NoOpTracer();
 
     private KeyParceler keyParceler = new DefaultKeyParceler();
     private StateClearStrategy stateClearStrategy = new DefaultStateClearStrategy();
+    ColdStateStore coldStateStore = null;
+    SnapshotPersistence snapshotPersistence = null;
+    private NavigationJournal navigationJournal = null;
 
     /**
      * Specifies a custom {@link KeyParceler}, allowing key parcellation strategies to be used for turning a key into Parcelable.
@@ -112,19 +221,102 @@ public class BackstackManager
         this.stateClearStrategy = stateClearStrategy;
     }
 
+    /**
+     * Specifies a {@link SavedStateStore}, which keeps the state of keys that are not at the top of the history out of memory.
+     * The saved instance state then only contains a handle for these keys.
+     *
+     * The states are marshalled after a state change completes, and are written and deleted on the given executor, so that navigation does not wait for I/O.
+     * A state is kept in memory until its write is complete. The executor must run the tasks one at a time, in order, for example a single thread executor.
+     * A state is read on the thread of the {@link StateChanger} when it is requested, which blocks that thread while the store is read,
+     * unless the write of the state is still pending. Every {@link BackstackManager} must have its own store.
+     *
+     * If used, this method must be called before {@link BackstackManager#setup(List)} .
+     *
+     * @param savedStateStore     The {@link SavedStateStore}, or null to keep every state in memory.
+     * @param retainedTopKeyCount The number of keys at the top of the history whose state is always kept in memory.
+     * @param executor            The executor on which the states are written and deleted.
+     */
+    public void setSavedStateStore(@Nullable SavedStateStore savedStateStore, int retainedTopKeyCount, @NonNull Executor executor) {
+        if(backstack != null) {
+            throw new IllegalStateException("Saved state store should be set before calling `setup()`");
+        }
+        if(retainedTopKeyCount < 1) {
+            throw new IllegalArgumentException("At least the top key must be retained!");
+        }
+        if(executor == null) {
+            throw new IllegalArgumentException("The executor cannot be null!");
+        }
+        this.coldStateStore = savedStateStore == null ? null : new ColdStateStore(new SavedStateStoreWriter(savedStateStore, executor, SavedStateStoreWriter.PARCEL_MARSHALLER), retainedTopKeyCount);
+    }
+
+    /**
+     * Specifies a {@link SavedStateStore} into which a snapshot of the history and the saved states is written on the given executor
+     * when the state changer is detached by {@link BackstackManager#detachStateChanger()}. Only the states that were modified since the previous snapshot
+     * are marshalled on the calling thread, the rest of the snapshot is marshalled on the executor. If the snapshot of the current state is already written, then {@link BackstackManager#toBundle()}
+     * only writes the history and a pointer to the snapshot, and {@link BackstackManager#fromBundle(StateBundle)} restores the snapshot.
+     * If the snapshot cannot be read or its checksum does not match, then the state bundle is used instead.
+     *
+     * The snapshot store must not be shared with other {@link BackstackManager}s or with the store of {@link BackstackManager#setSavedStateStore(SavedStateStore, int, Executor)}.
+     *
+     * If used, this method must be called before {@link BackstackManager#setup(List)} .
+     *
+     * @param snapshotStore The {@link SavedStateStore} of the snapshots, or null to persist the state only into the state bundle.
+     * @param executor      The executor on which the snapshots are written, for example a single thread executor.
+     */
+    public void setSnapshotStore(@Nullable SavedStateStore snapshotStore, @NonNull Executor executor) {
+        if(backstack != null) {
+            throw new IllegalStateException("Snapshot store should be set before calling `setup()`");
+        }
+        if(executor == null) {
+            throw new IllegalArgumentException("The executor cannot be null!");
+        }
+        this.snapshotPersistence = snapshotStore == null ? null : new SnapshotPersistence(snapshotStore, executor, SnapshotPersistence.PARCEL_MARSHALLER);
+    }
+
+    /**
+     * Specifies a {@link NavigationJournal}, which records the history after each state change,
+     * so that it can be restored even if the process was killed without saving its instance state.
+     *
+     * If used, this method must be called before {@link BackstackManager#setup(List)} .
+     *
+     * @param navigationJournal The {@link NavigationJournal}, or null.
+     */
+    public void setNavigationJournal(@Nullable NavigationJournal navigationJournal) {
+        if(backstack != null) {
+            throw new IllegalStateException("Navigation journal should be set before calling `setup()`");
+        }
+        this.navigationJournal = navigationJournal;
+    }
+
     Backstack backstack;
 
     Map<Object, SavedState> keyStateMap = new HashMap<>();
 
+    // states restored by fromBundle() that were not requested yet
+    private Map<Object, ParcelledState> restoredStates = new HashMap<>();
+    private List<ParcelledState> undecodedStates = new ArrayList<>();
+    // the key table of the restored state bundle, from which the keys of the undecoded states are read
+    private List<Parcelable> restoredKeyTable;
+
+    private List<Object> parcelledHistorySource;
+    private ArrayList<Parcelable> parcelledHistory;
+
     StateChanger stateChanger;
 
     /**
      * Setup creates the {@link Backstack} with the specified initial keys.
      *
+     * If a {@link NavigationJournal} is set, then the journaled history is replayed, and is used instead of the initial keys
+     * (unless the backstack is restored by {@link BackstackManager#fromBundle(StateBundle)}).
+     *
      * @param initialKeys the initial keys of the backstack
      */
     public void setup(@NonNull List<?> initialKeys) {
         backstack = new Backstack(initialKeys);
+        backstack.setContextCache(contextCache);
+        if(navigationJournal != null) {
+            navigationJournal.attachTo(backstack, keyParceler);
+        }
     }
 
     /**
@@ -159,12 +351,18 @@ public class BackstackManager
 
     /**
      * Detaches the {@link StateChanger} from the {@link Backstack}. This can only be called after {@link BackstackManager#setup(List)}.
+     *
+     * If a snapshot store is set with {@link BackstackManager#setSnapshotStore(SavedStateStore, Executor)}, then the current state is submitted into it,
+     * so that it can be written before {@link BackstackManager#toBundle()} is called. The state of the views should be persisted before this call.
      */
     public void detachStateChanger() {
         checkBackstack("You must call `setup()` before calling `detachStateChanger().`");
         if(backstack.hasStateChanger()) {
             backstack.removeStateChanger();
         }
+        if(snapshotPersistence != null) {
+            snapshotPersistence.submit(createSnapshot());
+        }
     }
 
     /**
@@ -189,10 +387,53 @@ public class BackstackManager
         if(key == null) {
             throw new IllegalArgumentException("Key cannot be null!");
         }
-        if(!keyStateMap.containsKey(key)) {
-            keyStateMap.put(key, SavedState.builder().setKey(key).build());
+        SavedState savedState = keyStateMap.get(key);
+        if(savedState == null) {
+            savedState = restoreSavedState(key);
+        }
+        if(savedState == null) {
+            savedState = SavedState.builder().setKey(key).build();
+            keyStateMap.put(key, savedState);
+        } else if(savedState.storeHandle != null) {
+            loadStoredState(key, savedState);
+        }
+        return savedState;
+    }
+
+    /**
+     * Returns the {@link KeyContextWrapper} of the given key, which is also used by {@link StateChange#createContext(Context, Object)}.
+     * The context and its {@link android.view.LayoutInflater} are reused as long as the base context is the same,
+     * and the key is in the history or its {@link SavedState} is retained by the {@link StateClearStrategy}.
+     *
+     * @param base the context used as base for the context wrapper
+     * @param key  the key the context is associated with
+     * @return the context of the key
+     */
+    @NonNull
+    public Context createContext(@NonNull Context base, @NonNull Object key) {
+        if(base == null) {
+            throw new IllegalArgumentException("Base context cannot be null!");
+        }
+        if(key == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+        return contextCache.getContext(base, key);
+    }
+
+    /**
+     * Releases the cached contexts of the keys. It should be called when the Activity whose context was used as base is destroyed.
+     */
+    public void releaseContexts() {
+        contextCache.clear();
+    }
+
+    private void loadStoredState(Object key, SavedState savedState) {
+        if(coldStateStore != null) {
+            coldStateStore.load(key, savedState);
+        } else {
+            // the state was stored by a previous process that had a saved state store
+            savedState.load(new SparseArray<Parcelable>(), null);
         }
-        return keyStateMap.get(key);
     }
 
     // ----- viewstate persistence
@@ -205,6 +446,8 @@ public class BackstackManager
      */
     public void persistViewToState(@Nullable View view) {
         if(view != null) {
+            Backstack.Tracer tracer = getTracer();
+            tracer.onPhaseStarted(Backstack.Tracer.PHASE_PERSIST, System.nanoTime());
             Object key = KeyContextWrapper.getKey(view.getContext());
             if(key == null) {
                 throw new IllegalArgumentException("The view [" + view + "] contained no key!");
@@ -220,7 +463,15 @@ public class BackstackManager
                     .setViewHierarchyState(viewHierarchyState) //
                     .setBundle(bundle) //
                     .build();
-            keyStateMap.put(key, previousSavedState);
+            ParcelledState restoredState = restoredStates.remove(key);
+            if(restoredState != null) {
+                deleteStoredState(restoredState);
+            }
+            SavedState replacedSavedState = keyStateMap.put(key, previousSavedState);
+            if(replacedSavedState != null && coldStateStore != null) {
+                coldStateStore.onStateReplaced(key, replacedSavedState);
+            }
+            tracer.onPhaseEnded(Backstack.Tracer.PHASE_PERSIST, System.nanoTime());
         }
     }
 
@@ -233,48 +484,253 @@ public class BackstackManager
         if(view == null) {
             throw new IllegalArgumentException("You cannot restore state into null view!");
         }
+        Backstack.Tracer tracer = getTracer();
+        tracer.onPhaseStarted(Backstack.Tracer.PHASE_RESTORE, System.nanoTime());
         Object newKey = KeyContextWrapper.getKey(view.getContext());
         SavedState savedState = getSavedState(newKey);
-        view.restoreHierarchyState(savedState.getViewHierarchyState());
+        view.restoreHierarchyState(savedState.viewHierarchyState);
         if(view instanceof Bundleable) {
             ((Bundleable) view).fromBundle(savedState.getBundle());
         }
+        tracer.onPhaseEnded(Backstack.Tracer.PHASE_RESTORE, System.nanoTime());
+    }
+
+    // ----- memory pressure
+
+    /**
+     * Releases the view hierarchy state of the keys below the top of the history, depending on the memory pressure.
+     * The {@link StateBundle} of each {@link SavedState} is kept.
+     *
+     * At {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_LOW} and {@link ComponentCallbacks2#TRIM_MEMORY_BACKGROUND}, the view hierarchy state is kept only for the top two keys.
+     * At {@link ComponentCallbacks2#TRIM_MEMORY_RUNNING_CRITICAL}, {@link ComponentCallbacks2#TRIM_MEMORY_MODERATE} and {@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE},
+     * it is kept only for the top key. Other levels do not release any state.
+     *
+     * @param level the level provided by {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void trimMemory(int level) {
+        checkBackstack("You must call `setup()` before calling `trimMemory()`");
+        int retainedTopKeyCount = getRetainedViewStateCount(level);
+        if(retainedTopKeyCount == Integer.MAX_VALUE) {
+            return;
+        }
+        List<Object> history = backstack.getHistory();
+        if(history.isEmpty()) {
+            // the backstack is not initialized yet
+            history = backstack.getInitialParameters();
+        }
+        List<Object> topKeys = history.subList(Math.max(0, history.size() - retainedTopKeyCount), history.size());
+        for(SavedState savedState : keyStateMap.values()) {
+            if(!topKeys.contains(savedState.getKey()) && clearViewHierarchyState(savedState.viewHierarchyState)) {
+                savedState.onModified();
+            }
+        }
+        for(Map.Entry<Object, ParcelledState> restoredState : restoredStates.entrySet()) {
+            if(!topKeys.contains(restoredState.getKey())) {
+                ParcelledState parcelledState = restoredState.getValue();
+                if(clearViewHierarchyState(parcelledState.viewHierarchyState)) {
+                    parcelledState.onModified();
+                }
+            }
+        }
+        for(ParcelledState parcelledState : undecodedStates) {
+            if(clearViewHierarchyState(parcelledState.viewHierarchyState)) {
+                parcelledState.onModified();
+            }
+        }
+    }
+
+    static int getRetainedViewStateCount(int level) {
+        switch(level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                return 2;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                return 1;
+            default:
+                return level > ComponentCallbacks2.TRIM_MEMORY_COMPLETE ? 1 : Integer.MAX_VALUE;
+        }
+    }
+
+    private static boolean clearViewHierarchyState(SparseArray<Parcelable> viewHierarchyState) {
+        // cleared in place like in BudgetedStateClearStrategy, states that are kept in the SavedStateStore have no view hierarchy state in memory
+        if(viewHierarchyState != null && viewHierarchyState.size() > 0) {
+            viewHierarchyState.clear();
+            return true;
+        }
+        return false;
+    }
+
+    private Backstack.Tracer getTracer() {
+        return backstack == null ? NO_OP_TRACER : backstack.getTracer();
     }
 
     /**
      * Restores the BackstackManager from a StateBundle.
      * This can only be called after {@link BackstackManager#setup(List)}.
      *
+     * Only the history is decoded immediately. The keys that only have a state are read from the key table when their state is decoded.
+     * A {@link SavedState} is decoded when it is first requested,
+     * or when the {@link StateClearStrategy} runs (states not in the history are dropped without decoding them by the {@link DefaultStateClearStrategy} and by a {@link RetainedKeysStateClearStrategy}).
+     *
+     * If the state bundle points to a snapshot of the snapshot store, then the snapshot is restored if it is consistent.
+     *
      * @param stateBundle the state bundle obtained via {@link BackstackManager#toBundle()}
      */
     @Override
     public void fromBundle(@Nullable StateBundle stateBundle) {
         checkBackstack("A backstack must be set up before it is restored!");
+        if(stateBundle != null && snapshotPersistence != null) {
+            StateBundle snapshotBundle = snapshotPersistence.read(stateBundle);
+            if(snapshotBundle != null) {
+                stateBundle = snapshotBundle;
+            }
+        }
         if(stateBundle != null) {
             List<Object> keys = new ArrayList<>();
-            List<Parcelable> parcelledKeys = stateBundle.getParcelableArrayList(getHistoryTag());
-            if(parcelledKeys != null) {
-                for(Parcelable parcelledKey : parcelledKeys) {
-                    keys.add(keyParceler.fromParcelable(parcelledKey));
+            Map<Parcelable, Object> decodedKeys = new HashMap<>();
+            List<Parcelable> keyTable = stateBundle.getParcelableArrayList(getKeysTag());
+            byte[] encodedKeys = stateBundle.getByteArray(getEncodedKeysTag());
+            if(encodedKeys != null && keyParceler instanceof CodecKeyParceler) {
+                keyTable = ((CodecKeyParceler) keyParceler).decodeAll(encodedKeys);
+            }
+            BitSet historyKeyIndices = new BitSet();
+            if(keyTable != null) {
+                int[] historyIndices = stateBundle.getIntArray(getHistoryIndicesTag());
+                if(historyIndices != null) {
+                    for(int keyIndex : historyIndices) {
+                        decodeKey(keyTable.get(keyIndex), keys, decodedKeys);
+                        historyKeyIndices.set(keyIndex);
+                    }
+                }
+                restoredKeyTable = keyTable;
+            } else {
+                // format without key table: the history contains the parcelled keys
+                List<Parcelable> parcelledKeys = stateBundle.getParcelableArrayList(getHistoryTag());
+                if(parcelledKeys != null) {
+                    for(Parcelable parcelledKey : parcelledKeys) {
+                        decodeKey(parcelledKey, keys, decodedKeys);
+                    }
                 }
             }
             if(!keys.isEmpty()) {
                 backstack.setInitialParameters(keys);
             }
+            // states are decoded only when they are requested, see restoreSavedState()
             List<ParcelledState> savedStates = stateBundle.getParcelableArrayList(getStatesTag());
             if(savedStates != null) {
                 for(ParcelledState parcelledState : savedStates) {
-                    SavedState savedState = SavedState.builder()
-                            .setKey(keyParceler.fromParcelable(parcelledState.parcelableKey))
-                            .setViewHierarchyState(parcelledState.viewHierarchyState)
-                            .setBundle(parcelledState.bundle)
-                            .build();
-                    keyStateMap.put(savedState.getKey(), savedState);
+                    if(coldStateStore != null) {
+                        coldStateStore.onStateRestored(parcelledState);
+                    }
+                    if(keyTable != null && parcelledState.keyIndex != ParcelledState.NO_KEY_INDEX) {
+                        if(!historyKeyIndices.get(parcelledState.keyIndex)) {
+                            // the key is not in the history, so it is read from the key table when the state is decoded
+                            undecodedStates.add(parcelledState);
+                            continue;
+                        }
+                        parcelledState.parcelableKey = keyTable.get(parcelledState.keyIndex);
+                    }
+                    Object key = decodedKeys.get(parcelledState.parcelableKey);
+                    if(key != null) {
+                        restoredStates.put(key, parcelledState);
+                    } else {
+                        undecodedStates.add(parcelledState);
+                    }
                 }
             }
         }
     }
 
+    private void decodeKey(Parcelable parcelledKey, List<Object> keys, Map<Parcelable, Object> decodedKeys) {
+        Object key = decodedKeys.get(parcelledKey);
+        if(key == null) {
+            key = keyParceler.fromParcelable(parcelledKey);
+            decodedKeys.put(parcelledKey, key);
+        }
+        keys.add(key);
+    }
+
+    private Parcelable getParcelableKey(ParcelledState parcelledState) {
+        if(parcelledState.parcelableKey == null) {
+            parcelledState.parcelableKey = restoredKeyTable.get(parcelledState.keyIndex);
+        }
+        return parcelledState.parcelableKey;
+    }
+
+    private void decodeRestoredKeys() {
+        for(ParcelledState parcelledState : undecodedStates) {
+            Object key = keyParceler.fromParcelable(getParcelableKey(parcelledState));
+            if(keyStateMap.containsKey(key) || restoredStates.containsKey(key)) {
+                deleteStoredState(parcelledState);
+            } else {
+                restoredStates.put(key, parcelledState);
+            }
+        }
+        undecodedStates.clear();
+    }
+
+    @Nullable
+    private SavedState restoreSavedState(Object key) {
+        if(!undecodedStates.isEmpty() && !restoredStates.containsKey(key)) {
+            decodeRestoredKeys();
+        }
+        ParcelledState parcelledState = restoredStates.remove(key);
+        if(parcelledState == null) {
+            return null;
+        }
+        SavedState.Builder builder = SavedState.builder()
+                .setKey(key)
+                .setBundle(parcelledState.bundle);
+        if(parcelledState.viewHierarchyState != null) {
+            builder.setViewHierarchyState(parcelledState.viewHierarchyState);
+        }
+        SavedState savedState = builder.build();
+        savedState.parcelledKey = parcelledState.parcelableKey;
+        if(parcelledState.storeHandle != null) {
+            savedState.store(parcelledState.storeHandle);
+            if(coldStateStore != null) {
+                coldStateStore.onStateDecoded(key, savedState);
+            }
+        }
+        savedState.parcelledState = parcelledState;
+        keyStateMap.put(key, savedState);
+        return savedState;
+    }
+
+    private void restoreSavedStates() {
+        decodeRestoredKeys();
+        for(Object key : new ArrayList<>(restoredStates.keySet())) {
+            restoreSavedState(key);
+        }
+    }
+
+    // a subclass of the default strategy can retain other keys, so it has to opt in explicitly
+    static boolean isDroppingRestoredStatesLazily(StateClearStrategy stateClearStrategy) {
+        return stateClearStrategy.getClass() == DefaultStateClearStrategy.class || stateClearStrategy instanceof RetainedKeysStateClearStrategy;
+    }
+
+    private void clearRestoredStatesNotIn(StateChange stateChange) {
+        decodeRestoredKeys();
+        Set<Object> retainedKeys = stateChange.getRetainedKeys();
+        Set<Object> addedKeys = stateChange.getAddedKeys();
+        Iterator<Map.Entry<Object, ParcelledState>> restoredStateIterator = restoredStates.entrySet().iterator();
+        while(restoredStateIterator.hasNext()) {
+            Map.Entry<Object, ParcelledState> restoredState = restoredStateIterator.next();
+            if(!retainedKeys.contains(restoredState.getKey()) && !addedKeys.contains(restoredState.getKey())) {
+                deleteStoredState(restoredState.getValue());
+                restoredStateIterator.remove();
+            }
+        }
+    }
+
+    private void deleteStoredState(ParcelledState parcelledState) {
+        if(coldStateStore != null) {
+            coldStateStore.deleteRestoredState(parcelledState);
+        }
+    }
+
     private void checkBackstack(String message) {
         if(backstack == null) {
             throw new IllegalStateException(message);
@@ -284,27 +740,106 @@ public class BackstackManager
     /**
      * Persists the backstack history and view state into a StateBundle.
      *
+     * The parcelled keys and states are cached, so only the states that were modified since the previous call are parcelled again.
+     * Every key is parcelled once into a key table, the history and the states refer to the keys by their index in this table.
+     * If the {@link KeyParceler} is a {@link CodecKeyParceler}, the key table is written as a single byte array.
+     *
+     * If a snapshot store is set with {@link BackstackManager#setSnapshotStore(SavedStateStore, Executor)}, and the current state is already written into it,
+     * then the state bundle contains only the history and a pointer to the snapshot.
+     *
      * @return the state bundle
      */
     @NonNull
     @Override
     public StateBundle toBundle() {
-        StateBundle stateBundle = new StateBundle();
-        ArrayList<Parcelable> history = new ArrayList<>();
-        for(Object key : backstack.getHistory()) {
-            history.add(keyParceler.toParcelable(key));
+        BackstackSnapshot snapshot = createSnapshot();
+        if(snapshotPersistence != null) {
+            return snapshotPersistence.toBundle(snapshot);
+        }
+        return snapshot.toStateBundle();
+    }
+
+    private BackstackSnapshot createSnapshot() {
+        ArrayList<Parcelable> keyTable = new ArrayList<>();
+        Map<Object, Integer> keyIndices = new HashMap<>();
+
+        List<Object> currentHistory = backstack.getHistory();
+        if(parcelledHistory == null || parcelledHistorySource != currentHistory) {
+            ArrayList<Parcelable> history = new ArrayList<>(currentHistory.size());
+            for(Object key : currentHistory) {
+                SavedState savedState = keyStateMap.get(key);
+                ParcelledState restoredState = restoredStates.get(key);
+                if(savedState != null) {
+                    history.add(toParcelledKey(savedState));
+                } else if(restoredState != null) {
+                    history.add(restoredState.parcelableKey);
+                } else {
+                    history.add(keyParceler.toParcelable(key));
+                }
+            }
+            parcelledHistorySource = currentHistory;
+            parcelledHistory = history;
+        }
+        int[] historyIndices = new int[currentHistory.size()];
+        for(int i = 0, size = currentHistory.size(); i < size; i++) {
+            historyIndices[i] = addToKeyTable(currentHistory.get(i), parcelledHistory.get(i), keyTable, keyIndices);
         }
-        stateBundle.putParcelableArrayList(getHistoryTag(), history);
+        int historyKeyCount = keyTable.size();
 
-        ArrayList<ParcelledState> states = new ArrayList<>();
+        int stateCount = keyStateMap.size() + restoredStates.size() + undecodedStates.size();
+        ArrayList<ParcelledState> states = new ArrayList<>(stateCount);
+        int[] stateVersions = new int[stateCount];
+        for(Map.Entry<Object, ParcelledState> restoredState : restoredStates.entrySet()) {
+            ParcelledState parcelledState = restoredState.getValue();
+            int keyIndex = addToKeyTable(restoredState.getKey(), parcelledState.parcelableKey, keyTable, keyIndices);
+            parcelledState = parcelledState.withKeyIndex(keyIndex);
+            restoredState.setValue(parcelledState);
+            stateVersions[states.size()] = parcelledState.version;
+            states.add(parcelledState);
+        }
+        for(int i = 0, size = undecodedStates.size(); i < size; i++) {
+            ParcelledState parcelledState = undecodedStates.get(i);
+            Parcelable parcelableKey = getParcelableKey(parcelledState);
+            int keyIndex = addToKeyTable(parcelableKey, parcelableKey, keyTable, keyIndices);
+            parcelledState = parcelledState.withKeyIndex(keyIndex);
+            undecodedStates.set(i, parcelledState);
+            stateVersions[states.size()] = parcelledState.version;
+            states.add(parcelledState);
+        }
         for(SavedState savedState : keyStateMap.values()) {
-            ParcelledState parcelledState = new ParcelledState();
-            parcelledState.parcelableKey = keyParceler.toParcelable(savedState.getKey());
-            parcelledState.viewHierarchyState = savedState.getViewHierarchyState();
-            parcelledState.bundle = savedState.getBundle();
+            int keyIndex = addToKeyTable(savedState.getKey(), toParcelledKey(savedState), keyTable, keyIndices);
+            ParcelledState parcelledState = savedState.parcelledState;
+            if(parcelledState == null) {
+                parcelledState = new ParcelledState();
+                parcelledState.parcelableKey = toParcelledKey(savedState);
+                parcelledState.keyIndex = keyIndex;
+                parcelledState.viewHierarchyState = savedState.viewHierarchyState;
+                parcelledState.bundle = savedState.bundle;
+                parcelledState.storeHandle = savedState.storeHandle;
+            } else {
+                parcelledState = parcelledState.withKeyIndex(keyIndex);
+            }
+            savedState.parcelledState = parcelledState;
+            stateVersions[states.size()] = savedState.version;
             states.add(parcelledState);
         }
-        stateBundle.putParcelableArrayList(getStatesTag(), states);
-        return stateBundle;
+        return new BackstackSnapshot(keyParceler, keyTable, historyKeyCount, historyIndices, states, stateVersions);
+    }
+
+    private static int addToKeyTable(Object key, Parcelable parcelledKey, List<Parcelable> keyTable, Map<Object, Integer> keyIndices) {
+        Integer keyIndex = keyIndices.get(key);
+        if(keyIndex == null) {
+            keyIndex = keyTable.size();
+            keyTable.add(parcelledKey);
+            keyIndices.put(key, keyIndex);
+        }
+        return keyIndex;
+    }
+
+    private Parcelable toParcelledKey(SavedState savedState) {
+        if(savedState.parcelledKey == null) {
+            savedState.parcelledKey = keyParceler.toParcelable(savedState.getKey());
+        }
+        return savedState.parcelledKey;
     }
 }
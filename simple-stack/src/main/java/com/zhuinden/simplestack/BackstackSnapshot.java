@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.os.Parcelable;
+
+import com.zhuinden.statebundle.StateBundle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the history and the parcelled states of the {@link BackstackManager}, from which its state bundle is created.
+ *
+ * The keys of the history are at the start of the key table, followed by the keys that only have a state.
+ */
+final class BackstackSnapshot {
+    private final KeyParceler keyParceler;
+
+    final List<Parcelable> keyTable;
+    final int historyKeyCount;
+    final int[] historyIndices;
+    final List<ParcelledState> states;
+    // the version of each state when the snapshot was created, as the states can be modified in place
+    final int[] stateVersions;
+
+    BackstackSnapshot(KeyParceler keyParceler, List<Parcelable> keyTable, int historyKeyCount, int[] historyIndices, List<ParcelledState> states, int[] stateVersions) {
+        this.keyParceler = keyParceler;
+        this.keyTable = keyTable;
+        this.historyKeyCount = historyKeyCount;
+        this.historyIndices = historyIndices;
+        this.states = states;
+        this.stateVersions = stateVersions;
+    }
+
+    /**
+     * Creates the state bundle that contains the key table, the history and the states.
+     */
+    StateBundle toStateBundle() {
+        StateBundle stateBundle = toHistoryBundle(keyTable.size());
+        stateBundle.putParcelableArrayList(BackstackManager.getStatesTag(), new ArrayList<>(states));
+        return stateBundle;
+    }
+
+    /**
+     * Creates a state bundle that contains the first keys of the key table and the history, but not the states.
+     * As the parcelled keys are not modified, it can be marshalled on any thread.
+     */
+    StateBundle toHistoryBundle(int keyCount) {
+        StateBundle stateBundle = new StateBundle();
+        ArrayList<Parcelable> keys = new ArrayList<>(keyTable.subList(0, keyCount));
+        if(keyParceler instanceof CodecKeyParceler) {
+            stateBundle.putByteArray(BackstackManager.getEncodedKeysTag(), ((CodecKeyParceler) keyParceler).encodeAll(keys));
+        } else {
+            stateBundle.putParcelableArrayList(BackstackManager.getKeysTag(), keys);
+        }
+        stateBundle.putIntArray(BackstackManager.getHistoryIndicesTag(), historyIndices);
+        return stateBundle;
+    }
+
+    /**
+     * Returns whether the snapshot has the same content. The parcelled keys and states are cached by the {@link BackstackManager},
+     * so they are compared by identity, and the content of the states by their version.
+     */
+    boolean isSameAs(BackstackSnapshot other) {
+        return historyKeyCount == other.historyKeyCount //
+                && Arrays.equals(historyIndices, other.historyIndices) //
+                && Arrays.equals(stateVersions, other.stateVersions) //
+                && isSameList(keyTable, other.keyTable) //
+                && isSameList(states, other.states);
+    }
+
+    private static boolean isSameList(List<?> first, List<?> second) {
+        if(first.size() != second.size()) {
+            return false;
+        }
+        for(int i = 0, size = first.size(); i < size; i++) {
+            if(first.get(i) != second.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
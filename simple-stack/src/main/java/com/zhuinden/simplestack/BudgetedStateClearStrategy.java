@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link BackstackManager.StateClearStrategy} that limits the estimated parcelled size of the retained {@link SavedState}s.
+ *
+ * First, the states of keys that are no longer in the history are cleared, like in {@link DefaultStateClearStrategy}.
+ * Then, while the total size exceeds the budget, the view hierarchy state of the least recently visited keys is cleared,
+ * and if that is not enough, their {@link SavedState} is evicted entirely. The states of the top keys of the history are always kept intact.
+ *
+ * A key is visited when it becomes the top of the history.
+ */
+public class BudgetedStateClearStrategy
+        implements BackstackManager.StateClearStrategy {
+    /**
+     * Estimates the parcelled size of a {@link SavedState}.
+     */
+    public interface SizeEstimator {
+        /**
+         * Estimates the parcelled size of the saved state.
+         *
+         * @param savedState the saved state
+         * @return the estimated size in bytes
+         */
+        int estimateSize(@NonNull SavedState savedState);
+    }
+
+    /**
+     * Estimates the size of a {@link SavedState} by writing its view hierarchy state and bundle into a {@link Parcel}.
+     */
+    public static class ParcelSizeEstimator
+            implements SizeEstimator {
+        @Override
+        public int estimateSize(@NonNull SavedState savedState) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                // noinspection unchecked
+                SparseArray<Object> sparseArray = (SparseArray) savedState.viewHierarchyState;
+                parcel.writeSparseArray(sparseArray);
+                parcel.writeParcelable(savedState.bundle, 0);
+                return parcel.dataSize();
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+
+    private static class Entry {
+        SavedState savedState;
+        SparseArray<Parcelable> viewHierarchyState;
+        int version;
+        int size;
+        long lastVisited;
+    }
+
+    private static final Comparator<Map.Entry<Object, Entry>> LEAST_RECENTLY_VISITED_FIRST = new Comparator<Map.Entry<Object, Entry>>() {
+        @Override
+        public int compare(Map.Entry<Object, Entry> first, Map.Entry<Object, Entry> second) {
+            long firstVisited = first.getValue().lastVisited;
+            long secondVisited = second.getValue().lastVisited;
+            return firstVisited < secondVisited ? -1 : (firstVisited == secondVisited ? 0 : 1);
+        }
+    };
+
+    private final DefaultStateClearStrategy defaultStateClearStrategy = new DefaultStateClearStrategy();
+
+    private final int byteBudget;
+    private final int retainedTopKeyCount;
+    private final SizeEstimator sizeEstimator;
+
+    private final Map<Object, Entry> entries = new HashMap<>();
+    private long visitCount = 0;
+
+    private int retainedBytes = 0;
+    private int compactionCount = 0;
+    private int evictionCount = 0;
+
+    /**
+     * Creates the strategy, estimating sizes with a {@link ParcelSizeEstimator}.
+     *
+     * @param byteBudget          the maximum total estimated size of the retained states
+     * @param retainedTopKeyCount the number of keys at the top of the history whose state is never cleared
+     */
+    public BudgetedStateClearStrategy(int byteBudget, int retainedTopKeyCount) {
+        this(byteBudget, retainedTopKeyCount, new ParcelSizeEstimator());
+    }
+
+    /**
+     * Creates the strategy.
+     *
+     * @param byteBudget          the maximum total estimated size of the retained states
+     * @param retainedTopKeyCount the number of keys at the top of the history whose state is never cleared
+     * @param sizeEstimator       the estimator of the size of a state
+     */
+    public BudgetedStateClearStrategy(int byteBudget, int retainedTopKeyCount, @NonNull SizeEstimator sizeEstimator) {
+        if(byteBudget < 0) {
+            throw new IllegalArgumentException("Byte budget cannot be negative!");
+        }
+        if(retainedTopKeyCount < 1) {
+            throw new IllegalArgumentException("At least the top key must be retained!");
+        }
+        if(sizeEstimator == null) {
+            throw new IllegalArgumentException("Size estimator cannot be null!");
+        }
+        this.byteBudget = byteBudget;
+        this.retainedTopKeyCount = retainedTopKeyCount;
+        this.sizeEstimator = sizeEstimator;
+    }
+
+    @Override
+    public void clearStatesNotIn(@NonNull Map<Object, SavedState> keyStateMap, @NonNull StateChange stateChange) {
+        defaultStateClearStrategy.clearStatesNotIn(keyStateMap, stateChange);
+
+        Iterator<Object> keyIterator = entries.keySet().iterator();
+        while(keyIterator.hasNext()) {
+            if(!keyStateMap.containsKey(keyIterator.next())) {
+                keyIterator.remove();
+            }
+        }
+        int totalBytes = 0;
+        for(Map.Entry<Object, SavedState> keyState : keyStateMap.entrySet()) {
+            Entry entry = entries.get(keyState.getKey());
+            if(entry == null) {
+                entry = new Entry();
+                entries.put(keyState.getKey(), entry);
+            }
+            SavedState savedState = keyState.getValue();
+            if(entry.savedState != savedState || entry.version != savedState.version) {
+                measure(entry, savedState);
+            }
+            totalBytes += entry.size;
+        }
+        Entry topEntry = entries.get(stateChange.topNewState());
+        if(topEntry != null) {
+            topEntry.lastVisited = ++visitCount;
+        }
+        if(totalBytes > byteBudget) {
+            totalBytes = trim(keyStateMap, stateChange.getNewState(), totalBytes);
+        }
+        retainedBytes = totalBytes;
+    }
+
+    private void measure(Entry entry, SavedState savedState) {
+        entry.savedState = savedState;
+        entry.size = sizeEstimator.estimateSize(savedState);
+        // read after the estimate, as a custom estimator can mark the state as modified
+        entry.viewHierarchyState = savedState.viewHierarchyState;
+        entry.version = savedState.version;
+    }
+
+    private int trim(Map<Object, SavedState> keyStateMap, List<Object> newState, int totalBytes) {
+        List<Object> topKeys = newState.subList(Math.max(0, newState.size() - retainedTopKeyCount), newState.size());
+        List<Map.Entry<Object, Entry>> candidates = new ArrayList<>(entries.size());
+        for(Map.Entry<Object, Entry> entry : entries.entrySet()) {
+            if(!topKeys.contains(entry.getKey())) {
+                candidates.add(entry);
+            }
+        }
+        Collections.sort(candidates, LEAST_RECENTLY_VISITED_FIRST);
+        for(int i = 0, size = candidates.size(); i < size && totalBytes > byteBudget; i++) {
+            Entry entry = candidates.get(i).getValue();
+            SparseArray<Parcelable> viewHierarchyState = entry.viewHierarchyState;
+            if(viewHierarchyState != null && viewHierarchyState.size() > 0) {
+                viewHierarchyState.clear();
+                entry.savedState.onModified();
+                totalBytes -= entry.size;
+                measure(entry, entry.savedState);
+                totalBytes += entry.size;
+                compactionCount++;
+            }
+        }
+        for(int i = 0, size = candidates.size(); i < size && totalBytes > byteBudget; i++) {
+            Object key = candidates.get(i).getKey();
+            totalBytes -= entries.remove(key).size;
+            keyStateMap.remove(key);
+            evictionCount++;
+        }
+        return totalBytes;
+    }
+
+    /**
+     * Returns the total estimated size of the states retained after the last state change.
+     *
+     * @return the retained bytes
+     */
+    public int getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * Returns how many times the view hierarchy state of a key was cleared to fit in the budget.
+     *
+     * @return the compaction count
+     */
+    public int getCompactionCount() {
+        return compactionCount;
+    }
+
+    /**
+     * Returns how many {@link SavedState}s were evicted to fit in the budget.
+     *
+     * @return the eviction count
+     */
+    public int getEvictionCount() {
+        return evictionCount;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link KeyParceler} that writes keys into a compact byte array using a {@link KeyCodec} registered for each type of key.
+ * Keys do not need to be Parcelable, and are decoded without reflection.
+ *
+ * Every codec has a type id, which is written before the key. Type ids must not change between versions of the app.
+ * A codec registered for a class is also used for its subclasses, such as the generated implementations of AutoValue keys.
+ *
+ * If used with {@link BackstackManager}, every key of the saved state is written into a single byte array, sharing repeated strings.
+ */
+public class CodecKeyParceler
+        implements KeyParceler {
+    static class Registration {
+        final int typeId;
+        final KeyCodec<?> codec;
+
+        Registration(int typeId, KeyCodec<?> codec) {
+            this.typeId = typeId;
+            this.codec = codec;
+        }
+    }
+
+    private final Map<Class<?>, Registration> registrationsByType;
+    private final Map<Integer, KeyCodec<?>> codecsByTypeId;
+
+    private CodecKeyParceler(Builder builder) {
+        this.registrationsByType = new ConcurrentHashMap<>(builder.registrationsByType);
+        this.codecsByTypeId = new HashMap<>(builder.codecsByTypeId);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * A builder class that allows registering the codecs of the {@link CodecKeyParceler}.
+     */
+    public static class Builder {
+        private final Map<Class<?>, Registration> registrationsByType = new HashMap<>();
+        private final Map<Integer, KeyCodec<?>> codecsByTypeId = new HashMap<>();
+
+        Builder() {
+        }
+
+        /**
+         * Registers the codec of a type of key.
+         *
+         * @param typeId  the unique, non-negative id of the type
+         * @param keyType the class of the key
+         * @param codec   the codec
+         * @param <T>     the type of the key
+         * @return the builder
+         */
+        public <T> Builder register(int typeId, @NonNull Class<T> keyType, @NonNull KeyCodec<? super T> codec) {
+            if(typeId < 0) {
+                throw new IllegalArgumentException("Type id cannot be negative!");
+            }
+            if(keyType == null) {
+                throw new IllegalArgumentException("Key type cannot be null!");
+            }
+            if(codec == null) {
+                throw new IllegalArgumentException("Codec cannot be null!");
+            }
+            if(codecsByTypeId.containsKey(typeId)) {
+                throw new IllegalArgumentException("Type id [" + typeId + "] is already registered!");
+            }
+            if(registrationsByType.containsKey(keyType)) {
+                throw new IllegalArgumentException("Key type [" + keyType + "] is already registered!");
+            }
+            registrationsByType.put(keyType, new Registration(typeId, codec));
+            codecsByTypeId.put(typeId, codec);
+            return this;
+        }
+
+        public CodecKeyParceler build() {
+            return new CodecKeyParceler(this);
+        }
+    }
+
+    Registration getRegistration(Object key) {
+        Class<?> keyType = key.getClass();
+        Registration registration = registrationsByType.get(keyType);
+        if(registration == null) {
+            // generated subclasses (for example AutoValue) use the codec registered for their abstract key type
+            for(Class<?> superType = keyType.getSuperclass(); superType != null && registration == null; superType = superType.getSuperclass()) {
+                registration = registrationsByType.get(superType);
+            }
+            if(registration == null) {
+                throw new IllegalArgumentException("No codec is registered for key type [" + keyType + "]!");
+            }
+            registrationsByType.put(keyType, registration);
+        }
+        return registration;
+    }
+
+    KeyCodec<?> getCodec(int typeId) {
+        KeyCodec<?> codec = codecsByTypeId.get(typeId);
+        if(codec == null) {
+            throw new IllegalStateException("No codec is registered for type id [" + typeId + "]!");
+        }
+        return codec;
+    }
+
+    @Override
+    public Parcelable toParcelable(Object object) {
+        if(object == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+        getRegistration(object);
+        return new EncodedKey(this, object);
+    }
+
+    @Override
+    public Object fromParcelable(Parcelable parcelable) {
+        EncodedKey encodedKey = (EncodedKey) parcelable;
+        if(encodedKey.key == null) {
+            encodedKey.key = decode(encodedKey.data);
+        }
+        return encodedKey.key;
+    }
+
+    byte[] encode(Object key) {
+        KeyEncoder encoder = new KeyEncoder(this);
+        encoder.writeKey(key);
+        return encoder.toByteArray();
+    }
+
+    Object decode(byte[] data) {
+        return new KeyDecoder(this, data).readKey();
+    }
+
+    byte[] encodeAll(List<Parcelable> parcelledKeys) {
+        KeyEncoder encoder = new KeyEncoder(this);
+        encoder.writeCount(parcelledKeys.size());
+        for(Parcelable parcelledKey : parcelledKeys) {
+            encoder.writeKey(fromParcelable(parcelledKey));
+        }
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Returns the keys written by {@link CodecKeyParceler#encodeAll(List)}. A key is decoded when it is first requested from the list.
+     */
+    List<Parcelable> decodeAll(byte[] data) {
+        return new EncodedKeyTable(this, data);
+    }
+
+    // the keys are decoded in order, as a key can refer to the strings of the keys before it
+    private static final class EncodedKeyTable
+            extends AbstractList<Parcelable> {
+        private final CodecKeyParceler keyParceler;
+        private final KeyDecoder decoder;
+        private final int count;
+        private final List<Parcelable> decodedKeys;
+
+        EncodedKeyTable(CodecKeyParceler keyParceler, byte[] data) {
+            this.keyParceler = keyParceler;
+            this.decoder = new KeyDecoder(keyParceler, data);
+            this.count = decoder.readCount();
+            this.decodedKeys = new ArrayList<>(count);
+        }
+
+        @Override
+        public Parcelable get(int index) {
+            if(index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Index [" + index + "] is out of bounds of the key table of size [" + count + "]!");
+            }
+            while(decodedKeys.size() <= index) {
+                decodedKeys.add(new EncodedKey(keyParceler, decoder.readKey()));
+            }
+            return decodedKeys.get(index);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.os.Parcelable;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Keeps the state of the cold keys of the {@link BackstackManager} in its {@link BackstackManager.SavedStateStore}.
+ * Cold keys are the keys that are not at the top of the history.
+ *
+ * After a state change, the states of the cold keys are written by the {@link SavedStateStoreWriter}.
+ * A state is released from memory after a later state change if its write is done and the state was not modified since.
+ * The handle of a state that is released from memory is kept in its {@link SavedState}, until the state is loaded back.
+ */
+final class ColdStateStore {
+    private final SavedStateStoreWriter savedStateStoreWriter;
+    private final int retainedTopKeyCount;
+
+    private final Map<Object, String> storeHandles = new HashMap<>();
+    private final Map<Object, SavedStateStoreWriter.PendingWrite> pendingWrites = new HashMap<>();
+    // the handles of the restored states that are not decoded yet
+    private final Set<String> restoredHandles = new HashSet<>();
+    private boolean isSavedStateStoreCleaned = false;
+
+    ColdStateStore(SavedStateStoreWriter savedStateStoreWriter, int retainedTopKeyCount) {
+        this.savedStateStoreWriter = savedStateStoreWriter;
+        this.retainedTopKeyCount = retainedTopKeyCount;
+    }
+
+    void onStateRestored(ParcelledState parcelledState) {
+        if(parcelledState.storeHandle != null) {
+            restoredHandles.add(parcelledState.storeHandle);
+        }
+    }
+
+    void onStateDecoded(Object key, SavedState savedState) {
+        if(savedState.storeHandle != null) {
+            restoredHandles.remove(savedState.storeHandle);
+            storeHandles.put(key, savedState.storeHandle);
+        }
+    }
+
+    void deleteRestoredState(ParcelledState parcelledState) {
+        if(parcelledState.storeHandle != null) {
+            restoredHandles.remove(parcelledState.storeHandle);
+            savedStateStoreWriter.delete(parcelledState.storeHandle);
+        }
+    }
+
+    void onStateReplaced(Object key, SavedState replacedSavedState) {
+        if(replacedSavedState.storeHandle != null) {
+            savedStateStoreWriter.delete(replacedSavedState.storeHandle);
+            storeHandles.remove(key);
+        }
+    }
+
+    /**
+     * Loads the stored state of the key back into memory. The stored data is deleted, as the state can be modified once it is in memory.
+     */
+    void load(Object key, SavedState savedState) {
+        String handle = savedState.storeHandle;
+        if(!savedStateStoreWriter.read(handle, savedState)) {
+            savedState.load(new SparseArray<Parcelable>(), null);
+        }
+        savedStateStoreWriter.delete(handle);
+        storeHandles.remove(key);
+    }
+
+    void storeColdStates(Map<Object, SavedState> keyStateMap, List<Object> newState) {
+        if(!isSavedStateStoreCleaned) {
+            List<String> handles = new ArrayList<>(storeHandles.values());
+            handles.addAll(restoredHandles);
+            savedStateStoreWriter.retainAll(handles);
+            isSavedStateStoreCleaned = true;
+        }
+        Iterator<Map.Entry<Object, String>> storeHandleIterator = storeHandles.entrySet().iterator();
+        while(storeHandleIterator.hasNext()) {
+            Map.Entry<Object, String> storeHandle = storeHandleIterator.next();
+            SavedState savedState = keyStateMap.get(storeHandle.getKey());
+            if(savedState == null || !storeHandle.getValue().equals(savedState.storeHandle)) {
+                savedStateStoreWriter.delete(storeHandle.getValue());
+                storeHandleIterator.remove();
+            }
+        }
+        List<Object> topKeys = newState.subList(Math.max(0, newState.size() - retainedTopKeyCount), newState.size());
+        confirmPendingWrites(keyStateMap, topKeys);
+        for(Map.Entry<Object, SavedState> keyState : keyStateMap.entrySet()) {
+            Object key = keyState.getKey();
+            SavedState savedState = keyState.getValue();
+            if(savedState.storeHandle == null && !pendingWrites.containsKey(key) && !topKeys.contains(key)) {
+                pendingWrites.put(key, savedStateStoreWriter.write(savedState, UUID.randomUUID().toString()));
+            }
+        }
+    }
+
+    // the state is released from memory only if it was not modified while it was written
+    private void confirmPendingWrites(Map<Object, SavedState> keyStateMap, List<Object> topKeys) {
+        Iterator<Map.Entry<Object, SavedStateStoreWriter.PendingWrite>> pendingWriteIterator = pendingWrites.entrySet().iterator();
+        while(pendingWriteIterator.hasNext()) {
+            Map.Entry<Object, SavedStateStoreWriter.PendingWrite> entry = pendingWriteIterator.next();
+            SavedStateStoreWriter.PendingWrite pendingWrite = entry.getValue();
+            if(!pendingWrite.isDone()) {
+                continue;
+            }
+            pendingWriteIterator.remove();
+            if(!pendingWrite.isWritten()) {
+                continue;
+            }
+            Object key = entry.getKey();
+            SavedState savedState = keyStateMap.get(key);
+            if(savedState == pendingWrite.savedState && savedState.version == pendingWrite.version && savedState.storeHandle == null && !topKeys.contains(key)) {
+                savedState.store(pendingWrite.handle);
+                storeHandles.put(key, pendingWrite.handle);
+            } else {
+                savedStateStoreWriter.delete(pendingWrite.handle);
+            }
+        }
+    }
+}
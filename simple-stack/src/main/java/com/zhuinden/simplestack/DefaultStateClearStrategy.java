@@ -2,7 +2,9 @@ package com.zhuinden.simplestack;
 
 import android.support.annotation.NonNull;
 
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A default strategy that clears the state for all keys that are not found in the new state.
@@ -11,6 +13,14 @@ public class DefaultStateClearStrategy
         implements BackstackManager.StateClearStrategy {
     @Override
     public void clearStatesNotIn(@NonNull Map<Object, SavedState> keyStateMap, @NonNull StateChange stateChange) {
-        keyStateMap.keySet().retainAll(stateChange.getNewState());
+        Set<Object> retainedKeys = stateChange.getRetainedKeys();
+        Set<Object> addedKeys = stateChange.getAddedKeys();
+        Iterator<Object> keyIterator = keyStateMap.keySet().iterator();
+        while(keyIterator.hasNext()) {
+            Object key = keyIterator.next();
+            if(!retainedKeys.contains(key) && !addedKeys.contains(key)) {
+                keyIterator.remove();
+            }
+        }
     }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * The Parcelable form of a key created by {@link CodecKeyParceler}. The key is encoded only when it is parcelled, and decoded when it is first requested.
+ */
+class EncodedKey
+        implements Parcelable {
+    private final CodecKeyParceler keyParceler;
+
+    Object key;
+    byte[] data;
+
+    EncodedKey(CodecKeyParceler keyParceler, Object key) {
+        this.keyParceler = keyParceler;
+        this.key = key;
+    }
+
+    EncodedKey(byte[] data) {
+        this.keyParceler = null;
+        this.data = data;
+    }
+
+    protected EncodedKey(Parcel in) {
+        this(in.createByteArray());
+    }
+
+    public static final Creator<EncodedKey> CREATOR = new Creator<EncodedKey>() {
+        @Override
+        public EncodedKey createFromParcel(Parcel in) {
+            return new EncodedKey(in);
+        }
+
+        @Override
+        public EncodedKey[] newArray(int size) {
+            return new EncodedKey[size];
+        }
+    };
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        if(data == null) {
+            data = keyParceler.encode(key);
+        }
+        dest.writeByteArray(data);
+    }
+}
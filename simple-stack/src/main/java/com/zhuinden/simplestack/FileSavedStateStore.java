@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link BackstackManager.SavedStateStore} that keeps each state in a file of the given directory.
+ *
+ * The directory should be in the app's internal storage (for example, inside {@code context.getFilesDir()}), and should not be shared with other stores.
+ *
+ * The files are not synced to the disk, as the states only need to survive process death, not a crash of the device.
+ * A state that cannot be read back is restored as empty.
+ */
+public class FileSavedStateStore
+        implements BackstackManager.SavedStateStore {
+    private static final String STATE_SUFFIX = ".state";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final File directory;
+
+    /**
+     * Creates the store. The directory is created when the first state is written.
+     *
+     * @param directory the directory of the state files
+     */
+    public FileSavedStateStore(@NonNull File directory) {
+        if(directory == null) {
+            throw new IllegalArgumentException("Directory cannot be null!");
+        }
+        this.directory = directory;
+    }
+
+    private File stateFile(String handle) {
+        return new File(directory, handle + STATE_SUFFIX);
+    }
+
+    @Override
+    public boolean write(@NonNull String handle, @NonNull byte[] data) {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            return false;
+        }
+        // the state is written to a temporary file first, so that a partially written state is never read
+        File temporaryFile = new File(directory, handle + TEMPORARY_SUFFIX);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(temporaryFile);
+            outputStream.write(data);
+        } catch(IOException e) {
+            temporaryFile.delete();
+            return false;
+        } finally {
+            closeQuietly(outputStream);
+        }
+        File stateFile = stateFile(handle);
+        if(!temporaryFile.renameTo(stateFile)) {
+            temporaryFile.delete();
+            return false;
+        }
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public byte[] read(@NonNull String handle) {
+        File stateFile = stateFile(handle);
+        if(!stateFile.isFile()) {
+            return null;
+        }
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(stateFile);
+            byte[] data = new byte[(int) stateFile.length()];
+            int offset = 0;
+            while(offset < data.length) {
+                int read = inputStream.read(data, offset, data.length - offset);
+                if(read < 0) {
+                    return null;
+                }
+                offset += read;
+            }
+            return data;
+        } catch(IOException e) {
+            return null;
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
+    @Override
+    public void delete(@NonNull String handle) {
+        stateFile(handle).delete();
+    }
+
+    @Override
+    public void retainAll(@NonNull Collection<String> handles) {
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+        Set<String> retainedFileNames = new HashSet<>();
+        for(String handle : handles) {
+            retainedFileNames.add(handle + STATE_SUFFIX);
+        }
+        for(File file : files) {
+            String fileName = file.getName();
+            if(fileName.endsWith(TEMPORARY_SUFFIX) || (fileName.endsWith(STATE_SUFFIX) && !retainedFileNames.contains(fileName))) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if(closeable != null) {
+            try {
+                closeable.close();
+            } catch(IOException e) {
+                // ignored
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps each key of the active history to the index of its first occurrence.
+ *
+ * The index belongs to a single history instance. It is updated incrementally for pushes and truncations,
+ * and rebuilt only if it is asked about a different history.
+ */
+class HistoryIndex {
+    static final int NOT_FOUND = -1;
+
+    private final Map<Object, Integer> indices = new HashMap<>();
+
+    private List<Object> history;
+
+    /**
+     * Returns the index of the first occurrence of the key in the provided history.
+     *
+     * @param history the history that is searched
+     * @param key     the key
+     * @return the index, or {@link HistoryIndex#NOT_FOUND} if the key is not in the history.
+     */
+    int indexOf(List<Object> history, Object key) {
+        if(this.history != history) {
+            rebuild(history);
+        }
+        Integer index = indices.get(key);
+        return index == null ? NOT_FOUND : index;
+    }
+
+    /**
+     * Moves the index to a new history, which is the previous history with the key appended to it.
+     *
+     * @param newHistory the new history
+     * @param key        the key appended to the end of the previous history
+     */
+    void onPush(List<Object> newHistory, Object key) {
+        if(!indices.containsKey(key)) {
+            indices.put(key, newHistory.size() - 1);
+        }
+        this.history = newHistory;
+    }
+
+    /**
+     * Moves the index to a new history, which is a prefix of the previous history.
+     *
+     * @param previousHistory the previous history
+     * @param newHistory      the new history
+     */
+    void onTruncate(List<Object> previousHistory, List<Object> newHistory) {
+        if(this.history != previousHistory) {
+            rebuild(previousHistory);
+        }
+        for(int i = newHistory.size(), size = previousHistory.size(); i < size; i++) {
+            Object key = previousHistory.get(i);
+            Integer index = indices.get(key);
+            if(index != null && index == i) {
+                indices.remove(key);
+            }
+        }
+        this.history = newHistory;
+    }
+
+    private void rebuild(List<Object> history) {
+        indices.clear();
+        for(int i = 0, size = history.size(); i < size; i++) {
+            Object key = history.get(i);
+            if(!indices.containsKey(key)) {
+                indices.put(key, i);
+            }
+        }
+        this.history = history;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Writes and reads a single type of key for the {@link CodecKeyParceler}.
+ *
+ * The values must be read in the same order as they were written.
+ *
+ * @param <T> the type of the key
+ */
+public interface KeyCodec<T> {
+    /**
+     * Writes the values of the key.
+     *
+     * @param key     the key
+     * @param encoder the encoder to write the values into
+     */
+    void encode(@NonNull T key, @NonNull KeyEncoder encoder);
+
+    /**
+     * Reads the values written by {@link KeyCodec#encode(Object, KeyEncoder)}, and creates the key.
+     *
+     * @param decoder the decoder to read the values from
+     * @return the key
+     */
+    @NonNull
+    T decode(@NonNull KeyDecoder decoder);
+}
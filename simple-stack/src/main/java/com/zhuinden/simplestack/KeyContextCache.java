@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.content.Context;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the {@link KeyContextWrapper} of each key, so that a key that is shown again reuses its context and its cloned {@link android.view.LayoutInflater}.
+ *
+ * A context is released when its key is neither in the history nor has a retained {@link SavedState}, which is decided by the {@link BackstackManager.StateClearStrategy}.
+ */
+class KeyContextCache {
+    private final BackstackManager backstackManager;
+
+    private final Map<Object, KeyContextWrapper> contexts = new HashMap<>();
+
+    KeyContextCache(BackstackManager backstackManager) {
+        this.backstackManager = backstackManager;
+    }
+
+    Context getContext(Context base, Object key) {
+        KeyContextWrapper context = contexts.get(key);
+        if(context == null || context.getBaseContext() != base) {
+            context = new KeyContextWrapper(base, key);
+            context.backstackManager = backstackManager;
+            contexts.put(key, context);
+        }
+        return context;
+    }
+
+    void releaseContextsNotIn(Map<Object, SavedState> keyStateMap, StateChange stateChange) {
+        if(contexts.isEmpty()) {
+            return;
+        }
+        Set<Object> retainedKeys = stateChange.getRetainedKeys();
+        Set<Object> addedKeys = stateChange.getAddedKeys();
+        Iterator<Object> keyIterator = contexts.keySet().iterator();
+        while(keyIterator.hasNext()) {
+            Object key = keyIterator.next();
+            if(!keyStateMap.containsKey(key) && !retainedKeys.contains(key) && !addedKeys.contains(key)) {
+                keyIterator.remove();
+            }
+        }
+    }
+
+    void clear() {
+        contexts.clear();
+    }
+}
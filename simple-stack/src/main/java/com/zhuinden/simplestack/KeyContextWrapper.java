@@ -18,11 +18,14 @@ package com.zhuinden.simplestack;
 import android.content.Context;
 import android.content.ContextWrapper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.view.LayoutInflater;
 
 /**
  * ContextWrapper for inflating views, containing the key inside it.
  * The key is accessible via {@link Backstack#getKey(Context)} or {@link KeyContextWrapper#getKey(Context)}.
+ *
+ * If the context was created by a {@link BackstackManager}, then the manager is accessible via {@link KeyContextWrapper#getBackstackManager(Context)}.
  */
 public class KeyContextWrapper
         extends ContextWrapper {
@@ -32,6 +35,8 @@ public class KeyContextWrapper
 
     final Object key;
 
+    BackstackManager backstackManager;
+
     public KeyContextWrapper(Context base, @NonNull Object key) {
         super(base);
         if(key == null) {
@@ -49,6 +54,8 @@ public class KeyContextWrapper
             return layoutInflater;
         } else if(TAG.equals(name)) {
             return key;
+        } else if(BackstackManager.TAG.equals(name) && backstackManager != null) {
+            return backstackManager;
         }
         return super.getSystemService(name);
     }
@@ -65,4 +72,16 @@ public class KeyContextWrapper
         // noinspection unchecked
         return (T) key;
     }
+
+    /**
+     * Returns the {@link BackstackManager} that created the provided context, or the context it wraps.
+     *
+     * @param context the context created by {@link StateChange#createContext(Context, Object)} or {@link BackstackManager#createContext(Context, Object)}
+     * @return the backstack manager, or null if the context was not created by a backstack manager
+     */
+    @Nullable
+    public static BackstackManager getBackstackManager(Context context) {
+        // noinspection ResourceType
+        return (BackstackManager) context.getSystemService(BackstackManager.TAG);
+    }
 }
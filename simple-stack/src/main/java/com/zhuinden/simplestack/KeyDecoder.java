@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the values of keys written by a {@link KeyEncoder}, used by {@link KeyCodec}s.
+ */
+public final class KeyDecoder {
+    private final CodecKeyParceler keyParceler;
+    private final List<String> strings = new ArrayList<>();
+
+    private final byte[] buffer;
+    private int position = 0;
+
+    KeyDecoder(CodecKeyParceler keyParceler, byte[] buffer) {
+        this.keyParceler = keyParceler;
+        this.buffer = buffer;
+    }
+
+    private byte readByte() {
+        if(position >= buffer.length) {
+            throw new IllegalStateException("Unexpected end of the encoded keys!");
+        }
+        return buffer[position++];
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed variable length integer!");
+    }
+
+    /**
+     * Reads an int.
+     *
+     * @return the value
+     */
+    public int readInt() {
+        int value = (int) readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a long.
+     *
+     * @return the value
+     */
+    public long readLong() {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads a boolean.
+     *
+     * @return the value
+     */
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    /**
+     * Reads a double.
+     *
+     * @return the value
+     */
+    public double readDouble() {
+        long bits = 0;
+        for(int i = 0; i < 8; i++) {
+            bits |= (long) (readByte() & 0xFF) << (i * 8);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Reads a string, which can be null.
+     *
+     * @return the value
+     */
+    @Nullable
+    public String readString() {
+        int tag = (int) readVarLong();
+        if(tag == KeyEncoder.NULL_STRING) {
+            return null;
+        }
+        if(tag == KeyEncoder.NEW_STRING) {
+            int length = (int) readVarLong();
+            if(length < 0 || position + length > buffer.length) {
+                throw new IllegalStateException("Unexpected end of the encoded keys!");
+            }
+            String value = new String(buffer, position, length, KeyEncoder.UTF_8);
+            position += length;
+            strings.add(value);
+            return value;
+        }
+        int index = tag - KeyEncoder.STRING_REFERENCE_OFFSET;
+        if(index >= strings.size()) {
+            throw new IllegalStateException("Reference to unknown string [" + index + "]!");
+        }
+        return strings.get(index);
+    }
+
+    /**
+     * Reads a key written with {@link KeyEncoder#writeKey(Object)}.
+     *
+     * @param <T> the type of the key
+     * @return the key
+     */
+    @NonNull
+    public <T> T readKey() {
+        int typeId = (int) readVarLong();
+        // noinspection unchecked
+        return (T) keyParceler.getCodec(typeId).decode(this);
+    }
+
+    int readCount() {
+        return (int) readVarLong();
+    }
+}
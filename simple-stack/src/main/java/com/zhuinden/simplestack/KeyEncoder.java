@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the values of keys into a compact byte array, used by {@link KeyCodec}s.
+ *
+ * Integers are written as variable length integers, and a string that was already written is written as a reference to its first occurrence.
+ */
+public final class KeyEncoder {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int NULL_STRING = 0;
+    static final int NEW_STRING = 1;
+    static final int STRING_REFERENCE_OFFSET = 2;
+
+    private final CodecKeyParceler keyParceler;
+    private final Map<String, Integer> stringIndices = new HashMap<>();
+
+    private byte[] buffer = new byte[64];
+    private int size = 0;
+
+    KeyEncoder(CodecKeyParceler keyParceler) {
+        this.keyParceler = keyParceler;
+    }
+
+    private void ensureCapacity(int additionalSize) {
+        if(size + additionalSize > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additionalSize));
+        }
+    }
+
+    private void writeVarLong(long value) {
+        ensureCapacity(10);
+        while((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    /**
+     * Writes an int.
+     *
+     * @param value the value
+     */
+    public void writeInt(int value) {
+        writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes a long.
+     *
+     * @param value the value
+     */
+    public void writeLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes a boolean.
+     *
+     * @param value the value
+     */
+    public void writeBoolean(boolean value) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) (value ? 1 : 0);
+    }
+
+    /**
+     * Writes a double.
+     *
+     * @param value the value
+     */
+    public void writeDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        ensureCapacity(8);
+        for(int i = 0; i < 8; i++) {
+            buffer[size++] = (byte) (bits >>> (i * 8));
+        }
+    }
+
+    /**
+     * Writes a string, which can be null.
+     *
+     * @param value the value
+     */
+    public void writeString(@Nullable String value) {
+        if(value == null) {
+            writeVarLong(NULL_STRING);
+            return;
+        }
+        Integer index = stringIndices.get(value);
+        if(index != null) {
+            writeVarLong(index + STRING_REFERENCE_OFFSET);
+            return;
+        }
+        stringIndices.put(value, stringIndices.size());
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarLong(NEW_STRING);
+        writeVarLong(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    /**
+     * Writes a key with the codec registered for its type. Used for keys that contain other keys.
+     *
+     * @param key the key
+     */
+    public void writeKey(@NonNull Object key) {
+        CodecKeyParceler.Registration registration = keyParceler.getRegistration(key);
+        writeVarLong(registration.typeId);
+        // noinspection unchecked
+        ((KeyCodec<Object>) registration.codec).encode(key, this);
+    }
+
+    void writeCount(int count) {
+        writeVarLong(count);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Allows navigating a {@link Backstack} from any thread.
+ *
+ * Navigation commands are added to a lock-free queue, and are executed in batches on the thread that owns the {@link StateChanger},
+ * using the provided {@link Executor} (for example, one that posts to the main thread's Handler).
+ *
+ * The history can be read from any thread with {@link NavigationCommandQueue#getHistory()} and {@link NavigationCommandQueue#top()},
+ * which return the last completed state.
+ */
+public class NavigationCommandQueue {
+    private static final int GO_TO = 0;
+    private static final int GO_BACK = 1;
+    private static final int SET_HISTORY = 2;
+
+    private static class Command {
+        final int type;
+        final Object key;
+        final List<Object> history;
+        final int direction;
+
+        Command(int type, Object key, List<Object> history, int direction) {
+            this.type = type;
+            this.key = key;
+            this.history = history;
+            this.direction = direction;
+        }
+    }
+
+    private final Backstack backstack;
+    private final Executor ownerExecutor;
+
+    private final ConcurrentLinkedQueue<Command> commands = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+
+    private final Runnable drainCommands = new Runnable() {
+        @Override
+        public void run() {
+            isDrainScheduled.set(false);
+            Command command;
+            while((command = commands.poll()) != null) {
+                executeCommand(command);
+            }
+        }
+    };
+
+    /**
+     * Creates a command queue for the provided {@link Backstack}.
+     *
+     * @param backstack     the backstack
+     * @param ownerExecutor the executor that runs tasks on the thread that owns the backstack's {@link StateChanger}.
+     */
+    public NavigationCommandQueue(@NonNull Backstack backstack, @NonNull Executor ownerExecutor) {
+        if(backstack == null) {
+            throw new IllegalArgumentException("Backstack cannot be null!");
+        }
+        if(ownerExecutor == null) {
+            throw new IllegalArgumentException("Owner executor cannot be null!");
+        }
+        this.backstack = backstack;
+        this.ownerExecutor = ownerExecutor;
+    }
+
+    /**
+     * Enqueues a {@link Backstack#goTo(Object)} call. Can be called from any thread.
+     *
+     * @param newKey the target state.
+     */
+    public void goTo(@NonNull Object newKey) {
+        if(newKey == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        enqueue(new Command(GO_TO, newKey, null, StateChange.REPLACE));
+    }
+
+    /**
+     * Enqueues a {@link Backstack#goBack()} call. Can be called from any thread.
+     * The top key of the history that results from the previously executed commands is removed, even if their state changes are still pending.
+     * If there is no previous key to go back to when the command is executed, then it is ignored.
+     */
+    public void goBack() {
+        enqueue(new Command(GO_BACK, null, null, StateChange.BACKWARD));
+    }
+
+    /**
+     * Enqueues a {@link Backstack#setHistory(List, int)} call. Can be called from any thread.
+     *
+     * @param newHistory the new active history.
+     * @param direction  The direction of the state change: BACKWARD, FORWARD or REPLACE.
+     */
+    public void setHistory(@NonNull List<Object> newHistory, @StateChange.StateChangeDirection int direction) {
+        if(newHistory == null || newHistory.isEmpty()) {
+            throw new IllegalArgumentException("New history cannot be null or empty");
+        }
+        enqueue(new Command(SET_HISTORY, null, PersistentHistory.from(newHistory), direction));
+    }
+
+    /**
+     * Returns the last completed history of the backstack. Can be called from any thread.
+     *
+     * @return the unmodifiable snapshot of history.
+     */
+    public List<Object> getHistory() {
+        return backstack.getHistory();
+    }
+
+    /**
+     * Returns the top of the last completed history of the backstack, or null if it is empty. Can be called from any thread.
+     *
+     * @param <T> the type of the key
+     * @return the top key
+     */
+    public <T> T top() {
+        return backstack.top();
+    }
+
+    private void enqueue(Command command) {
+        commands.offer(command);
+        if(isDrainScheduled.compareAndSet(false, true)) {
+            ownerExecutor.execute(drainCommands);
+        }
+    }
+
+    private void executeCommand(Command command) {
+        switch(command.type) {
+            case GO_TO:
+                backstack.goTo(command.key);
+                break;
+            case GO_BACK:
+                // unlike goBack(), this is not ignored while a state change is pending
+                backstack.goBackInActiveHistory();
+                break;
+            case SET_HISTORY:
+                backstack.setHistory(command.history, command.direction);
+                break;
+            default:
+                throw new IllegalStateException("Unknown command type [" + command.type + "]");
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the history after each completed {@link StateChange}, kept in a memory-mapped file.
+ * It allows restoring the history on the next start even if the process was killed without saving its instance state, for example by a crash.
+ *
+ * Each state change is appended as a delta of the keys to the previous history. Appending only writes into the mapped memory,
+ * which is kept by the operating system even if the process dies; the file is synced to the disk in batches on the given executor.
+ *
+ * The file is split into two halves. When the active half is full, the journal is compacted by writing the whole history as a snapshot
+ * into the other half, so that an interrupted compaction never corrupts the previous journal.
+ *
+ * The journal is set with {@link BackstackManager#setNavigationJournal(NavigationJournal)}, and is replayed in {@link BackstackManager#setup(List)}.
+ * It should be cleared with {@link NavigationJournal#clear()} when the Activity is finishing, so that the next start begins from the initial keys.
+ */
+public class NavigationJournal
+        implements Backstack.CompletionListener {
+    interface KeyMarshaller {
+        byte[] marshall(Object key);
+
+        Object unmarshall(byte[] data);
+    }
+
+    static KeyMarshaller createKeyMarshaller(final KeyParceler keyParceler) {
+        if(keyParceler instanceof CodecKeyParceler) {
+            final CodecKeyParceler codecKeyParceler = (CodecKeyParceler) keyParceler;
+            return new KeyMarshaller() {
+                @Override
+                public byte[] marshall(Object key) {
+                    return codecKeyParceler.encode(key);
+                }
+
+                @Override
+                public Object unmarshall(byte[] data) {
+                    return codecKeyParceler.decode(data);
+                }
+            };
+        }
+        return new KeyMarshaller() {
+            @Override
+            public byte[] marshall(Object key) {
+                Parcel parcel = Parcel.obtain();
+                try {
+                    parcel.writeParcelable(keyParceler.toParcelable(key), 0);
+                    return parcel.marshall();
+                } finally {
+                    parcel.recycle();
+                }
+            }
+
+            @Override
+            public Object unmarshall(byte[] data) {
+                Parcel parcel = Parcel.obtain();
+                try {
+                    parcel.unmarshall(data, 0, data.length);
+                    parcel.setDataPosition(0);
+                    Parcelable parcelable = parcel.readParcelable(NavigationJournal.class.getClassLoader());
+                    return keyParceler.fromParcelable(parcelable);
+                } finally {
+                    parcel.recycle();
+                }
+            }
+        };
+    }
+
+    /**
+     * The default size of the journal file.
+     */
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private static final int EPOCH_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 9; // length, checksum, type
+    private static final byte RECORD_SNAPSHOT = 1;
+    private static final byte RECORD_DELTA = 2;
+    private static final int MAX_DELTA_COUNT = 256;
+
+    private final File file;
+    private final int halfCapacity;
+    private final Executor executor;
+
+    private KeyMarshaller keyMarshaller;
+    private MappedByteBuffer buffer;
+
+    private int activeHalf;
+    private long epoch;
+    private boolean isActive;
+    private int position;
+    private int deltaCount;
+    private List<Object> journaledHistory = Collections.emptyList();
+
+    private final AtomicBoolean isSyncScheduled = new AtomicBoolean(false);
+    private final Runnable syncTask = new Runnable() {
+        @Override
+        public void run() {
+            isSyncScheduled.set(false);
+            buffer.force();
+        }
+    };
+
+    /**
+     * Creates a journal with the {@link NavigationJournal#DEFAULT_CAPACITY}.
+     *
+     * @param file     the journal file, for example in {@code context.getFilesDir()}
+     * @param executor the executor on which the journal is synced to the disk
+     */
+    public NavigationJournal(@NonNull File file, @NonNull Executor executor) {
+        this(file, DEFAULT_CAPACITY, executor);
+    }
+
+    /**
+     * Creates a journal.
+     *
+     * @param file     the journal file, for example in {@code context.getFilesDir()}
+     * @param capacity the size of the journal file, half of which must fit the snapshot of the whole history
+     * @param executor the executor on which the journal is synced to the disk
+     */
+    public NavigationJournal(@NonNull File file, int capacity, @NonNull Executor executor) {
+        if(file == null) {
+            throw new IllegalArgumentException("File cannot be null!");
+        }
+        if(capacity < 2 * (EPOCH_SIZE + RECORD_HEADER_SIZE)) {
+            throw new IllegalArgumentException("The capacity [" + capacity + "] is too small!");
+        }
+        if(executor == null) {
+            throw new IllegalArgumentException("Executor cannot be null!");
+        }
+        this.file = file;
+        this.halfCapacity = capacity / 2;
+        this.executor = executor;
+    }
+
+    /**
+     * Opens the journal, replaces the initial keys of the backstack with the journaled history if there is one,
+     * and records the history of the backstack after each state change.
+     */
+    void attachTo(Backstack backstack, KeyParceler keyParceler) {
+        List<Object> history = open(createKeyMarshaller(keyParceler));
+        if(history != null) {
+            backstack.setInitialParameters(history);
+        }
+        backstack.addCompletionListener(this);
+    }
+
+    /**
+     * Opens the journal, and returns the journaled history, or null if there is no valid journal.
+     */
+    @Nullable
+    List<Object> open(KeyMarshaller keyMarshaller) {
+        this.keyMarshaller = keyMarshaller;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 2 * halfCapacity);
+        } catch(IOException e) {
+            buffer = null;
+            return null;
+        } finally {
+            if(randomAccessFile != null) {
+                try {
+                    randomAccessFile.close(); // the mapping stays valid
+                } catch(IOException e) {
+                    // ignored
+                }
+            }
+        }
+        long firstEpoch = buffer.getLong(0);
+        long secondEpoch = buffer.getLong(halfCapacity);
+        epoch = Math.max(firstEpoch, secondEpoch);
+        int newerHalf = secondEpoch > firstEpoch ? 1 : 0;
+        List<Object> history = replay(newerHalf);
+        if(history == null) {
+            history = replay(1 - newerHalf);
+        }
+        if(history != null) {
+            journaledHistory = history;
+        }
+        return history;
+    }
+
+    private List<Object> replay(int half) {
+        int offset = half * halfCapacity;
+        long halfEpoch = buffer.getLong(offset);
+        if(halfEpoch <= 0) {
+            return null;
+        }
+        List<Object> history = null;
+        int recordPosition = EPOCH_SIZE;
+        int recordCount = 0;
+        try {
+            while(recordPosition + RECORD_HEADER_SIZE <= halfCapacity) {
+                int length = buffer.getInt(offset + recordPosition);
+                if(length <= 0 || recordPosition + RECORD_HEADER_SIZE + length > halfCapacity) {
+                    break;
+                }
+                byte type = buffer.get(offset + recordPosition + 8);
+                byte[] payload = new byte[length];
+                ByteBuffer recordBuffer = buffer.duplicate();
+                recordBuffer.position(offset + recordPosition + RECORD_HEADER_SIZE);
+                recordBuffer.get(payload);
+                if(buffer.getInt(offset + recordPosition + 4) != checksum(halfEpoch, type, payload)) {
+                    break;
+                }
+                ByteBuffer payloadBuffer = ByteBuffer.wrap(payload);
+                if(type == RECORD_SNAPSHOT && recordCount == 0) {
+                    history = readKeys(payloadBuffer, new ArrayList<>());
+                } else if(type == RECORD_DELTA && recordCount > 0) {
+                    int retainedCount = payloadBuffer.getInt();
+                    history = readKeys(payloadBuffer, new ArrayList<>(history.subList(0, retainedCount)));
+                } else {
+                    break;
+                }
+                recordCount++;
+                recordPosition += RECORD_HEADER_SIZE + length;
+            }
+        } catch(RuntimeException e) {
+            // keys that cannot be read invalidate the journal
+            return null;
+        }
+        if(history == null || history.isEmpty()) {
+            return null;
+        }
+        activeHalf = half;
+        epoch = halfEpoch;
+        isActive = true;
+        position = recordPosition;
+        deltaCount = recordCount - 1;
+        return history;
+    }
+
+    private List<Object> readKeys(ByteBuffer payloadBuffer, List<Object> keys) {
+        int count = payloadBuffer.getInt();
+        for(int i = 0; i < count; i++) {
+            byte[] data = new byte[payloadBuffer.getInt()];
+            payloadBuffer.get(data);
+            keys.add(keyMarshaller.unmarshall(data));
+        }
+        if(payloadBuffer.hasRemaining()) {
+            throw new BufferUnderflowException();
+        }
+        return keys;
+    }
+
+    @Override
+    public void stateChangeCompleted(@NonNull StateChange stateChange) {
+        if(buffer == null) {
+            return;
+        }
+        List<Object> newHistory = stateChange.getNewState();
+        int retainedCount = 0;
+        int maxRetainedCount = Math.min(journaledHistory.size(), newHistory.size());
+        while(retainedCount < maxRetainedCount && journaledHistory.get(retainedCount).equals(newHistory.get(retainedCount))) {
+            retainedCount++;
+        }
+        if(retainedCount == journaledHistory.size() && retainedCount == newHistory.size()) {
+            return;
+        }
+        boolean isWritten = false;
+        if(isActive && deltaCount < MAX_DELTA_COUNT) {
+            isWritten = append(RECORD_DELTA, createPayload(retainedCount, newHistory.subList(retainedCount, newHistory.size())));
+        }
+        if(!isWritten) {
+            compact(newHistory);
+        }
+        journaledHistory = new ArrayList<>(newHistory);
+        scheduleSync();
+    }
+
+    private byte[] createPayload(int retainedCount, List<Object> keys) {
+        List<byte[]> marshalledKeys = new ArrayList<>(keys.size());
+        int length = (retainedCount >= 0 ? 4 : 0) + 4;
+        for(Object key : keys) {
+            byte[] data = keyMarshaller.marshall(key);
+            marshalledKeys.add(data);
+            length += 4 + data.length;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        if(retainedCount >= 0) {
+            payload.putInt(retainedCount);
+        }
+        payload.putInt(marshalledKeys.size());
+        for(byte[] data : marshalledKeys) {
+            payload.putInt(data.length);
+            payload.put(data);
+        }
+        return payload.array();
+    }
+
+    private boolean append(byte type, byte[] payload) {
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if(position + recordSize > halfCapacity) {
+            return false;
+        }
+        int offset = activeHalf * halfCapacity + position;
+        // the length is written last, so that a partially written record is never read
+        if(position + recordSize + 4 <= halfCapacity) {
+            buffer.putInt(offset + recordSize, 0);
+        }
+        buffer.putInt(offset + 4, checksum(epoch, type, payload));
+        buffer.put(offset + 8, type);
+        ByteBuffer recordBuffer = buffer.duplicate();
+        recordBuffer.position(offset + RECORD_HEADER_SIZE);
+        recordBuffer.put(payload);
+        buffer.putInt(offset, payload.length);
+        position += recordSize;
+        if(type == RECORD_DELTA) {
+            deltaCount++;
+        }
+        return true;
+    }
+
+    private void compact(List<Object> history) {
+        // the snapshot is written into the inactive half, which becomes active once its epoch is written
+        int previousHalf = activeHalf;
+        activeHalf = 1 - activeHalf;
+        // epochs are never reused, so that the records of a previous journal cannot be mistaken for new ones
+        epoch = Math.max(epoch + 1, System.currentTimeMillis());
+        position = EPOCH_SIZE;
+        deltaCount = 0;
+        int offset = activeHalf * halfCapacity;
+        buffer.putLong(offset, 0);
+        if(append(RECORD_SNAPSHOT, createPayload(-1, history))) {
+            buffer.putLong(offset, epoch);
+            isActive = true;
+        } else {
+            // the history does not fit into the journal, so the previous history must not be restored either
+            buffer.putLong(previousHalf * halfCapacity, 0);
+            isActive = false;
+        }
+    }
+
+    private void scheduleSync() {
+        if(isSyncScheduled.compareAndSet(false, true)) {
+            executor.execute(syncTask);
+        }
+    }
+
+    /**
+     * Clears the journal, so that the next start begins from the initial keys.
+     * This should be called when the Activity is finishing.
+     */
+    public void clear() {
+        if(buffer == null) {
+            return;
+        }
+        buffer.putLong(0, 0);
+        buffer.putLong(halfCapacity, 0);
+        isActive = false;
+        journaledHistory = Collections.emptyList();
+        scheduleSync();
+    }
+
+    private static int checksum(long epoch, byte type, byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        for(int i = 0; i < 8; i++) {
+            crc32.update((int) (epoch >>> (i * 8)));
+        }
+        crc32.update(type);
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+}
@@ -12,21 +12,63 @@ import com.zhuinden.statebundle.StateBundle;
 
 class ParcelledState
         implements Parcelable {
+    static final int NO_KEY_INDEX = -1;
+
+    // the first format starts with the parcelled key, that is, with the length of its class name, which is never below -1
+    private static final int FORMAT_KEY_TABLE = -2;
+
     Parcelable parcelableKey;
+    // index of the key in the key table of the state bundle, the key is not parcelled with the state if set
+    int keyIndex = NO_KEY_INDEX;
     SparseArray<Parcelable> viewHierarchyState;
     StateBundle bundle;
+    String storeHandle;
+    // incremented when the view hierarchy state is cleared in place, not parcelled
+    int version;
+    // cached by SnapshotPersistence, cleared when the state is modified in place
+    byte[] marshalledState;
 
     ParcelledState() {
     }
 
     protected ParcelledState(Parcel in) {
-        parcelableKey = in.readParcelable(getClass().getClassLoader());
+        int startPosition = in.dataPosition();
+        boolean isKeyTableFormat = in.readInt() == FORMAT_KEY_TABLE;
+        if(isKeyTableFormat) {
+            keyIndex = in.readInt();
+        } else {
+            in.setDataPosition(startPosition);
+        }
+        if(keyIndex == NO_KEY_INDEX) {
+            parcelableKey = in.readParcelable(getClass().getClassLoader());
+        }
         // noinspection unchecked
         viewHierarchyState = in.readSparseArray(getClass().getClassLoader());
         boolean hasBundle = in.readByte() > 0;
         if(hasBundle) {
             bundle = in.readParcelable(getClass().getClassLoader());
         }
+        if(isKeyTableFormat) {
+            storeHandle = in.readString();
+        }
+    }
+
+    void onModified() {
+        version++;
+        marshalledState = null;
+    }
+
+    ParcelledState withKeyIndex(int keyIndex) {
+        if(this.keyIndex == keyIndex) {
+            return this;
+        }
+        ParcelledState parcelledState = new ParcelledState();
+        parcelledState.parcelableKey = parcelableKey;
+        parcelledState.keyIndex = keyIndex;
+        parcelledState.viewHierarchyState = viewHierarchyState;
+        parcelledState.bundle = bundle;
+        parcelledState.storeHandle = storeHandle;
+        return parcelledState;
     }
 
     public static final Creator<ParcelledState> CREATOR = new Creator<ParcelledState>() {
@@ -48,7 +90,11 @@ class ParcelledState
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeParcelable(parcelableKey, flags);
+        dest.writeInt(FORMAT_KEY_TABLE);
+        dest.writeInt(keyIndex);
+        if(keyIndex == NO_KEY_INDEX) {
+            dest.writeParcelable(parcelableKey, flags);
+        }
         // noinspection unchecked
         SparseArray<Object> sparseArray = (SparseArray) viewHierarchyState;
         dest.writeSparseArray(sparseArray);
@@ -56,5 +102,6 @@ class ParcelledState
         if(bundle != null) {
             dest.writeParcelable(bundle, 0);
         }
+        dest.writeString(storeHandle);
     }
 }
\ No newline at end of file
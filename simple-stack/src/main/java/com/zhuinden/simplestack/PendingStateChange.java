@@ -15,8 +15,6 @@
  */
 package com.zhuinden.simplestack;
 
-import java.util.List;
-
 /**
  * Represents the state that will be available once state change is complete.
  */
@@ -27,16 +25,18 @@ class PendingStateChange {
         COMPLETED
     }
 
-    final List<Object> newHistory;
+    final PersistentHistory newHistory;
     final int direction;
     final boolean initialization;
 
     private Status status = Status.ENQUEUED;
 
     StateChanger.Callback completionCallback;
+    StateChange stateChange;
     boolean didForceExecute = false;
+    boolean isCancellationRequested = false;
 
-    PendingStateChange(List<Object> newHistory, @StateChange.StateChangeDirection int direction, boolean initialization) {
+    PendingStateChange(PersistentHistory newHistory, @StateChange.StateChangeDirection int direction, boolean initialization) {
         this.newHistory = newHistory;
         this.direction = direction;
         this.initialization = initialization;
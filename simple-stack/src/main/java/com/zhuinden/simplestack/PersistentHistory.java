@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of keys that shares structure with the histories it was derived from.
+ *
+ * It is a persistent vector: a 32-way trie of full leaves, and a tail that holds the last (at most 32) keys.
+ * Appending a key or truncating the history copies at most one path of the trie and the tail, everything else is shared.
+ */
+final class PersistentHistory
+        extends AbstractList<Object>
+        implements RandomAccess {
+    private static final int SHIFT = 5;
+    private static final int WIDTH = 1 << SHIFT;
+    private static final int MASK = WIDTH - 1;
+
+    private static final Object[] EMPTY_ROOT = new Object[WIDTH];
+
+    private static final PersistentHistory EMPTY = new PersistentHistory(0, SHIFT, EMPTY_ROOT, new Object[0]);
+
+    private final int size;
+    private final int shift;
+    private final Object[] root;
+    private final Object[] tail;
+
+    private PersistentHistory(int size, int shift, Object[] root, Object[] tail) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    /**
+     * Returns the empty history.
+     *
+     * @return the empty history.
+     */
+    static PersistentHistory empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Returns a history with the provided keys. If the list is already a {@link PersistentHistory}, it is returned as is.
+     *
+     * @param keys the keys
+     * @return the history.
+     */
+    static PersistentHistory from(List<?> keys) {
+        if(keys instanceof PersistentHistory) {
+            return (PersistentHistory) keys;
+        }
+        Object[] elements = keys.toArray();
+        PersistentHistory history = EMPTY;
+        for(int start = 0; start < elements.length; start += WIDTH) {
+            int chunkSize = Math.min(WIDTH, elements.length - start);
+            Object[] chunk = new Object[chunkSize];
+            System.arraycopy(elements, start, chunk, 0, chunkSize);
+            history = history.appendTail(chunk);
+        }
+        return history;
+    }
+
+    @Override
+    public Object get(int index) {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index [" + index + "] is out of bounds for size [" + size + "]");
+        }
+        return leafFor(index)[index & MASK];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a new history with the key appended to the end of this history.
+     *
+     * @param key the key
+     * @return the new history.
+     */
+    PersistentHistory push(Object key) {
+        if(size - tailOffset(size) < WIDTH) {
+            Object[] newTail = new Object[tail.length + 1];
+            System.arraycopy(tail, 0, newTail, 0, tail.length);
+            newTail[tail.length] = key;
+            return new PersistentHistory(size + 1, shift, root, newTail);
+        }
+        return appendTail(new Object[]{key});
+    }
+
+    /**
+     * Returns a new history that contains only the first keys of this history.
+     *
+     * @param newSize the number of keys to keep
+     * @return the new history.
+     */
+    PersistentHistory truncate(int newSize) {
+        if(newSize < 0 || newSize > size) {
+            throw new IndexOutOfBoundsException("Cannot truncate history of size [" + size + "] to [" + newSize + "]");
+        }
+        if(newSize == size) {
+            return this;
+        }
+        if(newSize == 0) {
+            return EMPTY;
+        }
+        int newTailOffset = tailOffset(newSize);
+        Object[] leaf = leafFor(newSize - 1);
+        Object[] newTail = new Object[newSize - newTailOffset];
+        System.arraycopy(leaf, 0, newTail, 0, newTail.length);
+        if(newTailOffset == tailOffset(size)) {
+            return new PersistentHistory(newSize, shift, root, newTail);
+        }
+        if(newTailOffset == 0) {
+            return new PersistentHistory(newSize, SHIFT, EMPTY_ROOT, newTail);
+        }
+        Object[] newRoot = root;
+        int newShift = shift;
+        while(newShift > SHIFT && newTailOffset <= (1 << newShift)) {
+            newRoot = (Object[]) newRoot[0];
+            newShift -= SHIFT;
+        }
+        return new PersistentHistory(newSize, newShift, takeNode(newShift, newRoot, newTailOffset), newTail);
+    }
+
+    private static int tailOffset(int size) {
+        return size < WIDTH ? 0 : ((size - 1) >>> SHIFT) << SHIFT;
+    }
+
+    private Object[] leafFor(int index) {
+        if(index >= tailOffset(size)) {
+            return tail;
+        }
+        Object[] node = root;
+        for(int level = shift; level > 0; level -= SHIFT) {
+            node = (Object[]) node[(index >>> level) & MASK];
+        }
+        return node;
+    }
+
+    // moves the current (full) tail into the trie, and uses the provided keys as the new tail
+    private PersistentHistory appendTail(Object[] newTail) {
+        if(size == 0) {
+            return new PersistentHistory(newTail.length, SHIFT, EMPTY_ROOT, newTail);
+        }
+        Object[] newRoot;
+        int newShift = shift;
+        if((size >>> SHIFT) > (1 << shift)) {
+            newRoot = new Object[WIDTH];
+            newRoot[0] = root;
+            newRoot[1] = newPath(shift, tail);
+            newShift += SHIFT;
+        } else {
+            newRoot = pushLeaf(shift, root, tail);
+        }
+        return new PersistentHistory(size + newTail.length, newShift, newRoot, newTail);
+    }
+
+    private Object[] pushLeaf(int level, Object[] parent, Object[] leaf) {
+        int subIndex = ((size - 1) >>> level) & MASK;
+        Object[] node = parent.clone();
+        Object nodeToInsert;
+        if(level == SHIFT) {
+            nodeToInsert = leaf;
+        } else {
+            Object[] child = (Object[]) parent[subIndex];
+            nodeToInsert = child != null ? pushLeaf(level - SHIFT, child, leaf) : newPath(level - SHIFT, leaf);
+        }
+        node[subIndex] = nodeToInsert;
+        return node;
+    }
+
+    private static Object[] newPath(int level, Object[] leaf) {
+        if(level == 0) {
+            return leaf;
+        }
+        Object[] node = new Object[WIDTH];
+        node[0] = newPath(level - SHIFT, leaf);
+        return node;
+    }
+
+    // returns the node that contains only the first `count` keys of the provided node, sharing every full subtree
+    private static Object[] takeNode(int level, Object[] node, int count) {
+        if(count == (WIDTH << level)) {
+            return node;
+        }
+        int lastIndex = (count - 1) >>> level;
+        Object[] newNode = new Object[WIDTH];
+        System.arraycopy(node, 0, newNode, 0, lastIndex);
+        newNode[lastIndex] = takeNode(level - SHIFT, (Object[]) node[lastIndex], count - (lastIndex << level));
+        return newNode;
+    }
+}
@@ -30,8 +30,20 @@ import com.zhuinden.statebundle.StateBundle;
  */
 public class SavedState {
     private Object key;
-    private SparseArray<Parcelable> viewHierarchyState;
-    private StateBundle bundle;
+
+    // read directly by the library, as the getters mark the state as modified
+    SparseArray<Parcelable> viewHierarchyState;
+    StateBundle bundle;
+
+    // cached by BackstackManager.toBundle(), cleared when the state is modified
+    Parcelable parcelledKey;
+    ParcelledState parcelledState;
+
+    // set while the view hierarchy state and the bundle are kept in the SavedStateStore of BackstackManager
+    String storeHandle;
+
+    // incremented by every modification, so that a modification can be detected without comparing the content
+    int version;
 
     private SavedState() {
     }
@@ -40,20 +52,54 @@ public class SavedState {
         return key;
     }
 
+    /**
+     * Returns the view hierarchy state. As it can be modified in place, the state is considered modified.
+     *
+     * @return the view hierarchy state
+     */
     public SparseArray<Parcelable> getViewHierarchyState() {
+        onModified();
         return viewHierarchyState;
     }
 
     public void setViewHierarchyState(SparseArray<Parcelable> viewHierarchyState) {
         this.viewHierarchyState = viewHierarchyState;
+        onModified();
     }
 
+    /**
+     * Returns the bundle. As it can be modified in place, the state is considered modified.
+     *
+     * @return the bundle
+     */
     public StateBundle getBundle() {
+        onModified();
         return bundle;
     }
 
     public void setBundle(StateBundle bundle) {
         this.bundle = bundle;
+        onModified();
+    }
+
+    // called when the view hierarchy state or the bundle is replaced, handed out, or modified in place
+    void onModified() {
+        this.parcelledState = null;
+        this.version++;
+    }
+
+    void store(String storeHandle) {
+        this.storeHandle = storeHandle;
+        this.viewHierarchyState = null;
+        this.bundle = null;
+        onModified();
+    }
+
+    void load(SparseArray<Parcelable> viewHierarchyState, StateBundle bundle) {
+        this.storeHandle = null;
+        this.viewHierarchyState = viewHierarchyState;
+        this.bundle = bundle;
+        onModified();
     }
 
     public static Builder builder() {
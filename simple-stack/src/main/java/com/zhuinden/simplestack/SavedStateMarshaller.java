@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.util.SparseArray;
+
+import com.zhuinden.statebundle.StateBundle;
+
+/**
+ * Marshalls the view hierarchy state and the bundle of a {@link SavedState} for the {@link BackstackManager.SavedStateStore}.
+ */
+final class SavedStateMarshaller {
+    private SavedStateMarshaller() {
+    }
+
+    static byte[] marshall(SavedState savedState) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            // noinspection unchecked
+            SparseArray<Object> sparseArray = (SparseArray) savedState.viewHierarchyState;
+            parcel.writeSparseArray(sparseArray);
+            parcel.writeParcelable(savedState.bundle, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static void unmarshall(byte[] data, SavedState savedState) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            ClassLoader classLoader = SavedStateMarshaller.class.getClassLoader();
+            // noinspection unchecked
+            SparseArray<Parcelable> viewHierarchyState = parcel.readSparseArray(classLoader);
+            StateBundle bundle = parcel.readParcelable(classLoader);
+            savedState.load(viewHierarchyState != null ? viewHierarchyState : new SparseArray<Parcelable>(), bundle);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Performs the writes and deletes of a {@link BackstackManager.SavedStateStore} on a background executor, in the order they were requested,
+ * so that completing a state change does not wait for I/O.
+ *
+ * A state is marshalled on the calling thread, so the executor never reads the mutable {@link SavedState}.
+ * The {@link BackstackManager} keeps the state in memory until the write is confirmed by {@link PendingWrite#isWritten()}.
+ *
+ * The methods must be called on the same thread, only the writes and deletes are performed on the executor.
+ */
+final class SavedStateStoreWriter {
+    interface StateMarshaller {
+        byte[] marshall(SavedState savedState);
+
+        void unmarshall(byte[] data, SavedState savedState);
+    }
+
+    static final StateMarshaller PARCEL_MARSHALLER = new StateMarshaller() {
+        @Override
+        public byte[] marshall(SavedState savedState) {
+            return SavedStateMarshaller.marshall(savedState);
+        }
+
+        @Override
+        public void unmarshall(byte[] data, SavedState savedState) {
+            SavedStateMarshaller.unmarshall(data, savedState);
+        }
+    };
+
+    static final class PendingWrite {
+        private static final int PENDING = 0;
+        private static final int WRITTEN = 1;
+        private static final int FAILED = 2;
+
+        final SavedState savedState;
+        final int version;
+        final String handle;
+
+        private volatile int status = PENDING;
+        // released when the write is done
+        private volatile byte[] data;
+
+        PendingWrite(SavedState savedState, String handle, byte[] data) {
+            this.savedState = savedState;
+            this.version = savedState.version;
+            this.handle = handle;
+            this.data = data;
+        }
+
+        boolean isDone() {
+            return status != PENDING;
+        }
+
+        boolean isWritten() {
+            return status == WRITTEN;
+        }
+    }
+
+    private final BackstackManager.SavedStateStore savedStateStore;
+    private final Executor executor;
+    private final StateMarshaller marshaller;
+
+    private final Map<String, PendingWrite> pendingWrites = new HashMap<>();
+
+    SavedStateStoreWriter(BackstackManager.SavedStateStore savedStateStore, Executor executor, StateMarshaller marshaller) {
+        this.savedStateStore = savedStateStore;
+        this.executor = executor;
+        this.marshaller = marshaller;
+    }
+
+    PendingWrite write(SavedState savedState, String handle) {
+        removeDoneWrites();
+        final PendingWrite pendingWrite = new PendingWrite(savedState, handle, marshaller.marshall(savedState));
+        pendingWrites.put(handle, pendingWrite);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean isWritten;
+                try {
+                    isWritten = savedStateStore.write(pendingWrite.handle, pendingWrite.data);
+                } catch(RuntimeException e) {
+                    isWritten = false; // the state stays in memory
+                }
+                pendingWrite.status = isWritten ? PendingWrite.WRITTEN : PendingWrite.FAILED;
+                pendingWrite.data = null;
+            }
+        });
+        return pendingWrite;
+    }
+
+    private void removeDoneWrites() {
+        Iterator<PendingWrite> pendingWriteIterator = pendingWrites.values().iterator();
+        while(pendingWriteIterator.hasNext()) {
+            if(pendingWriteIterator.next().isDone()) {
+                pendingWriteIterator.remove();
+            }
+        }
+    }
+
+    void delete(final String handle) {
+        pendingWrites.remove(handle);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                savedStateStore.delete(handle);
+            }
+        });
+    }
+
+    void retainAll(Collection<String> handles) {
+        final Collection<String> retainedHandles = new ArrayList<>(handles);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                savedStateStore.retainAll(retainedHandles);
+            }
+        });
+    }
+
+    /**
+     * Reads the state on the calling thread. Returns false if the stored state is missing or cannot be unmarshalled.
+     *
+     * If the write of the handle is still pending, then the state is unmarshalled from the data of the write.
+     * Otherwise, the calling thread is blocked while the data is read from the store.
+     */
+    boolean read(String handle, SavedState savedState) {
+        PendingWrite pendingWrite = pendingWrites.remove(handle);
+        byte[] data = pendingWrite != null ? pendingWrite.data : null;
+        if(data == null) {
+            // the write is done, so the data can be read from the store
+            data = savedStateStore.read(handle);
+        }
+        if(data == null) {
+            return false;
+        }
+        try {
+            marshaller.unmarshall(data, savedState);
+            return true;
+        } catch(RuntimeException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.os.Parcel;
+import android.support.annotation.Nullable;
+
+import com.zhuinden.statebundle.StateBundle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the state bundles of the {@link BackstackManager} into a {@link BackstackManager.SavedStateStore} on a background executor,
+ * so that the saved instance state only needs to contain a pointer to the newest snapshot.
+ *
+ * Each snapshot is written to the same handle, framed with the session id of the writer, its generation, and a CRC32 checksum.
+ * A snapshot is accepted on restore only if it belongs to the session of the pointer, is not older than the pointer, and its checksum matches.
+ *
+ * The parcelled states are shared with the {@link BackstackManager} and can be modified, so they are marshalled on the thread that submits them.
+ * The marshalled data of a state is cached until the state is modified, so only the modified states are marshalled again.
+ * The executor marshalls the key table and the history, which are not modified after the snapshot is created, and writes them together with the states.
+ */
+final class SnapshotPersistence {
+    interface SnapshotMarshaller {
+        byte[] marshall(StateBundle stateBundle);
+
+        StateBundle unmarshall(byte[] data);
+
+        byte[] marshallState(ParcelledState parcelledState);
+
+        ParcelledState unmarshallState(byte[] data);
+    }
+
+    static final SnapshotMarshaller PARCEL_MARSHALLER = new SnapshotMarshaller() {
+        @Override
+        public byte[] marshall(StateBundle stateBundle) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeParcelable(stateBundle, 0);
+                return parcel.marshall();
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        @Override
+        public StateBundle unmarshall(byte[] data) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(data, 0, data.length);
+                parcel.setDataPosition(0);
+                return parcel.readParcelable(SnapshotPersistence.class.getClassLoader());
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        @Override
+        public byte[] marshallState(ParcelledState parcelledState) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcelledState.writeToParcel(parcel, 0);
+                return parcel.marshall();
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        @Override
+        public ParcelledState unmarshallState(byte[] data) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(data, 0, data.length);
+                parcel.setDataPosition(0);
+                return ParcelledState.CREATOR.createFromParcel(parcel);
+            } finally {
+                parcel.recycle();
+            }
+        }
+    };
+
+    static final String SNAPSHOT_HANDLE = "backstack_snapshot";
+
+    private static final String SESSION_TAG = "SNAPSHOT_SESSION";
+    private static final String GENERATION_TAG = "SNAPSHOT_GENERATION";
+
+    private static final int MAGIC = 0x53534e50;
+    private static final int VERSION = 2;
+    private static final int CHECKSUM_SIZE = 8;
+
+    private final BackstackManager.SavedStateStore snapshotStore;
+    private final Executor executor;
+    private final SnapshotMarshaller marshaller;
+    private final String sessionId = UUID.randomUUID().toString();
+
+    private final Object writeLock = new Object();
+
+    private BackstackSnapshot submittedSnapshot;
+    private volatile long submittedGeneration = 0;
+    private volatile long writtenGeneration = 0;
+
+    SnapshotPersistence(BackstackManager.SavedStateStore snapshotStore, Executor executor, SnapshotMarshaller marshaller) {
+        this.snapshotStore = snapshotStore;
+        this.executor = executor;
+        this.marshaller = marshaller;
+    }
+
+    private boolean isSubmitted(BackstackSnapshot snapshot) {
+        return submittedSnapshot != null && submittedSnapshot.isSameAs(snapshot);
+    }
+
+    private boolean isWritten(BackstackSnapshot snapshot) {
+        return writtenGeneration == submittedGeneration && isSubmitted(snapshot);
+    }
+
+    /**
+     * Returns the state bundle of the snapshot. If the snapshot is already written, then the state bundle contains only the history and a pointer to the snapshot.
+     * Otherwise the state bundle contains the states too, and the snapshot is submitted if it was not submitted yet.
+     */
+    StateBundle toBundle(BackstackSnapshot snapshot) {
+        if(isWritten(snapshot)) {
+            // the history is kept in the bundle, so that it can be restored even if the snapshot is lost
+            StateBundle stateBundle = snapshot.toHistoryBundle(snapshot.historyKeyCount);
+            stateBundle.putString(SESSION_TAG, sessionId);
+            stateBundle.putLong(GENERATION_TAG, writtenGeneration);
+            return stateBundle;
+        }
+        submit(snapshot);
+        return snapshot.toStateBundle();
+    }
+
+    /**
+     * Submits the snapshot to be written on the executor, unless the same snapshot was already submitted.
+     */
+    void submit(BackstackSnapshot snapshot) {
+        if(isSubmitted(snapshot)) {
+            return;
+        }
+        final StateBundle historyBundle = snapshot.toHistoryBundle(snapshot.keyTable.size());
+        final long generation = submittedGeneration + 1;
+        final List<byte[]> marshalledStates = new ArrayList<>(snapshot.states.size());
+        for(ParcelledState parcelledState : snapshot.states) {
+            if(parcelledState.marshalledState == null) {
+                parcelledState.marshalledState = marshaller.marshallState(parcelledState);
+            }
+            marshalledStates.add(parcelledState.marshalledState);
+        }
+        submittedSnapshot = snapshot;
+        submittedGeneration = generation;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(generation, historyBundle, marshalledStates);
+            }
+        });
+    }
+
+    private void write(long generation, StateBundle historyBundle, List<byte[]> marshalledStates) {
+        synchronized(writeLock) {
+            // a newer snapshot makes this one obsolete
+            if(generation < submittedGeneration || generation <= writtenGeneration) {
+                return;
+            }
+            try {
+                byte[] payload = createPayload(marshaller.marshall(historyBundle), marshalledStates);
+                if(snapshotStore.write(SNAPSHOT_HANDLE, frame(sessionId, generation, payload))) {
+                    writtenGeneration = generation;
+                }
+            } catch(RuntimeException e) {
+                // the state bundle is saved in full while the snapshot is not written
+            }
+        }
+    }
+
+    /**
+     * Returns the newest consistent snapshot for the pointer in the state bundle, or null if there is none.
+     */
+    @Nullable
+    StateBundle read(StateBundle stateBundle) {
+        String pointerSessionId = stateBundle.getString(SESSION_TAG);
+        if(pointerSessionId == null) {
+            return null;
+        }
+        byte[] data = snapshotStore.read(SNAPSHOT_HANDLE);
+        if(data == null) {
+            return null;
+        }
+        byte[] payload = unframe(data, pointerSessionId, stateBundle.getLong(GENERATION_TAG));
+        if(payload == null) {
+            return null;
+        }
+        try {
+            return readPayload(payload);
+        } catch(RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static byte[] createPayload(byte[] marshalledHistory, List<byte[]> marshalledStates) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+        try {
+            outputStream.writeInt(marshalledHistory.length);
+            outputStream.write(marshalledHistory);
+            outputStream.writeInt(marshalledStates.size());
+            for(byte[] marshalledState : marshalledStates) {
+                outputStream.writeInt(marshalledState.length);
+                outputStream.write(marshalledState);
+            }
+            outputStream.flush();
+        } catch(IOException e) {
+            throw new IllegalStateException("Unexpected exception while writing into memory", e);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    @Nullable
+    private StateBundle readPayload(byte[] payload) {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            StateBundle stateBundle = marshaller.unmarshall(readBytes(inputStream));
+            int stateCount = inputStream.readInt();
+            ArrayList<ParcelledState> states = new ArrayList<>(stateCount);
+            for(int i = 0; i < stateCount; i++) {
+                states.add(marshaller.unmarshallState(readBytes(inputStream)));
+            }
+            stateBundle.putParcelableArrayList(BackstackManager.getStatesTag(), states);
+            return stateBundle;
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream inputStream)
+            throws IOException {
+        int length = inputStream.readInt();
+        if(length < 0 || length > inputStream.available()) {
+            throw new IOException("Invalid length [" + length + "]");
+        }
+        byte[] data = new byte[length];
+        inputStream.readFully(data);
+        return data;
+    }
+
+    static byte[] frame(String sessionId, long generation, byte[] payload) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(payload.length + 64);
+        DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream);
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeUTF(sessionId);
+            outputStream.writeLong(generation);
+            outputStream.writeInt(payload.length);
+            outputStream.write(payload);
+            outputStream.flush();
+            byte[] frame = byteArrayOutputStream.toByteArray();
+            outputStream.writeLong(checksum(frame, frame.length));
+            outputStream.flush();
+        } catch(IOException e) {
+            throw new IllegalStateException("Unexpected exception while writing into memory", e);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    @Nullable
+    static byte[] unframe(byte[] data, String sessionId, long minimumGeneration) {
+        if(data.length < CHECKSUM_SIZE) {
+            return null;
+        }
+        int checksummedLength = data.length - CHECKSUM_SIZE;
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            inputStream.skipBytes(checksummedLength);
+            if(inputStream.readLong() != checksum(data, checksummedLength)) {
+                return null;
+            }
+            inputStream = new DataInputStream(new ByteArrayInputStream(data, 0, checksummedLength));
+            if(inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+                return null;
+            }
+            if(!sessionId.equals(inputStream.readUTF()) || inputStream.readLong() < minimumGeneration) {
+                return null;
+            }
+            int payloadLength = inputStream.readInt();
+            if(payloadLength != inputStream.available()) {
+                return null;
+            }
+            byte[] payload = new byte[payloadLength];
+            inputStream.readFully(payload);
+            return payload;
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    private static long checksum(byte[] data, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, length);
+        return crc32.getValue();
+    }
+}
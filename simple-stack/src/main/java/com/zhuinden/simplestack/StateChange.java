@@ -21,7 +21,10 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.lang.annotation.Retention;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import static java.lang.annotation.RetentionPolicy.SOURCE;
 
@@ -39,15 +42,27 @@ public class StateChange {
     public static final int FORWARD = 1;
 
     StateChange(List<Object> previousState, List<Object> newState, @StateChangeDirection int direction) {
+        this(previousState, newState, direction, null);
+    }
+
+    StateChange(List<Object> previousState, List<Object> newState, @StateChangeDirection int direction, @Nullable KeyContextCache contextCache) {
         this.previousState = previousState;
         this.newState = newState;
         this.direction = direction;
+        this.contextCache = contextCache;
     }
 
     List<Object> previousState;
     List<Object> newState;
     int direction;
 
+    // the context cache of the BackstackManager that owns the backstack, if any
+    private final KeyContextCache contextCache;
+
+    private Set<Object> addedKeys;
+    private Set<Object> removedKeys;
+    private Set<Object> retainedKeys;
+
     /**
      * The previous state from before the new keys were set.
      * If empty, then this is an initialize {@link StateChange}.
@@ -79,6 +94,61 @@ public class StateChange {
         return direction;
     }
 
+    /**
+     * The keys that are in the new state, but were not in the previous state, in the order of the new state.
+     * It is computed once, when it is first requested.
+     *
+     * @return the unmodifiable set of added keys.
+     */
+    @NonNull
+    public Set<Object> getAddedKeys() {
+        computeKeyDiff();
+        return addedKeys;
+    }
+
+    /**
+     * The keys that were in the previous state, but are not in the new state, in the order of the previous state.
+     * It is computed once, when it is first requested.
+     *
+     * @return the unmodifiable set of removed keys.
+     */
+    @NonNull
+    public Set<Object> getRemovedKeys() {
+        computeKeyDiff();
+        return removedKeys;
+    }
+
+    /**
+     * The keys that are in both the previous state and the new state, in the order of the new state.
+     * It is computed once, when it is first requested.
+     *
+     * @return the unmodifiable set of retained keys.
+     */
+    @NonNull
+    public Set<Object> getRetainedKeys() {
+        computeKeyDiff();
+        return retainedKeys;
+    }
+
+    private void computeKeyDiff() {
+        if(retainedKeys != null) {
+            return;
+        }
+        Set<Object> previousKeys = new LinkedHashSet<>(previousState);
+        Set<Object> added = new LinkedHashSet<>();
+        Set<Object> retained = new LinkedHashSet<>();
+        for(Object key : newState) {
+            if(previousKeys.remove(key)) {
+                retained.add(key);
+            } else if(!retained.contains(key)) {
+                added.add(key);
+            }
+        }
+        addedKeys = Collections.unmodifiableSet(added);
+        removedKeys = Collections.unmodifiableSet(previousKeys);
+        retainedKeys = Collections.unmodifiableSet(retained);
+    }
+
     /**
      * Provides the top of the previous state.
      *
@@ -107,6 +177,7 @@ public class StateChange {
 
     /**
      * Creates a {@link KeyContextWrapper} using the provided key.
+     * If the backstack is managed by a {@link BackstackManager}, then the context of the key is reused while the key is retained (see {@link BackstackManager#createContext(Context, Object)}).
      *
      * @param base the context used as base for the new context wrapper.
      * @param key  the key this context is associated with.
@@ -114,6 +185,9 @@ public class StateChange {
      */
     @NonNull
     public Context createContext(Context base, Object key) {
+        if(contextCache != null) {
+            return contextCache.getContext(base, key);
+        }
         return new KeyContextWrapper(base, key);
     }
 }
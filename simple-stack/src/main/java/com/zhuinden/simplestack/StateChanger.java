@@ -18,7 +18,9 @@ package com.zhuinden.simplestack;
 /**
  * The StateChanger handles the {@link StateChange}s that occur within the {@link Backstack}.
  *
- * {@link StateChange} cannot be cancelled, a {@link StateChange} set during an active {@link StateChange} gets enqueued.
+ * A {@link StateChange} set during an active {@link StateChange} gets enqueued.
+ * If {@link Backstack#setStateChangeSupersedingEnabled(boolean)} is enabled, then the active {@link StateChange} can be notified
+ * to finish early through {@link CancellationListener}.
  */
 public interface StateChanger {
     /**
@@ -28,6 +30,20 @@ public interface StateChanger {
         void stateChangeComplete();
     }
 
+    /**
+     * Can be implemented by a {@link StateChanger} to be notified when the {@link StateChange} it is handling is superseded by a newer one.
+     */
+    interface CancellationListener {
+        /**
+         * Called when a newer {@link StateChange} is enqueued while this one is in progress.
+         * The state changer should finish the state change as soon as possible (for example, by ending its animation),
+         * and it must still call {@link Callback#stateChangeComplete()}.
+         *
+         * @param stateChange the state change in progress that is superseded.
+         */
+        void stateChangeCancelled(StateChange stateChange);
+    }
+
     /**
      * This is called when a {@link StateChange} occurs.
      * When the {@link StateChange} is handled, {@link Callback#stateChangeComplete()} must be called.
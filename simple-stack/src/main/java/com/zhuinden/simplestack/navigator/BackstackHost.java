@@ -23,11 +23,13 @@ import android.view.ViewGroup;
 import com.zhuinden.simplestack.Backstack;
 import com.zhuinden.simplestack.BackstackManager;
 import com.zhuinden.simplestack.KeyParceler;
+import com.zhuinden.simplestack.NavigationJournal;
 import com.zhuinden.simplestack.StateChanger;
 import com.zhuinden.statebundle.StateBundle;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * This is public because it has to be. It is responsible for the lifecycle integration of the Backstack.
@@ -44,6 +46,12 @@ public final class BackstackHost
 
     KeyParceler keyParceler;
     BackstackManager.StateClearStrategy stateClearStrategy;
+    BackstackManager.SavedStateStore savedStateStore;
+    int storeRetainedTopKeyCount;
+    Executor savedStateStoreExecutor;
+    BackstackManager.SavedStateStore snapshotStore;
+    Executor snapshotExecutor;
+    NavigationJournal navigationJournal;
     boolean shouldPersistContainerChild;
 
     BackstackManager backstackManager;
@@ -53,6 +61,8 @@ public final class BackstackHost
 
     Bundle savedInstanceState;
 
+    private ContainerStatePersister containerStatePersister;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -64,7 +74,15 @@ public final class BackstackHost
             backstackManager = new BackstackManager();
             backstackManager.setKeyParceler(keyParceler);
             backstackManager.setStateClearStrategy(stateClearStrategy);
+            if(savedStateStore != null) {
+                backstackManager.setSavedStateStore(savedStateStore, storeRetainedTopKeyCount, savedStateStoreExecutor);
+            }
+            if(snapshotStore != null) {
+                backstackManager.setSnapshotStore(snapshotStore, snapshotExecutor);
+            }
+            backstackManager.setNavigationJournal(navigationJournal);
             backstackManager.setup(initialKeys);
+            containerStatePersister = new ContainerStatePersister(snapshotStore != null);
             if(savedInstanceState != null) {
                 backstackManager.fromBundle(savedInstanceState.<StateBundle>getParcelable("NAVIGATOR_STATE_BUNDLE"));
             }
@@ -78,32 +96,51 @@ public final class BackstackHost
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        if(shouldPersistContainerChild) {
-            Navigator.persistViewToState(container.getChildAt(0));
-        }
-        outState.putParcelable("NAVIGATOR_STATE_BUNDLE", backstackManager.toBundle());
+        outState.putParcelable("NAVIGATOR_STATE_BUNDLE", containerStatePersister.toBundle(backstackManager, container, shouldPersistContainerChild));
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        backstackManager.reattachStateChanger();
+        containerStatePersister.onResume(backstackManager);
     }
 
     @Override
     public void onPause() {
-        backstackManager.detachStateChanger();
+        containerStatePersister.onPause(backstackManager, container, shouldPersistContainerChild);
         super.onPause();
     }
 
     @Override
     public void onDestroyView() {
         backstackManager.getBackstack().executePendingStateChange();
+        backstackManager.releaseContexts();
         stateChanger = null;
         container = null;
         super.onDestroyView();
     }
 
+    @TargetApi(14)
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if(backstackManager != null) {
+            backstackManager.trimMemory(level);
+        }
+        if(stateChanger instanceof DefaultStateChanger) {
+            ((DefaultStateChanger) stateChanger).trimMemory(level);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        // the host is retained, so it is only destroyed when the Activity is finishing
+        if(navigationJournal != null) {
+            navigationJournal.clear();
+        }
+        super.onDestroy();
+    }
+
     public Backstack getBackstack() {
         return backstackManager.getBackstack();
     }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack.navigator;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.view.ViewGroup;
+
+import com.zhuinden.simplestack.BackstackManager;
+import com.zhuinden.statebundle.StateBundle;
+
+/**
+ * Persists the state of the container child and of the {@link BackstackManager} for the {@link BackstackHost}.
+ *
+ * By default, the child is persisted when the state is saved.
+ *
+ * If a snapshot store is set, then the child is persisted when the host is paused, before the state changer is detached, because detaching submits the snapshot of the state.
+ * The child is not persisted again while the host stays paused, so the saved instance state can point to the snapshot once it is written.
+ * Modifications of the child between the pause and the save are then not persisted.
+ */
+final class ContainerStatePersister {
+    private final boolean isPersistingOnPause;
+
+    private boolean isContainerChildPersisted = false;
+
+    ContainerStatePersister(boolean hasSnapshotStore) {
+        this.isPersistingOnPause = hasSnapshotStore;
+    }
+
+    void onResume(@NonNull BackstackManager backstackManager) {
+        isContainerChildPersisted = false;
+        backstackManager.reattachStateChanger();
+    }
+
+    void onPause(@NonNull BackstackManager backstackManager, @Nullable ViewGroup container, boolean shouldPersistContainerChild) {
+        if(isPersistingOnPause && shouldPersistContainerChild && container != null) {
+            Navigator.persistViewToState(container.getChildAt(0));
+            isContainerChildPersisted = true;
+        }
+        backstackManager.detachStateChanger();
+    }
+
+    @NonNull
+    StateBundle toBundle(@NonNull BackstackManager backstackManager, @Nullable ViewGroup container, boolean shouldPersistContainerChild) {
+        if(shouldPersistContainerChild && container != null && !isContainerChildPersisted) {
+            Navigator.persistViewToState(container.getChildAt(0));
+        }
+        return backstackManager.toBundle();
+    }
+}
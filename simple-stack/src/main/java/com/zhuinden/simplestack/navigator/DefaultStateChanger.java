@@ -16,17 +16,28 @@
 package com.zhuinden.simplestack.navigator;
 
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.zhuinden.simplestack.Backstack;
 import com.zhuinden.simplestack.StateChange;
 import com.zhuinden.simplestack.StateChanger;
 import com.zhuinden.simplestack.navigator.changehandlers.NoOpViewChangeHandler;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * A default state changer that handles view changes, and allows an optional external state changer (which is executed before the view change).
  *
@@ -34,7 +45,7 @@ import com.zhuinden.simplestack.navigator.changehandlers.NoOpViewChangeHandler;
  */
 @TargetApi(11)
 public final class DefaultStateChanger
-        implements StateChanger {
+        implements StateChanger, StateChanger.CancellationListener {
     private static class NoOpStateChanger
             implements StateChanger {
         @Override
@@ -108,11 +119,43 @@ public final class DefaultStateChanger
 
     private static final NoOpViewChangeHandler NO_OP_VIEW_CHANGE_HANDLER = new NoOpViewChangeHandler();
 
+    private static final Backstack.Tracer NO_OP_TRACER = new Backstack.NoOpTracer();
+
+    interface IdleScheduler {
+        void runWhenIdle(Runnable runnable);
+    }
+
+    private static final IdleScheduler LOOPER_IDLE_SCHEDULER = new IdleScheduler() {
+        @Override
+        public void runWhenIdle(final Runnable runnable) {
+            Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                @Override
+                public boolean queueIdle() {
+                    runnable.run();
+                    return false;
+                }
+            });
+        }
+    };
+
     private Context baseContext;
     private ViewGroup container;
     private StateChanger externalStateChanger;
     private ViewChangeCompletionListener viewChangeCompletionListener;
     private StatePersistenceStrategy statePersistenceStrategy;
+    private Backstack.Tracer tracer;
+    private int maxCachedViews;
+
+    private final LinkedHashMap<Object, View> viewCache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<Object, View> prefetchedViews = new HashMap<>();
+    private final Set<Object> pendingPrefetches = new HashSet<>();
+    private int prefetchGeneration = 0;
+    private StateChange lastStateChange;
+
+    IdleScheduler idleScheduler = LOOPER_IDLE_SCHEDULER;
+
+    private ViewChangeHandler activeViewChangeHandler;
 
     /**
      * Used to configure the instance of the {@link DefaultStateChanger}.
@@ -124,6 +167,8 @@ public final class DefaultStateChanger
         StateChanger externalStateChanger = null;
         ViewChangeCompletionListener viewChangeCompletionListener = null;
         StatePersistenceStrategy statePersistenceStrategy = null;
+        Backstack.Tracer tracer = null;
+        int maxCachedViews = 0;
 
         private Configurer() {
         }
@@ -170,6 +215,38 @@ public final class DefaultStateChanger
             return this;
         }
 
+        /**
+         * Sets the {@link Backstack.Tracer}. It receives the inflate and view change phases of the view change.
+         *
+         * @param tracer the tracer
+         * @return the configurer
+         */
+        public Configurer setTracer(@NonNull Backstack.Tracer tracer) {
+            if(tracer == null) {
+                throw new NullPointerException("If set, tracer cannot be null!");
+            }
+            this.tracer = tracer;
+            return this;
+        }
+
+        /**
+         * Enables caching the detached views of keys that are still in the history, so that navigating back to them
+         * re-attaches the view instead of inflating it. The state of a re-attached view is restored like the state of an inflated view.
+         *
+         * The least recently shown views are evicted above the limit, and a view is evicted when its key leaves the history.
+         * The cache can be cleared with {@link DefaultStateChanger#trimMemory(int)}.
+         *
+         * @param maxCachedViews the maximum number of cached views, 0 disables the cache
+         * @return the configurer
+         */
+        public Configurer setViewCache(int maxCachedViews) {
+            if(maxCachedViews < 0) {
+                throw new IllegalArgumentException("Max cached views cannot be negative!");
+            }
+            this.maxCachedViews = maxCachedViews;
+            return this;
+        }
+
         /**
          * Creates the {@link DefaultStateChanger} with the specified parameters.
          *
@@ -178,7 +255,7 @@ public final class DefaultStateChanger
          * @return the new {@link DefaultStateChanger}
          */
         public DefaultStateChanger create(Context baseContext, ViewGroup container) {
-            return new DefaultStateChanger(baseContext, container, externalStateChanger, viewChangeCompletionListener, statePersistenceStrategy);
+            return new DefaultStateChanger(baseContext, container, externalStateChanger, viewChangeCompletionListener, statePersistenceStrategy, tracer, maxCachedViews);
         }
     }
 
@@ -202,10 +279,10 @@ public final class DefaultStateChanger
      * @return the state changer
      */
     public static DefaultStateChanger create(Context baseContext, ViewGroup container) {
-        return new DefaultStateChanger(baseContext, container, null, null, null);
+        return new DefaultStateChanger(baseContext, container, null, null, null, null, 0);
     }
 
-    DefaultStateChanger(@NonNull Context baseContext, @NonNull ViewGroup container, @Nullable StateChanger externalStateChanger, @Nullable ViewChangeCompletionListener viewChangeCompletionListener, @Nullable StatePersistenceStrategy statePersistenceStrategy) {
+    DefaultStateChanger(@NonNull Context baseContext, @NonNull ViewGroup container, @Nullable StateChanger externalStateChanger, @Nullable ViewChangeCompletionListener viewChangeCompletionListener, @Nullable StatePersistenceStrategy statePersistenceStrategy, @Nullable Backstack.Tracer tracer, int maxCachedViews) {
         if(baseContext == null) {
             throw new NullPointerException("baseContext cannot be null");
         }
@@ -226,9 +303,17 @@ public final class DefaultStateChanger
             statePersistenceStrategy = new NavigatorStatePersistenceStrategy();
         }
         this.statePersistenceStrategy = statePersistenceStrategy;
+        if(tracer == null) {
+            tracer = NO_OP_TRACER;
+        }
+        this.tracer = tracer;
+        this.maxCachedViews = maxCachedViews;
     }
 
-    private void finishStateChange(StateChange stateChange, ViewGroup container, View previousView, View newView, final Callback completionCallback) {
+    private void finishStateChange(StateChange stateChange, ViewGroup container, Object previousKey, View previousView, View newView, final Callback completionCallback) {
+        if(maxCachedViews > 0) {
+            updateViewCache(stateChange, previousKey, previousView);
+        }
         viewChangeCompletionListener.handleViewChangeComplete(stateChange, container, previousView, newView, new ViewChangeCompletionListener.Callback() {
             @Override
             public void viewChangeComplete() {
@@ -239,6 +324,7 @@ public final class DefaultStateChanger
 
     @Override
     public final void handleStateChange(final StateChange stateChange, final Callback completionCallback) {
+        lastStateChange = stateChange;
         externalStateChanger.handleStateChange(stateChange, new Callback() {
             @Override
             public void stateChangeComplete() {
@@ -253,6 +339,23 @@ public final class DefaultStateChanger
         });
     }
 
+    /**
+     * Called when the state change in progress is superseded by a newer one.
+     * The external state changer is notified if it is a {@link StateChanger.CancellationListener},
+     * and the active view change is ended if its {@link ViewChangeHandler} is {@link ViewChangeHandler.Cancellable}.
+     *
+     * @param stateChange the state change in progress
+     */
+    @Override
+    public void stateChangeCancelled(StateChange stateChange) {
+        if(externalStateChanger instanceof StateChanger.CancellationListener) {
+            ((StateChanger.CancellationListener) externalStateChanger).stateChangeCancelled(stateChange);
+        }
+        if(activeViewChangeHandler instanceof ViewChangeHandler.Cancellable) {
+            ((ViewChangeHandler.Cancellable) activeViewChangeHandler).cancelViewChange(container);
+        }
+    }
+
     /**
      * Handles the view change using the provided parameters. The direction is specified by the direction in the state change.
      *
@@ -278,18 +381,31 @@ public final class DefaultStateChanger
      * @param <T>                the type of the previous key
      * @param <U>                the type of the new key
      */
-    public final <T extends StateKey, U extends StateKey> void performViewChange(T previousKey, U newKey, final StateChange stateChange, final int direction, final Callback completionCallback) {
+    public final <T extends StateKey, U extends StateKey> void performViewChange(final T previousKey, U newKey, final StateChange stateChange, final int direction, final Callback completionCallback) {
         final View previousView = container.getChildAt(0);
         if(previousView != null && previousKey != null) {
             statePersistenceStrategy.persistViewToState(previousKey, previousView);
         }
-        Context newContext = stateChange.createContext(baseContext, newKey);
-        final View newView = LayoutInflater.from(newContext).inflate(newKey.layout(), container, false);
+        final View newView;
+        View cachedView = viewCache.remove(newKey);
+        View prefetchedView = prefetchedViews.remove(newKey);
+        discardPrefetches();
+        if(cachedView != null && cachedView.getParent() == null) {
+            newView = cachedView;
+        } else if(prefetchedView != null && prefetchedView.getParent() == null) {
+            newView = prefetchedView;
+        } else {
+            tracer.onPhaseStarted(Backstack.Tracer.PHASE_INFLATE, System.nanoTime());
+            Context newContext = stateChange.createContext(baseContext, newKey);
+            newView = inflateView(newContext, newKey);
+            tracer.onPhaseEnded(Backstack.Tracer.PHASE_INFLATE, System.nanoTime());
+        }
+        // a cached view is restored as well, as its state might have been modified or restored after process death while it was detached
         statePersistenceStrategy.restoreViewFromState(newKey, newView);
 
         if(previousView == null) {
             container.addView(newView);
-            finishStateChange(stateChange, container, previousView, newView, completionCallback);
+            finishStateChange(stateChange, container, previousKey, previousView, newView, completionCallback);
         } else {
             final ViewChangeHandler viewChangeHandler;
             if(direction == StateChange.FORWARD) {
@@ -299,6 +415,8 @@ public final class DefaultStateChanger
             } else {
                 viewChangeHandler = NO_OP_VIEW_CHANGE_HANDLER;
             }
+            activeViewChangeHandler = viewChangeHandler;
+            tracer.onPhaseStarted(Backstack.Tracer.PHASE_VIEW_CHANGE, System.nanoTime());
             viewChangeHandler.performViewChange(container,
                     previousView,
                     newView,
@@ -306,9 +424,103 @@ public final class DefaultStateChanger
                     new ViewChangeHandler.CompletionCallback() {
                         @Override
                         public void onCompleted() {
-                            finishStateChange(stateChange, container, previousView, newView, completionCallback);
+                            activeViewChangeHandler = null;
+                            tracer.onPhaseEnded(Backstack.Tracer.PHASE_VIEW_CHANGE, System.nanoTime());
+                            finishStateChange(stateChange, container, previousKey, previousView, newView, completionCallback);
                         }
                     });
         }
     }
+
+    private View inflateView(Context context, StateKey key) {
+        return LayoutInflater.from(context).inflate(key.layout(), container, false);
+    }
+
+    /**
+     * Inflates the layout of a key that is likely to be shown by the next state change, such as the detail of a list, or the previous key.
+     * If the next state change shows this key, then its view is not inflated during the view change.
+     *
+     * The view is inflated on the main thread when it is idle, with the context that the state change would create for the key.
+     * Prefetched views that are not used by the next state change are discarded.
+     * Keys are only prefetched after the first state change was handled.
+     *
+     * Must be called on the main thread.
+     *
+     * @param key the key whose view should be prefetched
+     */
+    public void prefetch(@NonNull final StateKey key) {
+        if(key == null) {
+            throw new IllegalArgumentException("Key cannot be null!");
+        }
+        if(lastStateChange == null || viewCache.containsKey(key) || prefetchedViews.containsKey(key) || pendingPrefetches.contains(key)) {
+            return;
+        }
+        pendingPrefetches.add(key);
+        final int generation = prefetchGeneration;
+        final StateChange stateChange = lastStateChange;
+        idleScheduler.runWhenIdle(new Runnable() {
+            @Override
+            public void run() {
+                if(generation == prefetchGeneration) {
+                    onPrefetched(key, inflateView(stateChange.createContext(baseContext, key), key));
+                }
+            }
+        });
+    }
+
+    private void onPrefetched(Object key, View view) {
+        pendingPrefetches.remove(key);
+        prefetchedViews.put(key, view);
+    }
+
+    private void discardPrefetches() {
+        prefetchGeneration++;
+        pendingPrefetches.clear();
+        prefetchedViews.clear();
+    }
+
+    private void updateViewCache(StateChange stateChange, Object previousKey, View previousView) {
+        // a key is in the new state if it is retained or added
+        Set<Object> retainedKeys = stateChange.getRetainedKeys();
+        Set<Object> addedKeys = stateChange.getAddedKeys();
+        Iterator<Object> keyIterator = viewCache.keySet().iterator();
+        while(keyIterator.hasNext()) {
+            Object key = keyIterator.next();
+            if(!retainedKeys.contains(key) && !addedKeys.contains(key)) {
+                keyIterator.remove();
+            }
+        }
+        if(previousKey != null && previousView != null && previousView.getParent() == null && (retainedKeys.contains(previousKey) || addedKeys.contains(previousKey))) {
+            resetTransformation(previousView);
+            viewCache.put(previousKey, previousView);
+        }
+        Iterator<Map.Entry<Object, View>> leastRecentlyShown = viewCache.entrySet().iterator();
+        while(viewCache.size() > maxCachedViews && leastRecentlyShown.hasNext()) {
+            leastRecentlyShown.next();
+            leastRecentlyShown.remove();
+        }
+    }
+
+    private static void resetTransformation(View view) {
+        // the view change handler might have animated the view out
+        view.setAlpha(1f);
+        view.setTranslationX(0f);
+        view.setTranslationY(0f);
+        view.setScaleX(1f);
+        view.setScaleY(1f);
+        view.setRotation(0f);
+    }
+
+    /**
+     * Clears the cached views (see {@link Configurer#setViewCache(int)}) and the prefetched views when the system is running low on memory, or the UI is hidden.
+     * The state of cached views was already persisted when they were detached, so they are inflated and restored the next time they are shown.
+     *
+     * @param level the trim memory level from {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void trimMemory(int level) {
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            viewCache.clear();
+            discardPrefetches();
+        }
+    }
 }
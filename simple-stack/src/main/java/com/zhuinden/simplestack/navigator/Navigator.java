@@ -29,11 +29,17 @@ import com.zhuinden.simplestack.Backstack;
 import com.zhuinden.simplestack.BackstackManager;
 import com.zhuinden.simplestack.DefaultKeyParceler;
 import com.zhuinden.simplestack.DefaultStateClearStrategy;
+import com.zhuinden.simplestack.KeyContextWrapper;
 import com.zhuinden.simplestack.KeyParceler;
+import com.zhuinden.simplestack.NavigationJournal;
 import com.zhuinden.simplestack.SavedState;
 import com.zhuinden.simplestack.StateChanger;
 
+import java.lang.ref.WeakReference;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * Convenience class to hide lifecycle integration using retained fragment.
@@ -46,6 +52,8 @@ public class Navigator {
     private Navigator() {
     }
 
+    private static final Map<Activity, WeakReference<BackstackHost>> backstackHosts = new WeakHashMap<>();
+
     /**
      * A configurer for {@link Navigator}.
      */
@@ -53,6 +61,12 @@ public class Navigator {
     public static class Installer {
         StateChanger stateChanger;
         BackstackManager.StateClearStrategy stateClearStrategy = new DefaultStateClearStrategy();
+        BackstackManager.SavedStateStore savedStateStore = null;
+        Executor savedStateStoreExecutor = null;
+        int storeRetainedTopKeyCount = 1;
+        BackstackManager.SavedStateStore snapshotStore = null;
+        Executor snapshotExecutor = null;
+        NavigationJournal navigationJournal = null;
         KeyParceler keyParceler = new DefaultKeyParceler();
         boolean isInitializeDeferred = false;
         boolean shouldPersistContainerChild = true;
@@ -101,6 +115,68 @@ public class Navigator {
             return this;
         }
 
+        /**
+         * Sets the saved state store used to keep the state of keys that are not at the top of the history out of memory.
+         * For example, a {@link com.zhuinden.simplestack.FileSavedStateStore} in a directory of the app's internal storage.
+         *
+         * @param savedStateStore     if set, it cannot be null
+         * @param retainedTopKeyCount the number of keys at the top of the history whose state is always kept in memory
+         * @param executor            the executor on which the states are written and deleted in order, for example a single thread executor
+         * @return the installer
+         */
+        public Installer setSavedStateStore(@NonNull BackstackManager.SavedStateStore savedStateStore, int retainedTopKeyCount, @NonNull Executor executor) {
+            if(savedStateStore == null) {
+                throw new IllegalArgumentException("If set, SavedStateStore cannot be null!");
+            }
+            if(retainedTopKeyCount < 1) {
+                throw new IllegalArgumentException("At least the top key must be retained!");
+            }
+            if(executor == null) {
+                throw new IllegalArgumentException("If set, SavedStateStore executor cannot be null!");
+            }
+            this.savedStateStore = savedStateStore;
+            this.storeRetainedTopKeyCount = retainedTopKeyCount;
+            this.savedStateStoreExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the store into which a snapshot of the backstack is written on the given executor when the Activity is paused,
+         * so that the saved instance state only needs to contain a pointer to the snapshot.
+         * The container child is then persisted when the Activity is paused instead of when its state is saved.
+         *
+         * @param snapshotStore if set, it cannot be null
+         * @param executor      the executor on which the snapshots are written
+         * @return the installer
+         */
+        public Installer setSnapshotStore(@NonNull BackstackManager.SavedStateStore snapshotStore, @NonNull Executor executor) {
+            if(snapshotStore == null) {
+                throw new IllegalArgumentException("If set, snapshot store cannot be null!");
+            }
+            if(executor == null) {
+                throw new IllegalArgumentException("If set, snapshot executor cannot be null!");
+            }
+            this.snapshotStore = snapshotStore;
+            this.snapshotExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Sets the navigation journal, which records the history after each state change,
+         * so that it can be restored even if the process was killed without saving its instance state.
+         * The journal is cleared when the Activity is finishing.
+         *
+         * @param navigationJournal if set, it cannot be null
+         * @return the installer
+         */
+        public Installer setNavigationJournal(@NonNull NavigationJournal navigationJournal) {
+            if(navigationJournal == null) {
+                throw new IllegalArgumentException("If set, navigation journal cannot be null!");
+            }
+            this.navigationJournal = navigationJournal;
+            return this;
+        }
+
         /**
          * Sets if after initialization, the state changer should only be set when {@link Navigator#executeDeferredInitialization(Context)} is called.
          * Typically needed to setup the backstack for dependency injection module.
@@ -178,9 +254,16 @@ public class Navigator {
             activity.getFragmentManager().beginTransaction().add(backstackHost, "NAVIGATOR_BACKSTACK_HOST").commit();
             activity.getFragmentManager().executePendingTransactions();
         }
+        backstackHosts.put(activity, new WeakReference<>(backstackHost));
         backstackHost.stateChanger = installer.stateChanger;
         backstackHost.keyParceler = installer.keyParceler;
         backstackHost.stateClearStrategy = installer.stateClearStrategy;
+        backstackHost.savedStateStore = installer.savedStateStore;
+        backstackHost.storeRetainedTopKeyCount = installer.storeRetainedTopKeyCount;
+        backstackHost.savedStateStoreExecutor = installer.savedStateStoreExecutor;
+        backstackHost.snapshotStore = installer.snapshotStore;
+        backstackHost.snapshotExecutor = installer.snapshotExecutor;
+        backstackHost.navigationJournal = installer.navigationJournal;
         backstackHost.shouldPersistContainerChild = installer.shouldPersistContainerChild;
         backstackHost.container = container;
         backstackHost.initialKeys = initialKeys;
@@ -193,8 +276,7 @@ public class Navigator {
      * @param context the context to which an activity belongs that hosts the backstack
      */
     public static void executeDeferredInitialization(Context context) {
-        Activity activity = findActivity(context);
-        BackstackHost backstackHost = findBackstackHost(activity);
+        BackstackHost backstackHost = getBackstackHost(context);
         backstackHost.initialize(false);
     }
 
@@ -205,8 +287,7 @@ public class Navigator {
      * @return the backstack
      */
     public static Backstack getBackstack(Context context) {
-        BackstackHost backstackHost = getBackstackHost(context);
-        return backstackHost.getBackstack();
+        return getBackstackManager(context).getBackstack();
     }
 
     /**
@@ -226,8 +307,7 @@ public class Navigator {
      * @return the managed backstack manager that belongs to the {@link BackstackHost} inside the activity.
      */
     public static BackstackManager getManager(Context context) {
-        BackstackHost backstackHost = getBackstackHost(context);
-        return backstackHost.getBackstackManager();
+        return getBackstackManager(context);
     }
 
     /**
@@ -237,9 +317,7 @@ public class Navigator {
      */
     public static void persistViewToState(@Nullable View view) {
         if(view != null) {
-            Context context = view.getContext();
-            BackstackHost backstackHost = getBackstackHost(context);
-            backstackHost.getBackstackManager().persistViewToState(view);
+            getBackstackManager(view.getContext()).persistViewToState(view);
         }
     }
 
@@ -252,9 +330,7 @@ public class Navigator {
         if(view == null) {
             throw new NullPointerException("You cannot restore state into null view!");
         }
-        Context context = view.getContext();
-        BackstackHost backstackHost = getBackstackHost(context);
-        backstackHost.getBackstackManager().restoreViewFromState(view);
+        getBackstackManager(view.getContext()).restoreViewFromState(view);
     }
 
     /**
@@ -271,8 +347,7 @@ public class Navigator {
         if(key == null) {
             throw new NullPointerException("key cannot be null");
         }
-        BackstackHost backstackHost = getBackstackHost(context);
-        return backstackHost.getBackstackManager().getSavedState(key);
+        return getBackstackManager(context).getSavedState(key);
     }
 
     private static BackstackHost findBackstackHost(Activity activity) {
@@ -294,6 +369,26 @@ public class Navigator {
 
     private static BackstackHost getBackstackHost(Context context) {
         Activity activity = findActivity(context);
-        return findBackstackHost(activity);
+        WeakReference<BackstackHost> backstackHostRef = backstackHosts.get(activity);
+        BackstackHost backstackHost = backstackHostRef == null ? null : backstackHostRef.get();
+        if(backstackHost == null) {
+            backstackHost = findBackstackHost(activity);
+            if(backstackHost == null) {
+                throw new IllegalStateException("The Navigator was not installed into the Activity [" + activity + "]!");
+            }
+            backstackHosts.put(activity, new WeakReference<>(backstackHost));
+        }
+        return backstackHost;
+    }
+
+    private static BackstackManager getBackstackManager(Context context) {
+        // contexts created by the backstack manager provide it directly, the activity is only looked up for other contexts
+        if(!(context instanceof Activity)) {
+            BackstackManager backstackManager = KeyContextWrapper.getBackstackManager(context);
+            if(backstackManager != null) {
+                return backstackManager;
+            }
+        }
+        return getBackstackHost(context).getBackstackManager();
     }
 }
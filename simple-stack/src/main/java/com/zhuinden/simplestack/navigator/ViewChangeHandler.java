@@ -32,6 +32,21 @@ public interface ViewChangeHandler {
         void onCompleted();
     }
 
+    /**
+     * Can be implemented by a {@link ViewChangeHandler} that is able to end its view change in progress immediately.
+     * Used by {@link DefaultStateChanger} when its state change is superseded by a newer one.
+     *
+     * As handlers can be shared between keys and containers, the view change to end is identified by its container.
+     */
+    interface Cancellable {
+        /**
+         * Ends the view change in progress in the given container as soon as possible. The completion callback must still be called.
+         *
+         * @param container the container of the view change
+         */
+        void cancelViewChange(@NonNull ViewGroup container);
+    }
+
     /**
      * Perform the view change. The previous view must be removed from the container, and the new view must be added to the container.
      * When complete, the completion callback must be called.
@@ -24,33 +24,80 @@ import android.view.ViewGroup;
 
 import com.zhuinden.simplestack.navigator.ViewChangeHandler;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Convenience base class to support view animations using Animator.
+ *
+ * A handler can be shared between keys and containers, the state of each view change is kept separately.
  */
 @TargetApi(11)
 public abstract class AnimatorViewChangeHandler
-        implements ViewChangeHandler {
+        implements ViewChangeHandler, ViewChangeHandler.Cancellable {
+    private static class ViewChange {
+        final ViewGroup container;
+        Animator animator;
+        boolean isCancelled;
+
+        ViewChange(ViewGroup container) {
+            this.container = container;
+        }
+    }
+
+    private final List<ViewChange> activeViewChanges = new ArrayList<>(1);
+
     @Override
     public void performViewChange(@NonNull final ViewGroup container, @NonNull final View previousView, @NonNull final View newView, final int direction, @NonNull final CompletionCallback completionCallback) {
+        final ViewChange viewChange = new ViewChange(container);
+        activeViewChanges.add(viewChange);
         container.addView(newView);
         ViewUtils.waitForMeasure(newView, new ViewUtils.OnMeasuredCallback() {
             @Override
             public void onMeasured(View view, int width, int height) {
-                runAnimation(previousView, newView, direction, new AnimatorListenerAdapter() {
+                if(viewChange.isCancelled) {
+                    finishViewChange(viewChange, previousView, completionCallback);
+                    return;
+                }
+                runAnimation(viewChange, previousView, newView, direction, new AnimatorListenerAdapter() {
                     @Override
                     public void onAnimationEnd(Animator animation) {
-                        container.removeView(previousView);
-                        completionCallback.onCompleted();
+                        finishViewChange(viewChange, previousView, completionCallback);
                     }
                 });
             }
         });
     }
 
+    /**
+     * Ends the running animation in the container immediately, or skips it if it has not started yet.
+     *
+     * @param container the container of the view change
+     */
+    @Override
+    public void cancelViewChange(@NonNull ViewGroup container) {
+        for(ViewChange viewChange : new ArrayList<>(activeViewChanges)) {
+            if(viewChange.container == container) {
+                viewChange.isCancelled = true;
+                if(viewChange.animator != null) {
+                    viewChange.animator.end();
+                }
+            }
+        }
+    }
+
+    private void finishViewChange(ViewChange viewChange, View previousView, CompletionCallback completionCallback) {
+        activeViewChanges.remove(viewChange);
+        viewChange.animator = null;
+        viewChange.container.removeView(previousView);
+        completionCallback.onCompleted();
+    }
+
     // animation
-    private void runAnimation(final View previousView, final View newView, int direction, AnimatorListenerAdapter animatorListenerAdapter) {
+    private void runAnimation(ViewChange viewChange, final View previousView, final View newView, int direction, AnimatorListenerAdapter animatorListenerAdapter) {
         Animator animator = createAnimator(previousView, newView, direction);
         animator.addListener(animatorListenerAdapter);
+        viewChange.animator = animator;
         animator.start();
     }
 
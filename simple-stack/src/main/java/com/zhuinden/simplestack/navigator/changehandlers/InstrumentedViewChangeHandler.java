@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack.navigator.changehandlers;
+
+import android.annotation.TargetApi;
+import android.support.annotation.NonNull;
+import android.view.Choreographer;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.zhuinden.simplestack.navigator.ViewChangeHandler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ViewChangeHandler} that measures the frames rendered during the view change of the wrapped handler,
+ * and reports them to a {@link MetricsSink} once the view change is complete.
+ *
+ * The view change starts after the new view is inflated, so the time to first frame includes the measure and layout of the new view.
+ */
+public final class InstrumentedViewChangeHandler
+        implements ViewChangeHandler, ViewChangeHandler.Cancellable {
+    /**
+     * The source of frame timings.
+     */
+    public interface FrameClock {
+        /**
+         * Receives the time of the next frame.
+         */
+        interface FrameCallback {
+            void doFrame(long frameTimeNanos);
+        }
+
+        /**
+         * Returns the current time, in the same time base as the frame times.
+         *
+         * @return the current time in nanoseconds
+         */
+        long nanoTime();
+
+        /**
+         * Posts a callback to be called once, when the next frame is rendered.
+         *
+         * @param frameCallback the frame callback
+         */
+        void postFrameCallback(@NonNull FrameCallback frameCallback);
+    }
+
+    /**
+     * A {@link FrameClock} backed by the {@link Choreographer} of the main thread.
+     */
+    @TargetApi(16)
+    public static final class ChoreographerFrameClock
+            implements FrameClock {
+        private Choreographer choreographer;
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void postFrameCallback(@NonNull final FrameCallback frameCallback) {
+            if(choreographer == null) {
+                choreographer = Choreographer.getInstance();
+            }
+            choreographer.postFrameCallback(new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    frameCallback.doFrame(frameTimeNanos);
+                }
+            });
+        }
+    }
+
+    /**
+     * The frame timings of a view change.
+     */
+    public static final class Metrics {
+        private final long timeToFirstFrameNanos;
+        private final int frameCount;
+        private final int longFrameCount;
+        private final long longestFrameNanos;
+        private final long durationNanos;
+
+        Metrics(long timeToFirstFrameNanos, int frameCount, int longFrameCount, long longestFrameNanos, long durationNanos) {
+            this.timeToFirstFrameNanos = timeToFirstFrameNanos;
+            this.frameCount = frameCount;
+            this.longFrameCount = longFrameCount;
+            this.longestFrameNanos = longestFrameNanos;
+            this.durationNanos = durationNanos;
+        }
+
+        /**
+         * Returns the time from the start of the view change until its first frame, or -1 if it completed before the first frame.
+         *
+         * @return the time to first frame in nanoseconds
+         */
+        public long getTimeToFirstFrameNanos() {
+            return timeToFirstFrameNanos;
+        }
+
+        /**
+         * Returns the number of frames rendered during the view change.
+         *
+         * @return the frame count
+         */
+        public int getFrameCount() {
+            return frameCount;
+        }
+
+        /**
+         * Returns the number of frames that took longer than the long frame threshold, including the first frame.
+         *
+         * @return the long frame count
+         */
+        public int getLongFrameCount() {
+            return longFrameCount;
+        }
+
+        /**
+         * Returns the duration of the longest frame, including the first frame.
+         *
+         * @return the longest frame in nanoseconds
+         */
+        public long getLongestFrameNanos() {
+            return longestFrameNanos;
+        }
+
+        /**
+         * Returns the time from the start of the view change until its completion.
+         *
+         * @return the duration in nanoseconds
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics{" + "timeToFirstFrameNanos=" + timeToFirstFrameNanos + ", frameCount=" + frameCount + ", longFrameCount=" + longFrameCount + ", longestFrameNanos=" + longestFrameNanos + ", durationNanos=" + durationNanos + '}';
+        }
+    }
+
+    /**
+     * Receives the {@link Metrics} of the completed view changes.
+     */
+    public interface MetricsSink {
+        /**
+         * Called when a view change is complete, before the completion callback of the view change is called.
+         *
+         * @param viewChangeHandler the wrapped view change handler
+         * @param direction         the direction of the view change
+         * @param metrics           the frame timings of the view change
+         */
+        void onViewChangeMeasured(@NonNull ViewChangeHandler viewChangeHandler, int direction, @NonNull Metrics metrics);
+    }
+
+    /**
+     * The default threshold above which a frame is considered long, one and a half frames at 60 Hz.
+     */
+    public static final long DEFAULT_LONG_FRAME_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(25);
+
+    private final ViewChangeHandler viewChangeHandler;
+    private final MetricsSink metricsSink;
+    private final FrameClock frameClock;
+    private final long longFrameThresholdNanos;
+
+    /**
+     * Creates the handler, measuring the frames with a {@link ChoreographerFrameClock}.
+     *
+     * @param viewChangeHandler the view change handler to measure
+     * @param metricsSink       the sink that receives the metrics
+     */
+    @TargetApi(16)
+    public InstrumentedViewChangeHandler(@NonNull ViewChangeHandler viewChangeHandler, @NonNull MetricsSink metricsSink) {
+        this(viewChangeHandler, metricsSink, new ChoreographerFrameClock(), DEFAULT_LONG_FRAME_THRESHOLD_NANOS);
+    }
+
+    /**
+     * Creates the handler.
+     *
+     * @param viewChangeHandler       the view change handler to measure
+     * @param metricsSink             the sink that receives the metrics
+     * @param frameClock              the source of frame timings
+     * @param longFrameThresholdNanos the duration above which a frame is considered long
+     */
+    public InstrumentedViewChangeHandler(@NonNull ViewChangeHandler viewChangeHandler, @NonNull MetricsSink metricsSink, @NonNull FrameClock frameClock, long longFrameThresholdNanos) {
+        if(viewChangeHandler == null) {
+            throw new IllegalArgumentException("View change handler cannot be null!");
+        }
+        if(metricsSink == null) {
+            throw new IllegalArgumentException("Metrics sink cannot be null!");
+        }
+        if(frameClock == null) {
+            throw new IllegalArgumentException("Frame clock cannot be null!");
+        }
+        if(longFrameThresholdNanos <= 0) {
+            throw new IllegalArgumentException("Long frame threshold must be positive!");
+        }
+        this.viewChangeHandler = viewChangeHandler;
+        this.metricsSink = metricsSink;
+        this.frameClock = frameClock;
+        this.longFrameThresholdNanos = longFrameThresholdNanos;
+    }
+
+    @Override
+    public void performViewChange(@NonNull ViewGroup container, @NonNull View previousView, @NonNull View newView, final int direction, @NonNull final CompletionCallback completionCallback) {
+        final Measurement measurement = new Measurement(frameClock.nanoTime());
+        frameClock.postFrameCallback(measurement);
+        viewChangeHandler.performViewChange(container, previousView, newView, direction, new CompletionCallback() {
+            @Override
+            public void onCompleted() {
+                metricsSink.onViewChangeMeasured(viewChangeHandler, direction, measurement.finish(frameClock.nanoTime()));
+                completionCallback.onCompleted();
+            }
+        });
+    }
+
+    @Override
+    public void cancelViewChange(@NonNull ViewGroup container) {
+        if(viewChangeHandler instanceof ViewChangeHandler.Cancellable) {
+            ((ViewChangeHandler.Cancellable) viewChangeHandler).cancelViewChange(container);
+        }
+    }
+
+    private class Measurement
+            implements FrameClock.FrameCallback {
+        private final long startNanos;
+        private long lastFrameNanos;
+        private long timeToFirstFrameNanos = -1;
+        private int frameCount;
+        private int longFrameCount;
+        private long longestFrameNanos;
+        private boolean isFinished;
+
+        Measurement(long startNanos) {
+            this.startNanos = startNanos;
+            this.lastFrameNanos = startNanos;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if(isFinished) {
+                return;
+            }
+            long frameNanos = Math.max(0, frameTimeNanos - lastFrameNanos);
+            if(frameCount == 0) {
+                timeToFirstFrameNanos = frameNanos;
+            }
+            if(frameNanos > longFrameThresholdNanos) {
+                longFrameCount++;
+            }
+            longestFrameNanos = Math.max(longestFrameNanos, frameNanos);
+            lastFrameNanos = frameTimeNanos;
+            frameCount++;
+            frameClock.postFrameCallback(this);
+        }
+
+        Metrics finish(long endNanos) {
+            isFinished = true;
+            return new Metrics(timeToFirstFrameNanos, frameCount, longFrameCount, longestFrameNanos, endNanos - startNanos);
+        }
+    }
+}
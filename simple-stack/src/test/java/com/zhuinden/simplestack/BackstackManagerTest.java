@@ -1,12 +1,18 @@
 package com.zhuinden.simplestack;
 
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.os.Parcelable;
+import android.util.SparseArray;
 
 import com.zhuinden.statebundle.StateBundle;
 
 import org.junit.Test;
+import org.mockito.Mockito;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -44,4 +50,300 @@ public class BackstackManagerTest {
         assertThat(backstack.getHistory()).doesNotContain(restored);
         assertThat(backstack.getHistory()).containsExactly(initial);
     }
+
+    private static List<Parcelable> historyOf(StateBundle stateBundle) {
+        List<Parcelable> keyTable = stateBundle.getParcelableArrayList(BackstackManager.getKeysTag());
+        List<Parcelable> history = new ArrayList<>();
+        for(int keyIndex : stateBundle.getIntArray(BackstackManager.getHistoryIndicesTag())) {
+            history.add(keyTable.get(keyIndex));
+        }
+        return history;
+    }
+
+    private static List<Parcelable> stateKeysOf(StateBundle stateBundle) {
+        List<Parcelable> keyTable = stateBundle.getParcelableArrayList(BackstackManager.getKeysTag());
+        List<ParcelledState> states = stateBundle.getParcelableArrayList(BackstackManager.getStatesTag());
+        List<Parcelable> keys = new ArrayList<>();
+        for(ParcelledState parcelledState : states) {
+            keys.add(keyTable.get(parcelledState.keyIndex));
+        }
+        return keys;
+    }
+
+    private SavedState mockSavedState(Object key) {
+        SavedState savedState = Mockito.mock(SavedState.class, Mockito.CALLS_REAL_METHODS);
+        Mockito.doReturn(key).when(savedState).getKey();
+        return savedState;
+    }
+
+    @Test
+    public void toBundleReusesParcelledStatesThatWereNotModified() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setup(HistoryBuilder.from(a, b).build());
+        backstackManager.setStateChanger(stateChanger);
+        SavedState savedStateA = mockSavedState(a);
+        SavedState savedStateB = mockSavedState(b);
+        backstackManager.keyStateMap.put(a, savedStateA);
+        backstackManager.keyStateMap.put(b, savedStateB);
+
+        StateBundle first = backstackManager.toBundle();
+        StateBundle second = backstackManager.toBundle();
+        List<ParcelledState> firstStates = first.getParcelableArrayList(BackstackManager.getStatesTag());
+        List<ParcelledState> secondStates = second.getParcelableArrayList(BackstackManager.getStatesTag());
+        assertThat(secondStates).containsOnly(firstStates.toArray(new ParcelledState[2]));
+        assertThat(historyOf(second)).containsExactly(a, b);
+
+        StateBundle bundle = new StateBundle();
+        savedStateB.setBundle(bundle);
+        StateBundle third = backstackManager.toBundle();
+        List<ParcelledState> thirdStates = third.getParcelableArrayList(BackstackManager.getStatesTag());
+        assertThat(thirdStates).contains(savedStateA.parcelledState);
+        assertThat(firstStates).doesNotContain(savedStateB.parcelledState);
+        assertThat(thirdStates).contains(savedStateB.parcelledState);
+        assertThat(savedStateB.parcelledState.bundle).isSameAs(bundle);
+        assertThat(savedStateB.parcelledState.parcelableKey).isSameAs(b);
+    }
+
+    @Test
+    public void toBundleParcelsTheNewHistoryAfterNavigation() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setup(HistoryBuilder.single(a));
+        backstackManager.setStateChanger(stateChanger);
+
+        assertThat(historyOf(backstackManager.toBundle())).containsExactly(a);
+        backstackManager.getBackstack().goTo(b);
+        assertThat(historyOf(backstackManager.toBundle())).containsExactly(a, b);
+    }
+
+    private static class CountingKeyParceler
+            implements KeyParceler {
+        int decodeCount = 0;
+
+        @Override
+        public Parcelable toParcelable(Object object) {
+            return (Parcelable) object;
+        }
+
+        @Override
+        public Object fromParcelable(Parcelable parcelable) {
+            decodeCount++;
+            return parcelable;
+        }
+    }
+
+    private static ParcelledState parcelledState(TestKey key) {
+        ParcelledState parcelledState = new ParcelledState();
+        parcelledState.parcelableKey = key;
+        return parcelledState;
+    }
+
+    @Test
+    public void fromBundleDecodesSavedStatesOnlyWhenTheyAreNeeded() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        TestKey c = new TestKey("c");
+        ParcelledState stateA = parcelledState(a);
+        ParcelledState stateB = parcelledState(b);
+        ParcelledState stateC = parcelledState(c);
+        StateBundle stateBundle = new StateBundle();
+        stateBundle.putParcelableArrayList(BackstackManager.getHistoryTag(), new ArrayList<Parcelable>(Arrays.asList(a, b)));
+        stateBundle.putParcelableArrayList(BackstackManager.getStatesTag(), new ArrayList<Parcelable>(Arrays.asList(stateA, stateB, stateC)));
+
+        CountingKeyParceler keyParceler = new CountingKeyParceler();
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setKeyParceler(keyParceler);
+        backstackManager.setup(HistoryBuilder.single(a));
+        backstackManager.fromBundle(stateBundle);
+        assertThat(keyParceler.decodeCount).isEqualTo(2);
+        assertThat(backstackManager.keyStateMap).isEmpty();
+        assertThat(stateKeysOf(backstackManager.toBundle())).containsOnly(a, b, c);
+
+        backstackManager.setStateChanger(stateChanger);
+        assertThat(keyParceler.decodeCount).isEqualTo(3);
+        assertThat(backstackManager.keyStateMap).isEmpty();
+        assertThat(stateKeysOf(backstackManager.toBundle())).containsOnly(a, b);
+    }
+
+    @Test
+    public void onlyStateClearStrategiesThatOptInDropRestoredStatesWithoutDecodingThem() {
+        class RetainingStateClearStrategy
+                extends DefaultStateClearStrategy {
+        }
+        class RetainedKeysStateClearStrategy
+                extends DefaultStateClearStrategy
+                implements BackstackManager.RetainedKeysStateClearStrategy {
+        }
+        assertThat(BackstackManager.isDroppingRestoredStatesLazily(new DefaultStateClearStrategy())).isTrue();
+        assertThat(BackstackManager.isDroppingRestoredStatesLazily(new RetainedKeysStateClearStrategy())).isTrue();
+        assertThat(BackstackManager.isDroppingRestoredStatesLazily(new RetainingStateClearStrategy())).isFalse();
+        assertThat(BackstackManager.isDroppingRestoredStatesLazily(new BudgetedStateClearStrategy(0, 1))).isFalse();
+    }
+
+    @Test
+    public void toBundleParcelsEveryKeyOnce() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        TestKey c = new TestKey("c");
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setup(HistoryBuilder.from(a, b).build());
+        backstackManager.setStateChanger(stateChanger);
+        backstackManager.keyStateMap.put(a, mockSavedState(a));
+        backstackManager.keyStateMap.put(b, mockSavedState(b));
+        backstackManager.keyStateMap.put(c, mockSavedState(c));
+
+        StateBundle stateBundle = backstackManager.toBundle();
+        assertThat(stateBundle.getParcelableArrayList(BackstackManager.getKeysTag())).containsOnly(a, b, c);
+        assertThat(stateBundle.getParcelableArrayList(BackstackManager.getHistoryTag())).isNull();
+        assertThat(historyOf(stateBundle)).containsExactly(a, b);
+        assertThat(stateKeysOf(stateBundle)).containsOnly(a, b, c);
+    }
+
+    @Test
+    public void bundleWithKeyTableIsRestored() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        TestKey c = new TestKey("c");
+        ParcelledState stateC = new ParcelledState();
+        stateC.keyIndex = 2;
+        ParcelledState stateB = new ParcelledState();
+        stateB.keyIndex = 1;
+        StateBundle stateBundle = new StateBundle();
+        stateBundle.putParcelableArrayList(BackstackManager.getKeysTag(), new ArrayList<Parcelable>(Arrays.asList(a, b, c)));
+        stateBundle.putIntArray(BackstackManager.getHistoryIndicesTag(), new int[]{0, 1});
+        stateBundle.putParcelableArrayList(BackstackManager.getStatesTag(), new ArrayList<Parcelable>(Arrays.asList(stateB, stateC)));
+
+        CountingKeyParceler keyParceler = new CountingKeyParceler();
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setKeyParceler(keyParceler);
+        backstackManager.setup(HistoryBuilder.single(a));
+        backstackManager.fromBundle(stateBundle);
+        assertThat(keyParceler.decodeCount).isEqualTo(2);
+        assertThat(stateB.parcelableKey).isSameAs(b);
+        // the key of a state that is not in the history is read from the key table only when the state is decoded
+        assertThat(stateC.parcelableKey).isNull();
+        backstackManager.setStateChanger(stateChanger);
+        assertThat(stateC.parcelableKey).isSameAs(c);
+        assertThat(backstackManager.getBackstack().getHistory()).containsExactly(a, b);
+        assertThat(stateKeysOf(backstackManager.toBundle())).containsOnly(b);
+    }
+
+    @SuppressWarnings("unchecked")
+    private SparseArray<Parcelable> mockViewHierarchyState() {
+        SparseArray<Parcelable> viewHierarchyState = Mockito.mock(SparseArray.class);
+        Mockito.when(viewHierarchyState.size()).thenReturn(1);
+        return viewHierarchyState;
+    }
+
+    @Test
+    public void trimMemoryReleasesViewHierarchyStateBelowTheTop() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        TestKey c = new TestKey("c");
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setup(HistoryBuilder.from(a, b, c).build());
+        backstackManager.setStateChanger(stateChanger);
+        StateBundle bundle = new StateBundle();
+        for(TestKey key : Arrays.asList(a, b, c)) {
+            SavedState savedState = mockSavedState(key);
+            savedState.setViewHierarchyState(mockViewHierarchyState());
+            savedState.setBundle(bundle);
+            backstackManager.keyStateMap.put(key, savedState);
+        }
+
+        backstackManager.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        for(SavedState savedState : backstackManager.keyStateMap.values()) {
+            Mockito.verify(savedState.getViewHierarchyState(), Mockito.never()).clear();
+        }
+
+        backstackManager.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        Mockito.verify(backstackManager.keyStateMap.get(a).getViewHierarchyState()).clear();
+        Mockito.verify(backstackManager.keyStateMap.get(b).getViewHierarchyState(), Mockito.never()).clear();
+        Mockito.verify(backstackManager.keyStateMap.get(c).getViewHierarchyState(), Mockito.never()).clear();
+
+        backstackManager.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        Mockito.verify(backstackManager.keyStateMap.get(b).getViewHierarchyState()).clear();
+        Mockito.verify(backstackManager.keyStateMap.get(c).getViewHierarchyState(), Mockito.never()).clear();
+        for(SavedState savedState : backstackManager.keyStateMap.values()) {
+            assertThat(savedState.getBundle()).isSameAs(bundle);
+        }
+    }
+
+    @Test
+    public void trimMemoryReleasesViewHierarchyStateOfRestoredStates() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        ParcelledState stateA = new ParcelledState();
+        stateA.keyIndex = 0;
+        stateA.viewHierarchyState = mockViewHierarchyState();
+        ParcelledState stateB = new ParcelledState();
+        stateB.keyIndex = 1;
+        stateB.viewHierarchyState = mockViewHierarchyState();
+        StateBundle stateBundle = new StateBundle();
+        stateBundle.putParcelableArrayList(BackstackManager.getKeysTag(), new ArrayList<Parcelable>(Arrays.asList(a, b)));
+        stateBundle.putIntArray(BackstackManager.getHistoryIndicesTag(), new int[]{0, 1});
+        stateBundle.putParcelableArrayList(BackstackManager.getStatesTag(), new ArrayList<Parcelable>(Arrays.asList(stateA, stateB)));
+
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setup(HistoryBuilder.single(a));
+        backstackManager.fromBundle(stateBundle);
+        backstackManager.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+        Mockito.verify(stateA.viewHierarchyState).clear();
+        Mockito.verify(stateB.viewHierarchyState, Mockito.never()).clear();
+    }
+
+    @Test
+    public void stateChangeReusesTheContextOfKeyUntilItIsCleared() {
+        final TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        final Context base = Mockito.mock(Context.class);
+        final List<Context> contexts = new ArrayList<>();
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setup(HistoryBuilder.single(a));
+        backstackManager.setStateChanger(new StateChanger() {
+            @Override
+            public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+                contexts.add(stateChange.createContext(base, stateChange.topNewState()));
+                completionCallback.stateChangeComplete();
+            }
+        });
+        Backstack backstack = backstackManager.getBackstack();
+        backstack.goTo(b);
+        backstack.goBack();
+        assertThat(contexts).hasSize(3);
+        assertThat(contexts.get(2)).isSameAs(contexts.get(0));
+        assertThat(KeyContextWrapper.<TestKey>getKey(contexts.get(0))).isSameAs(a);
+        assertThat(backstackManager.createContext(base, a)).isSameAs(contexts.get(0));
+
+        backstack.setHistory(HistoryBuilder.single(b), StateChange.REPLACE);
+        assertThat(backstackManager.createContext(base, a)).isNotSameAs(contexts.get(0));
+    }
+
+    @Test
+    public void contextIsRecreatedForNewBaseContextOrAfterRelease() {
+        TestKey a = new TestKey("a");
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setup(HistoryBuilder.single(a));
+        Context context = backstackManager.createContext(Mockito.mock(Context.class), a);
+        assertThat(backstackManager.createContext(Mockito.mock(Context.class), a)).isNotSameAs(context);
+        Context otherContext = backstackManager.createContext(Mockito.mock(Context.class), a);
+        backstackManager.releaseContexts();
+        assertThat(backstackManager.createContext(((KeyContextWrapper) otherContext).getBaseContext(), a)).isNotSameAs(otherContext);
+    }
+
+    @Test
+    public void contextsOfKeysProvideTheBackstackManager() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setup(HistoryBuilder.single(a));
+        Context context = backstackManager.createContext(Mockito.mock(Context.class), a);
+        assertThat(KeyContextWrapper.getBackstackManager(context)).isSameAs(backstackManager);
+        Context childContext = new KeyContextWrapper(context, b);
+        assertThat(KeyContextWrapper.getBackstackManager(childContext)).isSameAs(backstackManager);
+        assertThat(KeyContextWrapper.getBackstackManager(new KeyContextWrapper(Mockito.mock(Context.class), b))).isNull();
+    }
 }
@@ -282,4 +282,383 @@ public class BackstackTest {
         assertThat(backstack.isStateChangePending()).isFalse();
         Mockito.verify(completionListener, Mockito.never()).stateChangeCompleted(stateChange);
     }
+
+    @Test
+    public void goToExistingKeyGoesBackToFirstOccurrence() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        TestKey c = new TestKey("c");
+        Backstack backstack = new Backstack(a, b, c);
+        StateChanger stateChanger = new StateChanger() {
+            @Override
+            public void handleStateChange(StateChange _stateChange, Callback completionCallback) {
+                stateChange = _stateChange;
+                completionCallback.stateChangeComplete();
+            }
+        };
+        backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+
+        backstack.goTo(b);
+        assertThat(stateChange.getDirection()).isEqualTo(StateChange.BACKWARD);
+        assertThat(backstack.getHistory()).containsExactly(a, b);
+
+        backstack.goTo(c);
+        assertThat(stateChange.getDirection()).isEqualTo(StateChange.FORWARD);
+        assertThat(backstack.getHistory()).containsExactly(a, b, c);
+
+        backstack.goBack();
+        backstack.goBack();
+        backstack.goTo(c);
+        assertThat(stateChange.getDirection()).isEqualTo(StateChange.FORWARD);
+        assertThat(backstack.getHistory()).containsExactly(a, c);
+
+        backstack.setHistory(HistoryBuilder.from(b, c, b, a).build(), StateChange.REPLACE);
+        backstack.goTo(b);
+        assertThat(backstack.getHistory()).containsExactly(b);
+    }
+
+    @Test
+    public void goToUsesQueuedHistoryWhileStateChangeIsPending() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        TestKey c = new TestKey("c");
+        Backstack backstack = new Backstack(a);
+        StateChanger stateChanger = new StateChanger() {
+            @Override
+            public void handleStateChange(StateChange _stateChange, Callback completionCallback) {
+                stateChange = _stateChange;
+                callback = completionCallback;
+            }
+        };
+        backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+        callback.stateChangeComplete();
+
+        backstack.goTo(b);
+        backstack.goTo(c);
+        backstack.goTo(b);
+        callback.stateChangeComplete();
+        assertThat(stateChange.getNewState()).containsExactly(a, b, c);
+        callback.stateChangeComplete();
+        assertThat(stateChange.getNewState()).containsExactly(a, b);
+        assertThat(stateChange.getDirection()).isEqualTo(StateChange.BACKWARD);
+        callback.stateChangeComplete();
+        assertThat(backstack.getHistory()).containsExactly(a, b);
+    }
+
+    @Test
+    public void stateChangesEnqueuedWhileDetachedAreCoalescedIfEnabled() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        TestKey c = new TestKey("c");
+        TestKey d = new TestKey("d");
+        Backstack backstack = new Backstack(a);
+        backstack.setStateChangeCoalescingEnabled(true);
+        final List<StateChange> stateChanges = new ArrayList<>();
+        StateChanger stateChanger = new StateChanger() {
+            @Override
+            public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+                stateChanges.add(stateChange);
+                completionCallback.stateChangeComplete();
+            }
+        };
+        backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+        stateChanges.clear();
+
+        backstack.removeStateChanger();
+        backstack.goTo(b);
+        backstack.goTo(c);
+        backstack.goTo(d);
+        backstack.setHistory(HistoryBuilder.from(a, b, c).build(), StateChange.BACKWARD);
+        assertThat(backstack.getHistory()).containsExactly(a);
+
+        backstack.setStateChanger(stateChanger, Backstack.REATTACH);
+        assertThat(stateChanges).hasSize(1);
+        assertThat(stateChanges.get(0).getPreviousState()).containsExactly(a);
+        assertThat(stateChanges.get(0).getNewState()).containsExactly(a, b, c);
+        assertThat(stateChanges.get(0).getDirection()).isEqualTo(StateChange.FORWARD);
+        assertThat(backstack.getHistory()).containsExactly(a, b, c);
+    }
+
+    @Test
+    public void coalescedStateChangeResolvesBackwardDirection() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        TestKey c = new TestKey("c");
+        Backstack backstack = new Backstack(a, b, c);
+        backstack.setStateChangeCoalescingEnabled(true);
+        StateChanger stateChanger = new StateChanger() {
+            @Override
+            public void handleStateChange(StateChange _stateChange, Callback completionCallback) {
+                stateChange = _stateChange;
+                completionCallback.stateChangeComplete();
+            }
+        };
+        backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+
+        backstack.removeStateChanger();
+        backstack.goTo(new TestKey("d"));
+        backstack.goTo(b);
+        backstack.setStateChanger(stateChanger, Backstack.REATTACH);
+        assertThat(stateChange.getPreviousState()).containsExactly(a, b, c);
+        assertThat(stateChange.getNewState()).containsExactly(a, b);
+        assertThat(stateChange.getDirection()).isEqualTo(StateChange.BACKWARD);
+    }
+
+    @Test
+    public void stateChangesEnqueuedWhileDetachedAreNotCoalescedByDefault() {
+        TestKey a = new TestKey("a");
+        Backstack backstack = new Backstack(a);
+        final List<StateChange> stateChanges = new ArrayList<>();
+        StateChanger stateChanger = new StateChanger() {
+            @Override
+            public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+                stateChanges.add(stateChange);
+                completionCallback.stateChangeComplete();
+            }
+        };
+        backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+        stateChanges.clear();
+
+        backstack.removeStateChanger();
+        backstack.goTo(new TestKey("b"));
+        backstack.goTo(new TestKey("c"));
+        backstack.setStateChanger(stateChanger, Backstack.REATTACH);
+        assertThat(stateChanges).hasSize(2);
+    }
+
+    @Test
+    public void transactionIsCommittedAsSingleStateChange() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        TestKey c = new TestKey("c");
+        TestKey d = new TestKey("d");
+        Backstack backstack = new Backstack(a, b, c);
+        final List<StateChange> stateChanges = new ArrayList<>();
+        StateChanger stateChanger = new StateChanger() {
+            @Override
+            public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+                stateChanges.add(stateChange);
+                completionCallback.stateChangeComplete();
+            }
+        };
+        backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+        stateChanges.clear();
+
+        backstack.beginTransaction()
+                .goBack()
+                .goTo(d)
+                .goTo(b)
+                .goTo(c)
+                .replaceTop(d)
+                .commit(StateChange.FORWARD);
+
+        assertThat(stateChanges).hasSize(1);
+        assertThat(stateChanges.get(0).getPreviousState()).containsExactly(a, b, c);
+        assertThat(stateChanges.get(0).getNewState()).containsExactly(a, b, d);
+        assertThat(stateChanges.get(0).getDirection()).isEqualTo(StateChange.FORWARD);
+        assertThat(backstack.getHistory()).containsExactly(a, b, d);
+
+        backstack.beginTransaction().removeUntil(a).commit(StateChange.BACKWARD);
+        assertThat(backstack.getHistory()).containsExactly(a);
+    }
+
+    @Test
+    public void transactionCannotBeCommittedTwice() {
+        Backstack backstack = new Backstack(new TestKey("a"));
+        Backstack.Transaction transaction = backstack.beginTransaction().goTo(new TestKey("b"));
+        transaction.commit(StateChange.FORWARD);
+        try {
+            transaction.commit(StateChange.FORWARD);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void transactionCannotEmptyTheHistory() {
+        Backstack backstack = new Backstack(new TestKey("a"));
+        try {
+            backstack.beginTransaction().goBack().commit(StateChange.BACKWARD);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    private static class CancellableStateChanger
+            implements StateChanger, StateChanger.CancellationListener {
+        List<StateChange> stateChanges = new ArrayList<>();
+        List<StateChange> cancelledStateChanges = new ArrayList<>();
+        Callback callback;
+
+        @Override
+        public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+            stateChanges.add(stateChange);
+            callback = completionCallback;
+        }
+
+        @Override
+        public void stateChangeCancelled(StateChange stateChange) {
+            cancelledStateChanges.add(stateChange);
+        }
+    }
+
+    @Test
+    public void newStateChangeSupersedesEnqueuedStateChangesIfEnabled() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        TestKey c = new TestKey("c");
+        TestKey d = new TestKey("d");
+        Backstack backstack = new Backstack(a);
+        backstack.setStateChangeSupersedingEnabled(true);
+        CancellableStateChanger stateChanger = new CancellableStateChanger();
+        backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+        stateChanger.callback.stateChangeComplete();
+        stateChanger.stateChanges.clear();
+
+        backstack.goTo(b);
+        backstack.goTo(c);
+        backstack.goTo(d);
+        assertThat(stateChanger.cancelledStateChanges).hasSize(1);
+        assertThat(stateChanger.cancelledStateChanges.get(0).getNewState()).containsExactly(a, b);
+
+        stateChanger.callback.stateChangeComplete();
+        assertThat(stateChanger.stateChanges).hasSize(2);
+        assertThat(stateChanger.stateChanges.get(1).getPreviousState()).containsExactly(a, b);
+        assertThat(stateChanger.stateChanges.get(1).getNewState()).containsExactly(a, b, c, d);
+        assertThat(stateChanger.stateChanges.get(1).getDirection()).isEqualTo(StateChange.FORWARD);
+
+        stateChanger.callback.stateChangeComplete();
+        assertThat(backstack.isStateChangePending()).isFalse();
+        assertThat(backstack.getHistory()).containsExactly(a, b, c, d);
+    }
+
+    @Test
+    public void goBackSupersedesPendingStateChangesIfEnabled() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        TestKey c = new TestKey("c");
+        Backstack backstack = new Backstack(a);
+        backstack.setStateChangeSupersedingEnabled(true);
+        CancellableStateChanger stateChanger = new CancellableStateChanger();
+        backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+        stateChanger.callback.stateChangeComplete();
+        stateChanger.stateChanges.clear();
+
+        backstack.goTo(b);
+        backstack.goTo(c);
+        assertThat(backstack.goBack()).isTrue();
+        assertThat(stateChanger.cancelledStateChanges).hasSize(1);
+        assertThat(stateChanger.cancelledStateChanges.get(0).getNewState()).containsExactly(a, b);
+
+        stateChanger.callback.stateChangeComplete();
+        assertThat(stateChanger.stateChanges).hasSize(2);
+        assertThat(stateChanger.stateChanges.get(1).getPreviousState()).containsExactly(a, b);
+        assertThat(stateChanger.stateChanges.get(1).getNewState()).containsExactly(a, b);
+        stateChanger.callback.stateChangeComplete();
+        assertThat(backstack.isStateChangePending()).isFalse();
+        assertThat(backstack.getHistory()).containsExactly(a, b);
+    }
+
+    @Test
+    public void goBackIsIgnoredDuringPendingStateChangeByDefault() {
+        TestKey a = new TestKey("a");
+        TestKey b = new TestKey("b");
+        Backstack backstack = new Backstack(a);
+        CancellableStateChanger stateChanger = new CancellableStateChanger();
+        backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+        stateChanger.callback.stateChangeComplete();
+
+        backstack.goTo(b);
+        assertThat(backstack.goBack()).isTrue();
+        stateChanger.callback.stateChangeComplete();
+        assertThat(backstack.isStateChangePending()).isFalse();
+        assertThat(backstack.getHistory()).containsExactly(a, b);
+    }
+
+    @Test
+    public void stateChangesAreNotSupersededByDefault() {
+        TestKey a = new TestKey("a");
+        Backstack backstack = new Backstack(a);
+        CancellableStateChanger stateChanger = new CancellableStateChanger();
+        backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+        stateChanger.callback.stateChangeComplete();
+
+        backstack.goTo(new TestKey("b"));
+        backstack.goTo(new TestKey("c"));
+        assertThat(stateChanger.cancelledStateChanges).isEmpty();
+        stateChanger.callback.stateChangeComplete();
+        stateChanger.callback.stateChangeComplete();
+        assertThat(stateChanger.stateChanges).hasSize(3);
+    }
+
+    private static class RecordingTracer
+            extends Backstack.NoOpTracer {
+        List<String> events = new ArrayList<>();
+        long lastTimeNanos = Long.MIN_VALUE;
+
+        private void record(String event, long timeNanos, int queueDepth, int historySize) {
+            assertThat(timeNanos).isGreaterThanOrEqualTo(lastTimeNanos);
+            lastTimeNanos = timeNanos;
+            events.add(event + ":" + queueDepth + ":" + historySize);
+        }
+
+        @Override
+        public void onStateChangeEnqueued(long timeNanos, int queueDepth, int historySize) {
+            record("enqueued", timeNanos, queueDepth, historySize);
+        }
+
+        @Override
+        public void onStateChangeDispatched(long timeNanos, int queueDepth, int historySize) {
+            record("dispatched", timeNanos, queueDepth, historySize);
+        }
+
+        @Override
+        public void onStateChangeCompleted(long timeNanos, int queueDepth, int historySize) {
+            record("completed", timeNanos, queueDepth, historySize);
+        }
+
+        @Override
+        public void onCompletionListenersNotified(long timeNanos, int queueDepth, int historySize) {
+            record("notified", timeNanos, queueDepth, historySize);
+        }
+    }
+
+    @Test
+    public void tracerReceivesStateChangeEvents() {
+        TestKey a = new TestKey("a");
+        Backstack backstack = new Backstack(a);
+        RecordingTracer tracer = new RecordingTracer();
+        backstack.setTracer(tracer);
+        CancellableStateChanger stateChanger = new CancellableStateChanger();
+        backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+        stateChanger.callback.stateChangeComplete();
+        backstack.goTo(new TestKey("b"));
+        backstack.goTo(new TestKey("c"));
+        stateChanger.callback.stateChangeComplete();
+        stateChanger.callback.stateChangeComplete();
+
+        assertThat(tracer.events).containsExactly("enqueued:1:1",
+                "dispatched:1:1",
+                "completed:1:1",
+                "notified:0:1",
+                "enqueued:1:2",
+                "dispatched:1:2",
+                "enqueued:2:3",
+                "completed:2:2",
+                "notified:1:2",
+                "dispatched:1:3",
+                "completed:1:3",
+                "notified:0:3");
+    }
+
+    @Test
+    public void settingNullTracerRestoresTheDefaultTracer() {
+        Backstack backstack = new Backstack(new TestKey("a"));
+        Backstack.Tracer defaultTracer = backstack.getTracer();
+        backstack.setTracer(new RecordingTracer());
+        backstack.setTracer(null);
+        assertThat(backstack.getTracer()).isSameAs(defaultTracer);
+    }
 }
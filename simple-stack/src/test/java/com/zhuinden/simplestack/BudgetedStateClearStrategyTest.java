@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.os.Parcelable;
+import android.util.SparseArray;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BudgetedStateClearStrategyTest {
+    TestKey a = new TestKey("a");
+    TestKey b = new TestKey("b");
+    TestKey c = new TestKey("c");
+    TestKey d = new TestKey("d");
+
+    // 100 bytes with view hierarchy state, 10 bytes without
+    BudgetedStateClearStrategy.SizeEstimator sizeEstimator = new BudgetedStateClearStrategy.SizeEstimator() {
+        @Override
+        public int estimateSize(SavedState savedState) {
+            return savedState.getViewHierarchyState().size() > 0 ? 100 : 10;
+        }
+    };
+
+    Map<Object, SavedState> keyStateMap = new HashMap<>();
+
+    @SuppressWarnings("unchecked")
+    private SparseArray<Parcelable> viewHierarchyState() {
+        final int[] size = {1};
+        SparseArray<Parcelable> viewHierarchyState = Mockito.mock(SparseArray.class);
+        Mockito.when(viewHierarchyState.size()).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                return size[0];
+            }
+        });
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                size[0] = 0;
+                return null;
+            }
+        }).when(viewHierarchyState).clear();
+        return viewHierarchyState;
+    }
+
+    private void putSavedStates(Object... keys) {
+        for(Object key : keys) {
+            SavedState savedState = Mockito.mock(SavedState.class, Mockito.CALLS_REAL_METHODS);
+            Mockito.doReturn(key).when(savedState).getKey();
+            savedState.setViewHierarchyState(viewHierarchyState());
+            keyStateMap.put(key, savedState);
+        }
+    }
+
+    private void navigate(BudgetedStateClearStrategy strategy, List<Object> previousState, List<Object> newState) {
+        strategy.clearStatesNotIn(keyStateMap, new StateChange(previousState, newState, StateChange.FORWARD));
+    }
+
+    private void visitInOrder(BudgetedStateClearStrategy strategy) {
+        putSavedStates(a);
+        navigate(strategy, HistoryBuilder.single(a), HistoryBuilder.single(a));
+        putSavedStates(b);
+        navigate(strategy, HistoryBuilder.single(a), HistoryBuilder.from(a, b).build());
+        putSavedStates(c);
+        navigate(strategy, HistoryBuilder.from(a, b).build(), HistoryBuilder.from(a, b, c).build());
+        putSavedStates(d);
+        navigate(strategy, HistoryBuilder.from(a, b, c).build(), HistoryBuilder.from(a, b, c, d).build());
+    }
+
+    @Test
+    public void statesWithinBudgetAreRetained() {
+        BudgetedStateClearStrategy strategy = new BudgetedStateClearStrategy(1000, 1, sizeEstimator);
+        visitInOrder(strategy);
+        assertThat(keyStateMap.keySet()).containsOnly(a, b, c, d);
+        assertThat(strategy.getRetainedBytes()).isEqualTo(400);
+        assertThat(strategy.getCompactionCount()).isEqualTo(0);
+        assertThat(strategy.getEvictionCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void statesOfKeysNotInHistoryAreCleared() {
+        BudgetedStateClearStrategy strategy = new BudgetedStateClearStrategy(1000, 1, sizeEstimator);
+        putSavedStates(a, b, c);
+        navigate(strategy, HistoryBuilder.from(a, b, c).build(), HistoryBuilder.single(a));
+        assertThat(keyStateMap.keySet()).containsOnly(a);
+        assertThat(strategy.getRetainedBytes()).isEqualTo(100);
+    }
+
+    @Test
+    public void viewHierarchyStateOfLeastRecentlyVisitedKeysIsClearedFirst() {
+        BudgetedStateClearStrategy strategy = new BudgetedStateClearStrategy(250, 1, sizeEstimator);
+        visitInOrder(strategy);
+        assertThat(keyStateMap.keySet()).containsOnly(a, b, c, d);
+        assertThat(keyStateMap.get(a).getViewHierarchyState().size()).isEqualTo(0);
+        assertThat(keyStateMap.get(b).getViewHierarchyState().size()).isEqualTo(0);
+        assertThat(keyStateMap.get(c).getViewHierarchyState().size()).isEqualTo(1);
+        assertThat(keyStateMap.get(d).getViewHierarchyState().size()).isEqualTo(1);
+        assertThat(strategy.getRetainedBytes()).isEqualTo(220);
+        assertThat(strategy.getCompactionCount()).isEqualTo(2);
+        assertThat(strategy.getEvictionCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void leastRecentlyVisitedStatesAreEvictedIfClearingViewStateIsNotEnough() {
+        BudgetedStateClearStrategy strategy = new BudgetedStateClearStrategy(125, 2, sizeEstimator);
+        visitInOrder(strategy);
+        assertThat(keyStateMap.keySet()).containsOnly(c, d);
+        assertThat(keyStateMap.get(c).getViewHierarchyState().size()).isEqualTo(1);
+        assertThat(keyStateMap.get(d).getViewHierarchyState().size()).isEqualTo(1);
+        assertThat(strategy.getRetainedBytes()).isEqualTo(200);
+        assertThat(strategy.getEvictionCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void revisitedKeyIsClearedAfterLessRecentlyVisitedKeys() {
+        BudgetedStateClearStrategy strategy = new BudgetedStateClearStrategy(250, 1, sizeEstimator);
+        putSavedStates(a);
+        navigate(strategy, HistoryBuilder.single(a), HistoryBuilder.single(a));
+        putSavedStates(b);
+        navigate(strategy, HistoryBuilder.single(a), HistoryBuilder.from(a, b).build());
+        navigate(strategy, HistoryBuilder.from(a, b).build(), HistoryBuilder.from(b, a).build());
+        putSavedStates(c);
+        navigate(strategy, HistoryBuilder.from(b, a).build(), HistoryBuilder.from(b, a, c).build());
+        assertThat(keyStateMap.get(a).getViewHierarchyState().size()).isEqualTo(1);
+        assertThat(keyStateMap.get(b).getViewHierarchyState().size()).isEqualTo(0);
+        assertThat(strategy.getRetainedBytes()).isEqualTo(210);
+    }
+
+    @Test
+    public void topKeyMustBeRetained() {
+        try {
+            new BudgetedStateClearStrategy(100, 0, sizeEstimator);
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.os.Parcelable;
+
+import com.zhuinden.statebundle.StateBundle;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CodecKeyParcelerTest {
+    static class ArgumentKey {
+        final String name;
+        final long id;
+        final boolean flag;
+        final double ratio;
+        final String label;
+
+        ArgumentKey(String name, long id, boolean flag, double ratio, String label) {
+            this.name = name;
+            this.id = id;
+            this.flag = flag;
+            this.ratio = ratio;
+            this.label = label;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof ArgumentKey)) {
+                return false;
+            }
+            ArgumentKey other = (ArgumentKey) o;
+            return name.equals(other.name) && id == other.id && flag == other.flag && ratio == other.ratio && (label == null ? other.label == null : label.equals(other.label));
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + (int) id;
+        }
+    }
+
+    static class ParentKey {
+        final ArgumentKey child;
+        final int depth;
+
+        ParentKey(ArgumentKey child, int depth) {
+            this.child = child;
+            this.depth = depth;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ParentKey && child.equals(((ParentKey) o).child) && depth == ((ParentKey) o).depth;
+        }
+
+        @Override
+        public int hashCode() {
+            return child.hashCode() * 31 + depth;
+        }
+    }
+
+    static final KeyCodec<ArgumentKey> ARGUMENT_KEY_CODEC = new KeyCodec<ArgumentKey>() {
+        @Override
+        public void encode(ArgumentKey key, KeyEncoder encoder) {
+            encoder.writeString(key.name);
+            encoder.writeLong(key.id);
+            encoder.writeBoolean(key.flag);
+            encoder.writeDouble(key.ratio);
+            encoder.writeString(key.label);
+        }
+
+        @Override
+        public ArgumentKey decode(KeyDecoder decoder) {
+            return new ArgumentKey(decoder.readString(), decoder.readLong(), decoder.readBoolean(), decoder.readDouble(), decoder.readString());
+        }
+    };
+
+    static final KeyCodec<ParentKey> PARENT_KEY_CODEC = new KeyCodec<ParentKey>() {
+        @Override
+        public void encode(ParentKey key, KeyEncoder encoder) {
+            encoder.writeKey(key.child);
+            encoder.writeInt(key.depth);
+        }
+
+        @Override
+        public ParentKey decode(KeyDecoder decoder) {
+            ArgumentKey child = decoder.readKey();
+            return new ParentKey(child, decoder.readInt());
+        }
+    };
+
+    CodecKeyParceler keyParceler = CodecKeyParceler.builder()
+            .register(1, ArgumentKey.class, ARGUMENT_KEY_CODEC)
+            .register(2, ParentKey.class, PARENT_KEY_CODEC)
+            .build();
+
+    StateChanger stateChanger = new StateChanger() {
+        @Override
+        public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+            completionCallback.stateChangeComplete();
+        }
+    };
+
+    private Object roundTrip(Object key) {
+        EncodedKey encodedKey = (EncodedKey) keyParceler.toParcelable(key);
+        return keyParceler.fromParcelable(new EncodedKey(keyParceler.encode(encodedKey.key)));
+    }
+
+    @Test
+    public void keysAreEncodedAndDecoded() {
+        ArgumentKey key = new ArgumentKey("detail", -1234567890123L, true, 0.5, null);
+        assertThat(roundTrip(key)).isEqualTo(key);
+        ArgumentKey extremes = new ArgumentKey("", Long.MIN_VALUE, false, Double.NaN, "árvíztűrő");
+        ArgumentKey decoded = (ArgumentKey) roundTrip(extremes);
+        assertThat(decoded.id).isEqualTo(Long.MIN_VALUE);
+        assertThat(decoded.label).isEqualTo(extremes.label);
+        assertThat(Double.isNaN(decoded.ratio)).isTrue();
+    }
+
+    @Test
+    public void nestedKeysAreEncodedAndDecoded() {
+        ParentKey key = new ParentKey(new ArgumentKey("child", 42, false, 1.0, "label"), Integer.MIN_VALUE);
+        assertThat(roundTrip(key)).isEqualTo(key);
+    }
+
+    @Test
+    public void repeatedStringsAreWrittenOnce() {
+        List<Parcelable> keys = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            keys.add(keyParceler.toParcelable(new ArgumentKey("a-long-screen-name", i, false, 0, "a-long-label")));
+        }
+        byte[] encodedKeys = keyParceler.encodeAll(keys);
+        int separatelyEncodedSize = 0;
+        for(Parcelable key : keys) {
+            separatelyEncodedSize += keyParceler.encode(keyParceler.fromParcelable(key)).length;
+        }
+        assertThat(encodedKeys.length).isLessThan(separatelyEncodedSize / 2);
+
+        List<Parcelable> decodedKeys = keyParceler.decodeAll(encodedKeys);
+        assertThat(decodedKeys).hasSize(10);
+        for(int i = 0; i < 10; i++) {
+            assertThat(keyParceler.fromParcelable(decodedKeys.get(i))).isEqualTo(keyParceler.fromParcelable(keys.get(i)));
+        }
+    }
+
+    @Test
+    public void subclassesOfRegisteredKeyTypeUseTheSameCodec() {
+        ArgumentKey key = new ArgumentKey("detail", 1, false, 0, null) {
+        };
+        assertThat(roundTrip(key)).isEqualTo(key);
+    }
+
+    @Test
+    public void unregisteredKeyTypeCannotBeParcelled() {
+        try {
+            keyParceler.toParcelable("key");
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void typeIdCannotBeRegisteredTwice() {
+        try {
+            CodecKeyParceler.builder().register(1, ArgumentKey.class, ARGUMENT_KEY_CODEC).register(1, ParentKey.class, PARENT_KEY_CODEC);
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void unknownTypeIdCannotBeDecoded() {
+        CodecKeyParceler otherKeyParceler = CodecKeyParceler.builder().register(3, ArgumentKey.class, ARGUMENT_KEY_CODEC).build();
+        byte[] data = otherKeyParceler.encode(new ArgumentKey("a", 1, false, 0, null));
+        try {
+            keyParceler.decode(data);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void backstackManagerWritesTheKeyTableAsSingleByteArray() {
+        ArgumentKey a = new ArgumentKey("a", 1, false, 0, null);
+        ArgumentKey b = new ArgumentKey("b", 2, false, 0, null);
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setKeyParceler(keyParceler);
+        backstackManager.setup(Arrays.asList(a, b));
+        backstackManager.setStateChanger(stateChanger);
+        StateBundle stateBundle = backstackManager.toBundle();
+        assertThat(stateBundle.getParcelableArrayList(BackstackManager.getKeysTag())).isNull();
+        assertThat(stateBundle.getByteArray(BackstackManager.getEncodedKeysTag())).isNotNull();
+
+        BackstackManager restoredBackstackManager = new BackstackManager();
+        restoredBackstackManager.setKeyParceler(keyParceler);
+        restoredBackstackManager.setup(Arrays.asList(a));
+        restoredBackstackManager.fromBundle(stateBundle);
+        restoredBackstackManager.setStateChanger(stateChanger);
+        assertThat(restoredBackstackManager.getBackstack().getHistory()).containsExactly(a, b);
+    }
+
+    @Test
+    public void keyTableIsDecodedWhenTheKeysAreRequested() {
+        List<Parcelable> keys = new ArrayList<>();
+        keys.add(keyParceler.toParcelable(new ArgumentKey("a", 1, false, 0, null)));
+        keys.add(keyParceler.toParcelable(new ArgumentKey("b", 2, false, 0, null)));
+        byte[] encodedKeys = keyParceler.encodeAll(keys);
+        // the second key cannot be decoded without its last byte
+        List<Parcelable> decodedKeys = keyParceler.decodeAll(Arrays.copyOf(encodedKeys, encodedKeys.length - 1));
+        assertThat(decodedKeys).hasSize(2);
+        assertThat(keyParceler.fromParcelable(decodedKeys.get(0))).isEqualTo(keyParceler.fromParcelable(keys.get(0)));
+        try {
+            decodedKeys.get(1);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+    }
+
+    @Test
+    public void backstackManagerDecodesOnlyTheHistoryKeysOnRestore() {
+        ArgumentKey a = new ArgumentKey("a", 1, false, 0, null);
+        ArgumentKey b = new ArgumentKey("b", 2, false, 0, null);
+        ArgumentKey c = new ArgumentKey("c", 3, false, 0, null);
+        ParcelledState stateC = new ParcelledState();
+        stateC.keyIndex = 2;
+        StateBundle stateBundle = new StateBundle();
+        stateBundle.putByteArray(BackstackManager.getEncodedKeysTag(),
+                keyParceler.encodeAll(Arrays.asList(keyParceler.toParcelable(a), keyParceler.toParcelable(b), keyParceler.toParcelable(c))));
+        stateBundle.putIntArray(BackstackManager.getHistoryIndicesTag(), new int[]{0, 1});
+        stateBundle.putParcelableArrayList(BackstackManager.getStatesTag(), new ArrayList<Parcelable>(Arrays.asList(stateC)));
+
+        final List<ArgumentKey> decodedKeys = new ArrayList<>();
+        CodecKeyParceler countingKeyParceler = CodecKeyParceler.builder().register(1, ArgumentKey.class, new KeyCodec<ArgumentKey>() {
+            @Override
+            public void encode(ArgumentKey key, KeyEncoder encoder) {
+                ARGUMENT_KEY_CODEC.encode(key, encoder);
+            }
+
+            @Override
+            public ArgumentKey decode(KeyDecoder decoder) {
+                ArgumentKey key = ARGUMENT_KEY_CODEC.decode(decoder);
+                decodedKeys.add(key);
+                return key;
+            }
+        }).build();
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setKeyParceler(countingKeyParceler);
+        backstackManager.setup(Arrays.asList(a));
+        backstackManager.fromBundle(stateBundle);
+        assertThat(decodedKeys).containsExactly(a, b);
+
+        StateBundle savedStateBundle = backstackManager.toBundle();
+        assertThat(decodedKeys).containsExactly(a, b, c);
+        assertThat(savedStateBundle.getParcelableArrayList(BackstackManager.getStatesTag())).hasSize(1);
+    }
+}
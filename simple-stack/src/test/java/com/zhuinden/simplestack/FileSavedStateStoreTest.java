@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FileSavedStateStoreTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void writtenDataCanBeRead() {
+        FileSavedStateStore store = new FileSavedStateStore(new File(temporaryFolder.getRoot(), "states"));
+        byte[] data = new byte[]{1, 2, 3, 4, 5};
+        assertThat(store.write("a", data)).isTrue();
+        assertThat(store.read("a")).isEqualTo(data);
+        assertThat(store.read("b")).isNull();
+    }
+
+    @Test
+    public void writingTheSameHandleReplacesTheData() {
+        FileSavedStateStore store = new FileSavedStateStore(temporaryFolder.getRoot());
+        store.write("a", new byte[]{1, 2, 3});
+        store.write("a", new byte[]{4});
+        assertThat(store.read("a")).isEqualTo(new byte[]{4});
+    }
+
+    @Test
+    public void deletedDataCannotBeRead() {
+        FileSavedStateStore store = new FileSavedStateStore(temporaryFolder.getRoot());
+        store.write("a", new byte[]{1});
+        store.delete("a");
+        assertThat(store.read("a")).isNull();
+        assertThat(temporaryFolder.getRoot().list()).isEmpty();
+    }
+
+    @Test
+    public void retainAllDeletesDataOfOtherHandles() throws Exception {
+        FileSavedStateStore store = new FileSavedStateStore(temporaryFolder.getRoot());
+        store.write("a", new byte[]{1});
+        store.write("b", new byte[]{2});
+        store.write("c", new byte[]{3});
+        File unrelatedFile = temporaryFolder.newFile("unrelated");
+        store.retainAll(Arrays.asList("a", "c"));
+        assertThat(store.read("a")).isEqualTo(new byte[]{1});
+        assertThat(store.read("b")).isNull();
+        assertThat(store.read("c")).isEqualTo(new byte[]{3});
+        assertThat(unrelatedFile.exists()).isTrue();
+    }
+
+    @Test
+    public void retainAllOnMissingDirectoryDoesNothing() {
+        FileSavedStateStore store = new FileSavedStateStore(new File(temporaryFolder.getRoot(), "missing"));
+        store.retainAll(Collections.<String>emptyList());
+        assertThat(store.read("a")).isNull();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NavigationCommandQueueTest {
+    ExecutorService ownerExecutor;
+
+    ExecutorService producerExecutor;
+
+    Backstack backstack;
+
+    StateChanger stateChanger = new StateChanger() {
+        @Override
+        public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+            completionCallback.stateChangeComplete();
+        }
+    };
+
+    @Before
+    public void setUp()
+            throws Exception {
+        ownerExecutor = Executors.newSingleThreadExecutor();
+        producerExecutor = Executors.newFixedThreadPool(4);
+        backstack = new Backstack(new TestKey("root"));
+        runOnOwner(new Callable<Void>() {
+            @Override
+            public Void call()
+                    throws Exception {
+                backstack.setStateChanger(stateChanger, Backstack.INITIALIZE);
+                return null;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        ownerExecutor.shutdownNow();
+        producerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void navigationFromManyThreadsIsExecutedOnOwnerThread()
+            throws Exception {
+        final NavigationCommandQueue commandQueue = new NavigationCommandQueue(backstack, ownerExecutor);
+        final int producerCount = 4;
+        final int keysPerProducer = 1000;
+        final CountDownLatch countDownLatch = new CountDownLatch(producerCount);
+        for(int i = 0; i < producerCount; i++) {
+            final int producer = i;
+            producerExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for(int j = 0; j < keysPerProducer; j++) {
+                        commandQueue.goTo(new TestKey(producer + "-" + j));
+                        commandQueue.getHistory(); // reading the snapshot is allowed on any thread
+                    }
+                    countDownLatch.countDown();
+                }
+            });
+        }
+        assertThat(countDownLatch.await(10, TimeUnit.SECONDS)).isTrue();
+
+        List<Object> history = runOnOwner(new Callable<List<Object>>() {
+            @Override
+            public List<Object> call()
+                    throws Exception {
+                return backstack.getHistory();
+            }
+        });
+        assertThat(history).hasSize(1 + producerCount * keysPerProducer);
+        Set<Object> distinctKeys = new HashSet<>(history);
+        assertThat(distinctKeys).hasSize(history.size());
+        assertThat(commandQueue.getHistory()).isEqualTo(history);
+    }
+
+    @Test
+    public void commandsAreExecutedInOrder()
+            throws Exception {
+        final NavigationCommandQueue commandQueue = new NavigationCommandQueue(backstack, ownerExecutor);
+        TestKey first = new TestKey("first");
+        TestKey second = new TestKey("second");
+        commandQueue.goTo(first);
+        commandQueue.goTo(second);
+        commandQueue.goBack();
+        commandQueue.goBack();
+        commandQueue.goBack(); // ignored, root is the only key left
+        List<Object> history = new ArrayList<>();
+        history.add(new TestKey("root"));
+        history.add(second);
+        commandQueue.setHistory(history, StateChange.REPLACE);
+
+        List<Object> result = runOnOwner(new Callable<List<Object>>() {
+            @Override
+            public List<Object> call()
+                    throws Exception {
+                return backstack.getHistory();
+            }
+        });
+        assertThat(result).containsExactly(new TestKey("root"), second);
+        assertThat(commandQueue.<TestKey>top()).isEqualTo(second);
+    }
+
+    @Test
+    public void goBackIsNotDroppedWhileStateChangeIsPending() {
+        final List<StateChanger.Callback> callbacks = new ArrayList<>();
+        TestKey root = new TestKey("root");
+        TestKey first = new TestKey("first");
+        Backstack backstack = new Backstack(root);
+        backstack.setStateChanger(new StateChanger() {
+            @Override
+            public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+                callbacks.add(completionCallback);
+            }
+        }, Backstack.INITIALIZE);
+        callbacks.remove(0).stateChangeComplete();
+        NavigationCommandQueue commandQueue = new NavigationCommandQueue(backstack, new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+
+        commandQueue.goTo(first);
+        assertThat(backstack.isStateChangePending()).isTrue();
+        commandQueue.goBack();
+        commandQueue.goBack(); // ignored, root is the only key left after the pending changes
+        callbacks.remove(0).stateChangeComplete();
+        assertThat(backstack.getHistory()).containsExactly(root, first);
+        callbacks.remove(0).stateChangeComplete();
+        assertThat(callbacks).isEmpty();
+        assertThat(backstack.getHistory()).containsExactly(root);
+    }
+
+    private <T> T runOnOwner(Callable<T> callable)
+            throws Exception {
+        return ownerExecutor.submit(callable).get(10, TimeUnit.SECONDS);
+    }
+}
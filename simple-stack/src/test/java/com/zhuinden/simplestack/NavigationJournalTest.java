@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NavigationJournalTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    static final KeyCodec<TestKey> TEST_KEY_CODEC = new KeyCodec<TestKey>() {
+        @Override
+        public void encode(@NonNull TestKey key, @NonNull KeyEncoder encoder) {
+            encoder.writeString(key.name);
+        }
+
+        @NonNull
+        @Override
+        public TestKey decode(@NonNull KeyDecoder decoder) {
+            return new TestKey(decoder.readString());
+        }
+    };
+
+    static class CountingExecutor
+            implements Executor {
+        int executeCount;
+
+        @Override
+        public void execute(@NonNull Runnable task) {
+            executeCount++;
+            task.run();
+        }
+    }
+
+    StateChanger stateChanger = new StateChanger() {
+        @Override
+        public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+            completionCallback.stateChangeComplete();
+        }
+    };
+
+    CodecKeyParceler keyParceler = CodecKeyParceler.builder().register(1, TestKey.class, TEST_KEY_CODEC).build();
+
+    File file;
+    CountingExecutor executor;
+
+    TestKey a = new TestKey("a");
+    TestKey b = new TestKey("b");
+    TestKey c = new TestKey("c");
+
+    @Before
+    public void before()
+            throws IOException {
+        file = new File(temporaryFolder.getRoot(), "journal");
+        executor = new CountingExecutor();
+    }
+
+    private BackstackManager startBackstackManager(int capacity, Object... initialKeys) {
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setKeyParceler(keyParceler);
+        backstackManager.setNavigationJournal(new NavigationJournal(file, capacity, executor));
+        backstackManager.setup(Arrays.asList(initialKeys));
+        backstackManager.setStateChanger(stateChanger);
+        return backstackManager;
+    }
+
+    private List<Object> replay(int capacity) {
+        return new NavigationJournal(file, capacity, executor).open(NavigationJournal.createKeyMarshaller(keyParceler));
+    }
+
+    @Test
+    public void historyIsReplayedOnNextStart() {
+        BackstackManager backstackManager = startBackstackManager(NavigationJournal.DEFAULT_CAPACITY, a);
+        Backstack backstack = backstackManager.getBackstack();
+        backstack.goTo(b);
+        backstack.goTo(c);
+        backstack.goBack();
+
+        BackstackManager restartedBackstackManager = startBackstackManager(NavigationJournal.DEFAULT_CAPACITY, c);
+        assertThat(restartedBackstackManager.getBackstack().getHistory()).containsExactly(a, b);
+    }
+
+    @Test
+    public void journalIsCompactedWhenItIsFull() {
+        BackstackManager backstackManager = startBackstackManager(128, a);
+        Backstack backstack = backstackManager.getBackstack();
+        for(int i = 0; i < 50; i++) {
+            backstack.setHistory(HistoryBuilder.from(a, new TestKey("key" + i)).build(), StateChange.FORWARD);
+            if(i % 3 == 0) {
+                backstack.goTo(b);
+            }
+        }
+        List<Object> history = new ArrayList<>(backstack.getHistory());
+
+        assertThat(replay(128)).isEqualTo(history);
+    }
+
+    @Test
+    public void historyThatDoesNotFitIsNotReplayed() {
+        BackstackManager backstackManager = startBackstackManager(128, a);
+        Backstack backstack = backstackManager.getBackstack();
+        List<Object> history = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            history.add(new TestKey("key" + i));
+        }
+        backstack.setHistory(history, StateChange.REPLACE);
+
+        assertThat(replay(128)).isNull();
+    }
+
+    @Test
+    public void partiallyWrittenRecordIsIgnored()
+            throws IOException {
+        BackstackManager backstackManager = startBackstackManager(NavigationJournal.DEFAULT_CAPACITY, a);
+        Backstack backstack = backstackManager.getBackstack();
+        backstack.goTo(b);
+        backstack.goTo(c);
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            // corrupts the last key of the last record in the active half of the journal
+            long position = randomAccessFile.readLong() != 0 ? 8 : NavigationJournal.DEFAULT_CAPACITY / 2 + 8;
+            for(int record = 0; record < 3; record++) {
+                randomAccessFile.seek(position);
+                position += 9 + randomAccessFile.readInt();
+            }
+            randomAccessFile.seek(position - 1);
+            randomAccessFile.write('x');
+        } finally {
+            randomAccessFile.close();
+        }
+
+        assertThat(replay(NavigationJournal.DEFAULT_CAPACITY)).containsExactly(a, b);
+    }
+
+    @Test
+    public void clearedJournalIsNotReplayed() {
+        NavigationJournal navigationJournal = new NavigationJournal(file, executor);
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setKeyParceler(keyParceler);
+        backstackManager.setNavigationJournal(navigationJournal);
+        backstackManager.setup(Arrays.asList(a));
+        backstackManager.setStateChanger(stateChanger);
+        backstackManager.getBackstack().goTo(b);
+        navigationJournal.clear();
+
+        BackstackManager restartedBackstackManager = startBackstackManager(NavigationJournal.DEFAULT_CAPACITY, c);
+        assertThat(restartedBackstackManager.getBackstack().getHistory()).containsExactly(c);
+    }
+
+    @Test
+    public void journalIsSyncedInBatches() {
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setKeyParceler(keyParceler);
+        final List<Runnable> tasks = new ArrayList<>();
+        backstackManager.setNavigationJournal(new NavigationJournal(file, new Executor() {
+            @Override
+            public void execute(@NonNull Runnable task) {
+                tasks.add(task);
+            }
+        }));
+        backstackManager.setup(Arrays.asList(a));
+        backstackManager.setStateChanger(stateChanger);
+        Backstack backstack = backstackManager.getBackstack();
+        backstack.goTo(b);
+        backstack.goTo(c);
+        assertThat(tasks).hasSize(1);
+        tasks.remove(0).run();
+        backstack.goBack();
+        assertThat(tasks).hasSize(1);
+    }
+
+    @Test
+    public void restoredBundleTakesPrecedenceOverTheJournal() {
+        BackstackManager backstackManager = startBackstackManager(NavigationJournal.DEFAULT_CAPACITY, a);
+        backstackManager.getBackstack().goTo(b);
+        BackstackManager otherBackstackManager = new BackstackManager();
+        otherBackstackManager.setKeyParceler(keyParceler);
+        otherBackstackManager.setup(Arrays.asList(c));
+        otherBackstackManager.setStateChanger(stateChanger);
+
+        BackstackManager restoredBackstackManager = new BackstackManager();
+        restoredBackstackManager.setKeyParceler(keyParceler);
+        restoredBackstackManager.setNavigationJournal(new NavigationJournal(file, executor));
+        restoredBackstackManager.setup(Arrays.asList(a));
+        restoredBackstackManager.fromBundle(otherBackstackManager.toBundle());
+        restoredBackstackManager.setStateChanger(stateChanger);
+        assertThat(restoredBackstackManager.getBackstack().getHistory()).containsExactly(c);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.os.Parcel;
+import android.util.SparseArray;
+
+import com.zhuinden.statebundle.StateBundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ParcelledStateTest {
+    TestKey key = new TestKey("key");
+
+    private static ParcelledState readFromParcel(Parcel parcel) {
+        parcel.setDataPosition(0);
+        return ParcelledState.CREATOR.createFromParcel(parcel);
+    }
+
+    private StateBundle createBundle() {
+        StateBundle bundle = new StateBundle();
+        bundle.putString("name", "value");
+        return bundle;
+    }
+
+    @Test
+    public void stateWrittenBeforeTheKeyTableIsRead() {
+        Parcel parcel = Parcel.obtain();
+        try {
+            // the layout of the first format
+            parcel.writeParcelable(key, 0);
+            parcel.writeSparseArray(new SparseArray<Object>());
+            parcel.writeByte((byte) 0x01);
+            parcel.writeParcelable(createBundle(), 0);
+
+            ParcelledState parcelledState = readFromParcel(parcel);
+            assertThat(parcelledState.parcelableKey).isEqualTo(key);
+            assertThat(parcelledState.keyIndex).isEqualTo(ParcelledState.NO_KEY_INDEX);
+            assertThat(parcelledState.viewHierarchyState.size()).isEqualTo(0);
+            assertThat(parcelledState.bundle.getString("name")).isEqualTo("value");
+            assertThat(parcelledState.storeHandle).isNull();
+            assertThat(parcel.dataAvail()).isEqualTo(0);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void stateWithKeyIndexIsWrittenAndRead() {
+        ParcelledState parcelledState = new ParcelledState();
+        parcelledState.keyIndex = 3;
+        parcelledState.viewHierarchyState = new SparseArray<>();
+        parcelledState.storeHandle = "handle";
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcelledState.writeToParcel(parcel, 0);
+
+            ParcelledState readState = readFromParcel(parcel);
+            assertThat(readState.parcelableKey).isNull();
+            assertThat(readState.keyIndex).isEqualTo(3);
+            assertThat(readState.bundle).isNull();
+            assertThat(readState.storeHandle).isEqualTo("handle");
+            assertThat(parcel.dataAvail()).isEqualTo(0);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void stateWithKeyIsWrittenAndRead() {
+        ParcelledState parcelledState = new ParcelledState();
+        parcelledState.parcelableKey = key;
+        parcelledState.viewHierarchyState = new SparseArray<>();
+        parcelledState.bundle = createBundle();
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcelledState.writeToParcel(parcel, 0);
+
+            ParcelledState readState = readFromParcel(parcel);
+            assertThat(readState.parcelableKey).isEqualTo(key);
+            assertThat(readState.keyIndex).isEqualTo(ParcelledState.NO_KEY_INDEX);
+            assertThat(readState.bundle.getString("name")).isEqualTo("value");
+            assertThat(readState.storeHandle).isNull();
+            assertThat(parcel.dataAvail()).isEqualTo(0);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PersistentHistoryTest {
+    @Test
+    public void pushKeepsPreviousHistoryIntact() {
+        PersistentHistory previous = PersistentHistory.from(HistoryBuilder.from("a", "b").build());
+        PersistentHistory next = previous.push("c");
+        assertThat(previous).containsExactly("a", "b");
+        assertThat(next).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    public void truncateKeepsPreviousHistoryIntact() {
+        PersistentHistory previous = PersistentHistory.from(HistoryBuilder.from("a", "b", "c").build());
+        PersistentHistory next = previous.truncate(1);
+        assertThat(previous).containsExactly("a", "b", "c");
+        assertThat(next).containsExactly("a");
+        assertThat(next.push("d")).containsExactly("a", "d");
+        assertThat(previous).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    public void historyIsUnmodifiable() {
+        PersistentHistory history = PersistentHistory.from(HistoryBuilder.single("a"));
+        try {
+            history.add("b");
+            Assert.fail();
+        } catch(UnsupportedOperationException e) {
+            // Good!
+        }
+    }
+
+    @Test
+    public void fromReturnsSameInstanceForPersistentHistory() {
+        PersistentHistory history = PersistentHistory.from(HistoryBuilder.single("a"));
+        assertThat(PersistentHistory.from(history)).isSameAs(history);
+    }
+
+    @Test
+    public void getOutOfBoundsThrows() {
+        PersistentHistory history = PersistentHistory.from(HistoryBuilder.single("a"));
+        try {
+            history.get(1);
+            Assert.fail();
+        } catch(IndexOutOfBoundsException e) {
+            // Good!
+        }
+    }
+
+    @Test
+    public void pushAndTruncateMatchArrayListAcrossTrieLevels() {
+        Random random = new Random(42);
+        List<Object> expected = new ArrayList<>();
+        PersistentHistory history = PersistentHistory.empty();
+        List<PersistentHistory> snapshots = new ArrayList<>();
+        List<List<Object>> expectedSnapshots = new ArrayList<>();
+        for(int i = 0; i < 2000; i++) {
+            if(expected.isEmpty() || random.nextInt(4) != 0) {
+                int count = 1 + random.nextInt(100);
+                for(int j = 0; j < count; j++) {
+                    Object key = i + "-" + j;
+                    expected.add(key);
+                    history = history.push(key);
+                }
+            } else {
+                int newSize = random.nextInt(expected.size());
+                expected = new ArrayList<>(expected.subList(0, newSize));
+                history = history.truncate(newSize);
+            }
+            assertThat(history).isEqualTo(expected);
+            if(i % 100 == 0) {
+                snapshots.add(history);
+                expectedSnapshots.add(new ArrayList<>(expected));
+            }
+        }
+        for(int i = 0; i < snapshots.size(); i++) {
+            assertThat(snapshots.get(i)).isEqualTo(expectedSnapshots.get(i));
+        }
+    }
+
+    @Test
+    public void fromMatchesSourceAcrossTrieLevels() {
+        for(int size : new int[]{0, 1, 31, 32, 33, 1024, 1056, 1057, 40000}) {
+            List<Object> keys = new ArrayList<>();
+            for(int i = 0; i < size; i++) {
+                keys.add(i);
+            }
+            PersistentHistory history = PersistentHistory.from(keys);
+            assertThat(history).isEqualTo(keys);
+            assertThat(history.push(size)).hasSize(size + 1);
+            if(size > 0) {
+                assertThat(history.truncate(size / 3)).isEqualTo(keys.subList(0, size / 3));
+            }
+        }
+    }
+}
@@ -330,6 +330,29 @@ public class ReentranceTest {
         verifyHistory(flow.getHistory(), new Loading(), new Catalog());
     }
 
+    @Test
+    public void manyReentrantSynchronousStateChangesDoNotOverflowTheStack() {
+        final int navigationCount = 100000;
+        final AtomicInteger stateChangeCount = new AtomicInteger();
+        final TestKey first = new TestKey("first");
+        final TestKey second = new TestKey("second");
+        flow = new Backstack(HistoryBuilder.single(new Catalog()));
+        flow.setStateChanger(new StateChanger() {
+            @Override
+            public void handleStateChange(@NonNull StateChange traversal, @NonNull StateChanger.Callback callback) {
+                int count = stateChangeCount.getAndIncrement();
+                if(count < navigationCount) {
+                    flow.goTo(count % 2 == 0 ? first : second);
+                }
+                callback.stateChangeComplete();
+            }
+        }, Backstack.INITIALIZE);
+
+        assertThat(stateChangeCount.get()).isEqualTo(navigationCount + 1);
+        assertThat(flow.isStateChangePending()).isFalse();
+        verifyHistory(flow.getHistory(), second, first, new Catalog());
+    }
+
     static class Catalog
             extends TestKey {
         Catalog() {
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SavedStateStoreWriterTest {
+    static class CountingStore
+            extends SnapshotPersistenceTest.InMemoryStore {
+        int accessCount = 0;
+
+        @Override
+        public boolean write(@NonNull String handle, @NonNull byte[] data) {
+            accessCount++;
+            return super.write(handle, data);
+        }
+
+        @Nullable
+        @Override
+        public byte[] read(@NonNull String handle) {
+            accessCount++;
+            return super.read(handle);
+        }
+
+        @Override
+        public void delete(@NonNull String handle) {
+            accessCount++;
+            super.delete(handle);
+        }
+
+        @Override
+        public void retainAll(@NonNull Collection<String> handles) {
+            accessCount++;
+            super.retainAll(handles);
+        }
+    }
+
+    // the states cannot be parcelled in unit tests, so the marshaller writes only an id of the state
+    static class InMemoryStateMarshaller
+            implements SavedStateStoreWriter.StateMarshaller {
+        List<SavedState> savedStates = new ArrayList<>();
+
+        @Override
+        public byte[] marshall(SavedState savedState) {
+            savedStates.add(savedState);
+            return ByteBuffer.allocate(4).putInt(savedStates.size() - 1).array();
+        }
+
+        @Override
+        public void unmarshall(byte[] data, SavedState savedState) {
+            SavedState storedState = savedStates.get(ByteBuffer.wrap(data).getInt());
+            savedState.load(storedState.viewHierarchyState, storedState.bundle);
+        }
+    }
+
+    StateChanger stateChanger = new StateChanger() {
+        @Override
+        public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+            completionCallback.stateChangeComplete();
+        }
+    };
+
+    CountingStore store;
+    InMemoryStateMarshaller marshaller;
+    SnapshotPersistenceTest.QueuedExecutor executor;
+
+    TestKey a = new TestKey("a");
+    TestKey b = new TestKey("b");
+    TestKey c = new TestKey("c");
+
+    @Before
+    public void before() {
+        store = new CountingStore();
+        marshaller = new InMemoryStateMarshaller();
+        executor = new SnapshotPersistenceTest.QueuedExecutor();
+    }
+
+    private BackstackManager createBackstackManager(List<?> initialKeys) {
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setSavedStateStore(store, 1, executor);
+        backstackManager.coldStateStore = new ColdStateStore(new SavedStateStoreWriter(store, executor, marshaller), 1);
+        backstackManager.setup(initialKeys);
+        return backstackManager;
+    }
+
+    private static SavedState mockSavedState(Object key) {
+        SavedState savedState = Mockito.mock(SavedState.class, Mockito.CALLS_REAL_METHODS);
+        Mockito.doReturn(key).when(savedState).getKey();
+        return savedState;
+    }
+
+    @Test
+    public void stateChangeCompletionDoesNotAccessTheStore() {
+        BackstackManager backstackManager = createBackstackManager(HistoryBuilder.single(a));
+        backstackManager.setStateChanger(stateChanger);
+        SavedState savedState = mockSavedState(a);
+        backstackManager.keyStateMap.put(a, savedState);
+
+        backstackManager.getBackstack().goTo(b);
+        assertThat(store.accessCount).isEqualTo(0);
+        assertThat(executor.tasks).isNotEmpty();
+        assertThat(savedState.storeHandle).isNull();
+
+        executor.runAll();
+        assertThat(store.data).hasSize(1);
+        assertThat(savedState.storeHandle).isNull();
+
+        backstackManager.getBackstack().goTo(c);
+        assertThat(savedState.storeHandle).isNotNull();
+        assertThat(store.data).containsKey(savedState.storeHandle);
+    }
+
+    @Test
+    public void stateModifiedDuringWriteIsKeptInMemory() {
+        BackstackManager backstackManager = createBackstackManager(HistoryBuilder.single(a));
+        backstackManager.setStateChanger(stateChanger);
+        SavedState savedState = mockSavedState(a);
+        backstackManager.keyStateMap.put(a, savedState);
+
+        backstackManager.getBackstack().goTo(b);
+        savedState.setBundle(null);
+        executor.runAll();
+
+        backstackManager.getBackstack().goTo(c);
+        assertThat(savedState.storeHandle).isNull();
+        executor.runAll();
+        assertThat(store.data).hasSize(1); // the obsolete write is deleted, the modified state is written again
+    }
+
+    @Test
+    public void pendingWriteIsReadFromMemory() {
+        SavedStateStoreWriter savedStateStoreWriter = new SavedStateStoreWriter(store, executor, marshaller);
+        SavedState savedState = mockSavedState(a);
+        savedStateStoreWriter.write(savedState, "handle");
+
+        SavedState loadedState = mockSavedState(a);
+        assertThat(savedStateStoreWriter.read("handle", loadedState)).isTrue();
+        assertThat(store.accessCount).isEqualTo(0);
+        assertThat(loadedState.bundle).isSameAs(savedState.bundle);
+    }
+
+    @Test
+    public void doneWriteIsReadFromTheStore() {
+        SavedStateStoreWriter savedStateStoreWriter = new SavedStateStoreWriter(store, executor, marshaller);
+        savedStateStoreWriter.write(mockSavedState(a), "handle");
+        executor.runAll();
+
+        assertThat(savedStateStoreWriter.read("handle", mockSavedState(a))).isTrue();
+        assertThat(store.accessCount).isEqualTo(2);
+    }
+}
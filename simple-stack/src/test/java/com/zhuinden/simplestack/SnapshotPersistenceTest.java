@@ -0,0 +1,351 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.content.ComponentCallbacks2;
+import android.os.Parcelable;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+import com.zhuinden.statebundle.StateBundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SnapshotPersistenceTest {
+    static class InMemoryStore
+            implements BackstackManager.SavedStateStore {
+        Map<String, byte[]> data = new HashMap<>();
+        int writeCount = 0;
+
+        @Override
+        public boolean write(@NonNull String handle, @NonNull byte[] data) {
+            writeCount++;
+            this.data.put(handle, data);
+            return true;
+        }
+
+        @Nullable
+        @Override
+        public byte[] read(@NonNull String handle) {
+            return data.get(handle);
+        }
+
+        @Override
+        public void delete(@NonNull String handle) {
+            data.remove(handle);
+        }
+
+        @Override
+        public void retainAll(@NonNull Collection<String> handles) {
+            data.keySet().retainAll(handles);
+        }
+    }
+
+    // the state bundles cannot be parcelled in unit tests, so the marshaller writes only an id of the bundle or the state
+    static class InMemoryMarshaller
+            implements SnapshotPersistence.SnapshotMarshaller {
+        List<StateBundle> stateBundles = new ArrayList<>();
+        List<ParcelledState> states = new ArrayList<>();
+
+        @Override
+        public byte[] marshall(StateBundle stateBundle) {
+            stateBundles.add(stateBundle);
+            return ByteBuffer.allocate(4).putInt(stateBundles.size() - 1).array();
+        }
+
+        @Override
+        public StateBundle unmarshall(byte[] data) {
+            return stateBundles.get(ByteBuffer.wrap(data).getInt());
+        }
+
+        @Override
+        public byte[] marshallState(ParcelledState parcelledState) {
+            states.add(parcelledState);
+            return ByteBuffer.allocate(4).putInt(states.size() - 1).array();
+        }
+
+        @Override
+        public ParcelledState unmarshallState(byte[] data) {
+            return states.get(ByteBuffer.wrap(data).getInt());
+        }
+    }
+
+    public static class QueuedExecutor
+            implements Executor {
+        Queue<Runnable> tasks = new LinkedList<>();
+
+        @Override
+        public void execute(@NonNull Runnable task) {
+            tasks.add(task);
+        }
+
+        public void runAll() {
+            while(!tasks.isEmpty()) {
+                tasks.poll().run();
+            }
+        }
+    }
+
+    StateChanger stateChanger = new StateChanger() {
+        @Override
+        public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+            completionCallback.stateChangeComplete();
+        }
+    };
+
+    InMemoryStore store;
+    InMemoryMarshaller marshaller;
+    QueuedExecutor executor;
+
+    TestKey a = new TestKey("a");
+    TestKey b = new TestKey("b");
+
+    @Before
+    public void before() {
+        store = new InMemoryStore();
+        marshaller = new InMemoryMarshaller();
+        executor = new QueuedExecutor();
+    }
+
+    private BackstackManager createBackstackManager(List<?> initialKeys) {
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setSnapshotStore(store, executor);
+        backstackManager.snapshotPersistence = new SnapshotPersistence(store, executor, marshaller);
+        backstackManager.setup(initialKeys);
+        return backstackManager;
+    }
+
+    /**
+     * Creates a backstack manager that writes its snapshots into memory on the executor, and has a state for each initial key.
+     * Used by the tests of the navigator, which cannot access the snapshot persistence.
+     */
+    public static BackstackManager createBackstackManagerWithSnapshots(Executor executor, List<?> initialKeys) {
+        InMemoryStore store = new InMemoryStore();
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setSnapshotStore(store, executor);
+        backstackManager.snapshotPersistence = new SnapshotPersistence(store, executor, new InMemoryMarshaller());
+        backstackManager.setup(initialKeys);
+        for(Object key : initialKeys) {
+            backstackManager.keyStateMap.put(key, mockSavedState(key));
+        }
+        return backstackManager;
+    }
+
+    public static boolean isPointerToSnapshot(StateBundle stateBundle) {
+        return stateBundle.getParcelableArrayList(BackstackManager.getStatesTag()) == null //
+                && stateBundle.getString("SNAPSHOT_SESSION") != null;
+    }
+
+    private static SavedState mockSavedState(Object key) {
+        SavedState savedState = Mockito.mock(SavedState.class, Mockito.CALLS_REAL_METHODS);
+        Mockito.doReturn(key).when(savedState).getKey();
+        return savedState;
+    }
+
+    @Test
+    public void frameIsReadBackForSameSessionAndNewerGeneration() {
+        byte[] payload = {1, 2, 3};
+        byte[] frame = SnapshotPersistence.frame("session", 5, payload);
+        assertThat(SnapshotPersistence.unframe(frame, "session", 5)).isEqualTo(payload);
+        assertThat(SnapshotPersistence.unframe(frame, "session", 3)).isEqualTo(payload);
+        assertThat(SnapshotPersistence.unframe(frame, "session", 6)).isNull();
+        assertThat(SnapshotPersistence.unframe(frame, "other", 5)).isNull();
+    }
+
+    @Test
+    public void corruptedFrameIsRejected() {
+        byte[] frame = SnapshotPersistence.frame("session", 1, new byte[]{1, 2, 3});
+        for(int i = 0; i < frame.length; i++) {
+            byte[] corruptedFrame = frame.clone();
+            corruptedFrame[i] ^= 0x10;
+            assertThat(SnapshotPersistence.unframe(corruptedFrame, "session", 1)).isNull();
+        }
+        byte[] truncatedFrame = new byte[frame.length - 1];
+        System.arraycopy(frame, 0, truncatedFrame, 0, truncatedFrame.length);
+        assertThat(SnapshotPersistence.unframe(truncatedFrame, "session", 1)).isNull();
+    }
+
+    @Test
+    public void snapshotIsWrittenOnTheExecutorAfterDetach() {
+        BackstackManager backstackManager = createBackstackManager(HistoryBuilder.from(a, b).build());
+        backstackManager.keyStateMap.put(a, mockSavedState(a));
+        backstackManager.setStateChanger(stateChanger);
+        backstackManager.getBackstack().goBack();
+        assertThat(executor.tasks).isEmpty();
+
+        backstackManager.detachStateChanger();
+        assertThat(executor.tasks).hasSize(1);
+        StateBundle pendingBundle = backstackManager.toBundle();
+        assertThat(pendingBundle.getParcelableArrayList(BackstackManager.getStatesTag())).isNotNull();
+        assertThat(executor.tasks).hasSize(1);
+
+        executor.runAll();
+        assertThat(store.data).containsKey(SnapshotPersistence.SNAPSHOT_HANDLE);
+        StateBundle pointerBundle = backstackManager.toBundle();
+        assertThat(pointerBundle.getParcelableArrayList(BackstackManager.getStatesTag())).isNull();
+        assertThat(pointerBundle.getParcelableArrayList(BackstackManager.getKeysTag())).containsExactly(a);
+    }
+
+    @Test
+    public void restoreUsesTheSnapshot() {
+        BackstackManager backstackManager = createBackstackManager(HistoryBuilder.from(a, b).build());
+        backstackManager.keyStateMap.put(a, mockSavedState(a));
+        backstackManager.setStateChanger(stateChanger);
+        backstackManager.detachStateChanger();
+        executor.runAll();
+        StateBundle pointerBundle = backstackManager.toBundle();
+
+        BackstackManager restoredBackstackManager = createBackstackManager(HistoryBuilder.single(b));
+        restoredBackstackManager.fromBundle(pointerBundle);
+        restoredBackstackManager.setStateChanger(stateChanger);
+        assertThat(restoredBackstackManager.getBackstack().getHistory()).containsExactly(a, b);
+        StateBundle restoredBundle = restoredBackstackManager.toBundle();
+        assertThat(restoredBundle.getParcelableArrayList(BackstackManager.getStatesTag())).hasSize(1);
+    }
+
+    @Test
+    public void restoreFallsBackToTheHistoryOfTheBundleIfTheSnapshotIsCorrupted() {
+        BackstackManager backstackManager = createBackstackManager(HistoryBuilder.from(a, b).build());
+        backstackManager.keyStateMap.put(a, mockSavedState(a));
+        backstackManager.setStateChanger(stateChanger);
+        backstackManager.detachStateChanger();
+        executor.runAll();
+        StateBundle pointerBundle = backstackManager.toBundle();
+        store.data.get(SnapshotPersistence.SNAPSHOT_HANDLE)[0] ^= 0x01;
+
+        BackstackManager restoredBackstackManager = createBackstackManager(HistoryBuilder.single(b));
+        restoredBackstackManager.fromBundle(pointerBundle);
+        restoredBackstackManager.setStateChanger(stateChanger);
+        assertThat(restoredBackstackManager.getBackstack().getHistory()).containsExactly(a, b);
+        StateBundle restoredBundle = restoredBackstackManager.toBundle();
+        assertThat(restoredBundle.getParcelableArrayList(BackstackManager.getStatesTag())).isEmpty();
+    }
+
+    @Test
+    public void obsoleteSnapshotIsNotWritten() {
+        BackstackManager backstackManager = createBackstackManager(HistoryBuilder.single(a));
+        backstackManager.setStateChanger(stateChanger);
+        backstackManager.detachStateChanger();
+        backstackManager.reattachStateChanger();
+        backstackManager.getBackstack().goTo(b);
+        backstackManager.detachStateChanger();
+        assertThat(executor.tasks).hasSize(2);
+        executor.runAll();
+        assertThat(store.writeCount).isEqualTo(1);
+        assertThat(backstackManager.toBundle().getParcelableArrayList(BackstackManager.getKeysTag())).containsExactly(a, b);
+    }
+
+    @Test
+    public void onlyModifiedStatesAreMarshalledWhenTheSnapshotIsSubmitted() {
+        BackstackManager backstackManager = createBackstackManager(HistoryBuilder.from(a, b).build());
+        SavedState savedState = mockSavedState(b);
+        backstackManager.keyStateMap.put(a, mockSavedState(a));
+        backstackManager.keyStateMap.put(b, savedState);
+        backstackManager.setStateChanger(stateChanger);
+        backstackManager.detachStateChanger();
+        assertThat(marshaller.states).hasSize(2);
+        assertThat(marshaller.stateBundles).isEmpty();
+        executor.runAll();
+        assertThat(marshaller.stateBundles).hasSize(1);
+
+        backstackManager.reattachStateChanger();
+        savedState.setBundle(new StateBundle());
+        backstackManager.detachStateChanger();
+        assertThat(marshaller.states).hasSize(3);
+        assertThat(marshaller.states.get(2).bundle).isSameAs(savedState.bundle);
+    }
+
+    @Test
+    public void stateModifiedInPlaceInvalidatesTheSnapshot() {
+        BackstackManager backstackManager = createBackstackManager(HistoryBuilder.from(a, b).build());
+        SavedState savedState = mockSavedState(a);
+        @SuppressWarnings("unchecked") SparseArray<Parcelable> viewHierarchyState = Mockito.mock(SparseArray.class);
+        Mockito.when(viewHierarchyState.size()).thenReturn(1);
+        savedState.setViewHierarchyState(viewHierarchyState);
+        backstackManager.keyStateMap.put(a, savedState);
+        backstackManager.setStateChanger(stateChanger);
+        backstackManager.detachStateChanger();
+        executor.runAll();
+        assertThat(backstackManager.toBundle().getParcelableArrayList(BackstackManager.getStatesTag())).isNull();
+
+        backstackManager.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        Mockito.verify(viewHierarchyState).clear();
+        StateBundle stateBundle = backstackManager.toBundle();
+        assertThat(stateBundle.getParcelableArrayList(BackstackManager.getStatesTag())).isNotNull();
+        assertThat(marshaller.states).hasSize(2);
+    }
+
+    @Test
+    public void bundleModifiedInPlaceIsNotLostOnRoundTrip() {
+        BackstackManager backstackManager = createBackstackManager(HistoryBuilder.from(a, b).build());
+        SavedState savedState = mockSavedState(b);
+        savedState.setBundle(new StateBundle());
+        backstackManager.keyStateMap.put(b, savedState);
+        backstackManager.setStateChanger(stateChanger);
+        backstackManager.detachStateChanger();
+        executor.runAll();
+        assertThat(isPointerToSnapshot(backstackManager.toBundle())).isTrue();
+
+        backstackManager.getSavedState(b).getBundle().putString("value", "modified");
+        StateBundle stateBundle = backstackManager.toBundle();
+        assertThat(isPointerToSnapshot(stateBundle)).isFalse();
+        executor.runAll();
+        StateBundle pointerBundle = backstackManager.toBundle();
+        assertThat(isPointerToSnapshot(pointerBundle)).isTrue();
+
+        for(StateBundle restoredStateBundle : new StateBundle[]{stateBundle, pointerBundle}) {
+            BackstackManager restoredBackstackManager = createBackstackManager(HistoryBuilder.single(a));
+            restoredBackstackManager.fromBundle(restoredStateBundle);
+            assertThat(restoredBackstackManager.getBackstack().getInitialParameters()).containsExactly(a, b);
+            // the restored state cannot be decoded in unit tests, so it is checked in the state bundle of the restored backstack manager
+            List<ParcelledState> restoredStates = restoredBackstackManager.toBundle().getParcelableArrayList(BackstackManager.getStatesTag());
+            assertThat(restoredStates).hasSize(1);
+            assertThat(restoredStates.get(0).bundle.getString("value")).isEqualTo("modified");
+        }
+    }
+
+    @Test
+    public void detachingTheStateChangerSubmitsTheModifiedState() {
+        BackstackManager backstackManager = createBackstackManager(HistoryBuilder.from(a, b).build());
+        SavedState savedState = mockSavedState(b);
+        backstackManager.keyStateMap.put(b, savedState);
+        backstackManager.setStateChanger(stateChanger);
+        backstackManager.detachStateChanger();
+        executor.runAll();
+
+        savedState.setBundle(new StateBundle());
+        backstackManager.detachStateChanger();
+        executor.runAll();
+        StateBundle pointerBundle = backstackManager.toBundle();
+        assertThat(pointerBundle.getParcelableArrayList(BackstackManager.getStatesTag())).isNull();
+        assertThat(marshaller.stateBundles).hasSize(2);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack;
+
+import android.content.Context;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StateChangeTest {
+    TestKey a = new TestKey("a");
+    TestKey b = new TestKey("b");
+    TestKey c = new TestKey("c");
+    TestKey d = new TestKey("d");
+
+    @Test
+    public void keyDiffIsComputedFromPreviousAndNewState() {
+        StateChange stateChange = new StateChange(HistoryBuilder.from(a, b, c).build(), HistoryBuilder.from(a, d, b).build(), StateChange.REPLACE);
+        assertThat(stateChange.getAddedKeys()).containsExactly(d);
+        assertThat(stateChange.getRemovedKeys()).containsExactly(c);
+        assertThat(stateChange.getRetainedKeys()).containsExactly(a, b);
+    }
+
+    @Test
+    public void keyDiffOfInitializationContainsOnlyAddedKeys() {
+        StateChange stateChange = new StateChange(PersistentHistory.empty(), HistoryBuilder.from(a, b).build(), StateChange.REPLACE);
+        assertThat(stateChange.getAddedKeys()).containsExactly(a, b);
+        assertThat(stateChange.getRemovedKeys()).isEmpty();
+        assertThat(stateChange.getRetainedKeys()).isEmpty();
+    }
+
+    @Test
+    public void keyDiffIsComputedOnce() {
+        StateChange stateChange = new StateChange(HistoryBuilder.from(a).build(), HistoryBuilder.from(a, b).build(), StateChange.FORWARD);
+        assertThat(stateChange.getAddedKeys()).isSameAs(stateChange.getAddedKeys());
+        assertThat(stateChange.getRemovedKeys()).isSameAs(stateChange.getRemovedKeys());
+    }
+
+    @Test
+    public void defaultStateClearStrategyClearsKeysNotInNewState() {
+        Map<Object, SavedState> keyStateMap = new HashMap<>();
+        for(TestKey key : new TestKey[]{a, b, c, d}) {
+            keyStateMap.put(key, Mockito.mock(SavedState.class));
+        }
+        StateChange stateChange = new StateChange(HistoryBuilder.from(a, b).build(), HistoryBuilder.from(a, c).build(), StateChange.REPLACE);
+        new DefaultStateClearStrategy().clearStatesNotIn(keyStateMap, stateChange);
+        assertThat(keyStateMap.keySet()).containsOnly(a, c);
+    }
+
+    @Test
+    public void stateChangeOfBackstackWithoutManagerCreatesNewContexts() {
+        Context base = Mockito.mock(Context.class);
+        StateChange stateChange = new StateChange(HistoryBuilder.from(a).build(), HistoryBuilder.from(a, b).build(), StateChange.FORWARD);
+        Context context = stateChange.createContext(base, b);
+        assertThat(KeyContextWrapper.<TestKey>getKey(context)).isEqualTo(b);
+        assertThat(KeyContextWrapper.getBackstackManager(context)).isNull();
+        assertThat(stateChange.createContext(base, b)).isNotSameAs(context);
+    }
+
+    @Test
+    public void stateChangeOfManagedBackstackCreatesContextsThroughTheCacheOfTheManager() {
+        final Context base = Mockito.mock(Context.class);
+        final BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setup(HistoryBuilder.single(a));
+        final Context[] contexts = new Context[2];
+        backstackManager.setStateChanger(new StateChanger() {
+            @Override
+            public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+                contexts[0] = stateChange.createContext(base, a);
+                contexts[1] = stateChange.createContext(base, a);
+                completionCallback.stateChangeComplete();
+            }
+        });
+        assertThat(contexts[0]).isSameAs(contexts[1]);
+        assertThat(KeyContextWrapper.getBackstackManager(contexts[0])).isSameAs(backstackManager);
+    }
+}
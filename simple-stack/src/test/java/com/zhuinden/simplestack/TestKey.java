@@ -20,11 +20,11 @@ package com.zhuinden.simplestack;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-class TestKey
+public class TestKey
         implements Parcelable {
     final String name;
 
-    TestKey(String name) {
+    public TestKey(String name) {
         this.name = name;
     }
 
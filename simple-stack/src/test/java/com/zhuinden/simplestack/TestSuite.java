@@ -16,6 +16,12 @@
 
 package com.zhuinden.simplestack;
 
+import com.zhuinden.simplestack.navigator.ContainerStatePersisterTest;
+import com.zhuinden.simplestack.navigator.DefaultStateChangerTest;
+import com.zhuinden.simplestack.navigator.NavigatorTest;
+import com.zhuinden.simplestack.navigator.changehandlers.AnimatorViewChangeHandlerTest;
+import com.zhuinden.simplestack.navigator.changehandlers.InstrumentedViewChangeHandlerTest;
+
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
@@ -23,6 +29,6 @@ import org.junit.runners.Suite;
  * Created by Owner on 2017. 01. 17..
  */
 @RunWith(Suite.class)
-@Suite.SuiteClasses({StateChangerTest.class, FlowTest.class, ReentranceTest.class, BackstackTest.class, HistoryBuilderTest.class, BackstackDelegateTest.class, BackstackManagerTest.class})
+@Suite.SuiteClasses({StateChangerTest.class, FlowTest.class, ReentranceTest.class, BackstackTest.class, HistoryBuilderTest.class, BackstackDelegateTest.class, BackstackManagerTest.class, PersistentHistoryTest.class, StateChangeTest.class, NavigationCommandQueueTest.class, BudgetedStateClearStrategyTest.class, FileSavedStateStoreTest.class, CodecKeyParcelerTest.class, SnapshotPersistenceTest.class, NavigationJournalTest.class, InstrumentedViewChangeHandlerTest.class, AnimatorViewChangeHandlerTest.class, SavedStateStoreWriterTest.class, ContainerStatePersisterTest.class, ParcelledStateTest.class, DefaultStateChangerTest.class, NavigatorTest.class})
 public class TestSuite {
 }
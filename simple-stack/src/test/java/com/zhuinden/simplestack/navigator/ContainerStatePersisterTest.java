@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack.navigator;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.zhuinden.simplestack.BackstackManager;
+import com.zhuinden.simplestack.HistoryBuilder;
+import com.zhuinden.simplestack.SnapshotPersistenceTest;
+import com.zhuinden.simplestack.StateChange;
+import com.zhuinden.simplestack.StateChanger;
+import com.zhuinden.simplestack.TestKey;
+import com.zhuinden.statebundle.StateBundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.lang.reflect.Field;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ContainerStatePersisterTest {
+    StateChanger stateChanger = new StateChanger() {
+        @Override
+        public void handleStateChange(StateChange stateChange, Callback completionCallback) {
+            completionCallback.stateChangeComplete();
+        }
+    };
+
+    TestKey a = new TestKey("a");
+    TestKey b = new TestKey("b");
+
+    SnapshotPersistenceTest.QueuedExecutor executor;
+    BackstackManager backstackManager;
+    ViewGroup container;
+    ContainerStatePersister containerStatePersister;
+    int persistCount;
+
+    @Before
+    public void before() {
+        executor = new SnapshotPersistenceTest.QueuedExecutor();
+        backstackManager = SnapshotPersistenceTest.createBackstackManagerWithSnapshots(executor, HistoryBuilder.from(a, b).build());
+
+        // the view hierarchy state cannot be created in unit tests, so persisting the view only modifies the state of its key
+        BackstackManager persistingBackstackManager = Mockito.mock(BackstackManager.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+                    throws Throwable {
+                persistCount++;
+                backstackManager.getSavedState(b).setBundle(new StateBundle());
+                return null;
+            }
+        }).when(persistingBackstackManager).persistViewToState(Mockito.any(View.class));
+        Context context = Mockito.mock(Context.class);
+        Mockito.when(context.getSystemService(BackstackManager.TAG)).thenReturn(persistingBackstackManager);
+        View view = Mockito.mock(View.class);
+        setContext(view, context);
+        container = Mockito.mock(ViewGroup.class);
+        Mockito.when(container.getChildAt(0)).thenReturn(view);
+
+        containerStatePersister = new ContainerStatePersister(true);
+        backstackManager.setStateChanger(stateChanger);
+        executor.runAll();
+    }
+
+    // View.getContext() is final
+    private static void setContext(View view, Context context) {
+        try {
+            Field field = View.class.getDeclaredField("mContext");
+            field.setAccessible(true);
+            field.set(view, context);
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void savedStatePointsToSnapshotWrittenAfterPause() {
+        containerStatePersister.onPause(backstackManager, container, true);
+        executor.runAll();
+
+        StateBundle stateBundle = containerStatePersister.toBundle(backstackManager, container, true);
+        assertThat(persistCount).isEqualTo(1);
+        assertThat(SnapshotPersistenceTest.isPointerToSnapshot(stateBundle)).isTrue();
+    }
+
+    @Test
+    public void containerChildIsPersistedAgainAfterResume() {
+        containerStatePersister.onPause(backstackManager, container, true);
+        containerStatePersister.onResume(backstackManager);
+        executor.runAll();
+
+        StateBundle stateBundle = containerStatePersister.toBundle(backstackManager, container, true);
+        assertThat(persistCount).isEqualTo(2);
+        assertThat(SnapshotPersistenceTest.isPointerToSnapshot(stateBundle)).isFalse();
+    }
+
+    @Test
+    public void withoutSnapshotStoreContainerChildIsPersistedOnlyWhenStateIsSaved() {
+        ContainerStatePersister containerStatePersister = new ContainerStatePersister(false);
+        containerStatePersister.onPause(backstackManager, container, true);
+        assertThat(persistCount).isEqualTo(0);
+
+        containerStatePersister.toBundle(backstackManager, container, true);
+        assertThat(persistCount).isEqualTo(1);
+    }
+}
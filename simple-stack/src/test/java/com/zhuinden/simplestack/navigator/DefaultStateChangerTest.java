@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack.navigator;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+
+import com.zhuinden.simplestack.Backstack;
+import com.zhuinden.simplestack.BackstackManager;
+import com.zhuinden.simplestack.HistoryBuilder;
+import com.zhuinden.simplestack.StateChange;
+import com.zhuinden.simplestack.navigator.changehandlers.NoOpViewChangeHandler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DefaultStateChangerTest {
+    private static class Key
+            implements StateKey {
+        final String name;
+
+        Key(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public int layout() {
+            return 0;
+        }
+
+        @NonNull
+        @Override
+        public ViewChangeHandler viewChangeHandler() {
+            return new NoOpViewChangeHandler();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && name.equals(((Key) o).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class RecordingStatePersistenceStrategy
+            implements DefaultStateChanger.StatePersistenceStrategy {
+        List<Object> restoredKeys = new ArrayList<>();
+        List<View> restoredViews = new ArrayList<>();
+
+        @Override
+        public void persistViewToState(@NonNull Object previousKey, @NonNull View previousView) {
+        }
+
+        @Override
+        public void restoreViewFromState(@NonNull Object newKey, @NonNull View newView) {
+            restoredKeys.add(newKey);
+            restoredViews.add(newView);
+        }
+    }
+
+    private static class QueuedIdleScheduler
+            implements DefaultStateChanger.IdleScheduler {
+        Queue<Runnable> runnables = new LinkedList<>();
+
+        @Override
+        public void runWhenIdle(Runnable runnable) {
+            runnables.add(runnable);
+        }
+
+        void runAll() {
+            while(!runnables.isEmpty()) {
+                runnables.poll().run();
+            }
+        }
+    }
+
+    Key a = new Key("a");
+    Key b = new Key("b");
+    Key c = new Key("c");
+    Key d = new Key("d");
+
+    Context baseContext;
+    ViewGroup container;
+    List<View> children;
+    List<View> inflatedViews;
+    List<Context> inflationContexts;
+    RecordingStatePersistenceStrategy statePersistenceStrategy;
+    QueuedIdleScheduler idleScheduler;
+
+    // View.getParent() is final
+    private static void setParent(View view, ViewParent parent) {
+        try {
+            Field field = View.class.getDeclaredField("mParent");
+            field.setAccessible(true);
+            field.set(view, parent);
+        } catch(Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Before
+    public void before() {
+        children = new ArrayList<>();
+        container = Mockito.mock(ViewGroup.class);
+        Mockito.doAnswer(new Answer<View>() {
+            @Override
+            public View answer(InvocationOnMock invocation)
+                    throws Throwable {
+                int index = (Integer) invocation.getArguments()[0];
+                return index < children.size() ? children.get(index) : null;
+            }
+        }).when(container).getChildAt(Mockito.anyInt());
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+                    throws Throwable {
+                View view = (View) invocation.getArguments()[0];
+                children.add(view);
+                setParent(view, container);
+                return null;
+            }
+        }).when(container).addView(Mockito.any(View.class));
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation)
+                    throws Throwable {
+                View view = (View) invocation.getArguments()[0];
+                children.remove(view);
+                setParent(view, null);
+                return null;
+            }
+        }).when(container).removeView(Mockito.any(View.class));
+
+        inflatedViews = new ArrayList<>();
+        inflationContexts = new ArrayList<>();
+        baseContext = Mockito.mock(Context.class);
+        LayoutInflater layoutInflater = mockLayoutInflater(baseContext);
+        Mockito.when(baseContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE)).thenReturn(layoutInflater);
+
+        statePersistenceStrategy = new RecordingStatePersistenceStrategy();
+        idleScheduler = new QueuedIdleScheduler();
+    }
+
+    private LayoutInflater mockLayoutInflater(final Context context) {
+        LayoutInflater layoutInflater = Mockito.mock(LayoutInflater.class);
+        Mockito.doAnswer(new Answer<LayoutInflater>() {
+            @Override
+            public LayoutInflater answer(InvocationOnMock invocation)
+                    throws Throwable {
+                return mockLayoutInflater((Context) invocation.getArguments()[0]);
+            }
+        }).when(layoutInflater).cloneInContext(Mockito.any(Context.class));
+        Mockito.doAnswer(new Answer<View>() {
+            @Override
+            public View answer(InvocationOnMock invocation)
+                    throws Throwable {
+                View view = Mockito.mock(View.class);
+                inflatedViews.add(view);
+                inflationContexts.add(context);
+                return view;
+            }
+        }).when(layoutInflater).inflate(Mockito.anyInt(), Mockito.any(ViewGroup.class), Mockito.anyBoolean());
+        return layoutInflater;
+    }
+
+    private DefaultStateChanger createStateChanger(int maxCachedViews) {
+        DefaultStateChanger defaultStateChanger = DefaultStateChanger.configure() //
+                .setStatePersistenceStrategy(statePersistenceStrategy) //
+                .setViewCache(maxCachedViews) //
+                .create(baseContext, container);
+        defaultStateChanger.idleScheduler = idleScheduler;
+        return defaultStateChanger;
+    }
+
+    private Backstack createBackstack(int maxCachedViews, Object... initialKeys) {
+        Backstack backstack = new Backstack(initialKeys);
+        backstack.setStateChanger(createStateChanger(maxCachedViews), Backstack.INITIALIZE);
+        return backstack;
+    }
+
+    @Test
+    public void cachedViewIsReattachedAndRestored() {
+        Backstack backstack = createBackstack(1, a);
+        View viewA = children.get(0);
+        backstack.goTo(b);
+        backstack.goBack();
+        assertThat(children).containsExactly(viewA);
+        assertThat(inflatedViews).hasSize(2);
+        assertThat(statePersistenceStrategy.restoredKeys).containsExactly(a, b, a);
+        assertThat(statePersistenceStrategy.restoredViews.get(2)).isSameAs(viewA);
+    }
+
+    @Test
+    public void leastRecentlyShownViewIsEvictedAboveMaxCachedViews() {
+        Backstack backstack = createBackstack(2, a);
+        backstack.goTo(b);
+        View viewB = children.get(0);
+        backstack.goTo(c);
+        View viewC = children.get(0);
+        backstack.goTo(d);
+        assertThat(inflatedViews).hasSize(4);
+
+        backstack.goBack();
+        assertThat(children).containsExactly(viewC);
+        backstack.goBack();
+        assertThat(children).containsExactly(viewB);
+        assertThat(inflatedViews).hasSize(4);
+        backstack.goBack();
+        assertThat(inflatedViews).hasSize(5);
+        assertThat(children).containsExactly(inflatedViews.get(4));
+    }
+
+    @Test
+    public void viewsOfKeysThatLeaveTheHistoryAreEvicted() {
+        Backstack backstack = createBackstack(2, a);
+        backstack.goTo(b);
+        View viewB = children.get(0);
+        backstack.goBack();
+        backstack.goTo(b);
+        assertThat(inflatedViews).hasSize(3);
+        assertThat(children).containsExactly(inflatedViews.get(2));
+        assertThat(children.get(0)).isNotSameAs(viewB);
+    }
+
+    @Test
+    public void viewsAreNotCachedByDefault() {
+        Backstack backstack = createBackstack(0, a);
+        backstack.goTo(b);
+        backstack.goBack();
+        assertThat(inflatedViews).hasSize(3);
+    }
+
+    @Test
+    public void prefetchedViewIsShownByTheNextStateChange() {
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setup(HistoryBuilder.single(a));
+        DefaultStateChanger defaultStateChanger = createStateChanger(0);
+        backstackManager.setStateChanger(defaultStateChanger);
+        defaultStateChanger.prefetch(b);
+        assertThat(inflatedViews).hasSize(1);
+        idleScheduler.runAll();
+        assertThat(inflatedViews).hasSize(2);
+        View prefetchedView = inflatedViews.get(1);
+
+        backstackManager.getBackstack().goTo(b);
+        assertThat(inflatedViews).hasSize(2);
+        assertThat(children).containsExactly(prefetchedView);
+        assertThat(statePersistenceStrategy.restoredViews).contains(prefetchedView);
+        // inflated with the context that the state change uses for the key
+        assertThat(inflationContexts.get(1)).isSameAs(backstackManager.createContext(baseContext, b));
+    }
+
+    @Test
+    public void prefetchedViewIsDiscardedIfAnotherKeyIsShown() {
+        Backstack backstack = new Backstack(a);
+        DefaultStateChanger defaultStateChanger = createStateChanger(0);
+        backstack.setStateChanger(defaultStateChanger, Backstack.INITIALIZE);
+        defaultStateChanger.prefetch(b);
+        idleScheduler.runAll();
+        View prefetchedView = inflatedViews.get(1);
+
+        backstack.goTo(c);
+        assertThat(inflatedViews).hasSize(3);
+        backstack.goTo(b);
+        assertThat(inflatedViews).hasSize(4);
+        assertThat(children).containsExactly(inflatedViews.get(3));
+        assertThat(children.get(0)).isNotSameAs(prefetchedView);
+    }
+
+    @Test
+    public void pendingPrefetchIsInvalidatedWhenTheKeyIsRemoved() {
+        Backstack backstack = new Backstack(a, b);
+        DefaultStateChanger defaultStateChanger = createStateChanger(0);
+        backstack.setStateChanger(defaultStateChanger, Backstack.INITIALIZE);
+        defaultStateChanger.prefetch(a);
+
+        backstack.setHistory(HistoryBuilder.single(c), StateChange.REPLACE);
+        idleScheduler.runAll();
+        assertThat(inflatedViews).hasSize(2);
+        backstack.goTo(a);
+        assertThat(inflatedViews).hasSize(3);
+        assertThat(children).containsExactly(inflatedViews.get(2));
+    }
+
+    @Test
+    public void keysAreNotPrefetchedBeforeTheFirstStateChange() {
+        Backstack backstack = new Backstack(a);
+        DefaultStateChanger defaultStateChanger = createStateChanger(0);
+        defaultStateChanger.prefetch(b);
+        assertThat(idleScheduler.runnables).isEmpty();
+        backstack.setStateChanger(defaultStateChanger, Backstack.INITIALIZE);
+        assertThat(inflatedViews).hasSize(1);
+    }
+}
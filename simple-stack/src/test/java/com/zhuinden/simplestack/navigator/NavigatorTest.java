@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack.navigator;
+
+import android.app.Activity;
+import android.app.FragmentManager;
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.zhuinden.simplestack.BackstackManager;
+import com.zhuinden.simplestack.HistoryBuilder;
+import com.zhuinden.simplestack.KeyContextWrapper;
+import com.zhuinden.simplestack.TestKey;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NavigatorTest {
+    TestKey a = new TestKey("a");
+
+    Activity activity;
+    FragmentManager fragmentManager;
+
+    @Before
+    public void before() {
+        fragmentManager = Mockito.mock(FragmentManager.class);
+        activity = Mockito.mock(Activity.class);
+        Mockito.when(activity.getFragmentManager()).thenReturn(fragmentManager);
+    }
+
+    @Test
+    public void managerIsFoundInContextOfKeyWithoutLookingUpTheActivity() {
+        BackstackManager backstackManager = new BackstackManager();
+        backstackManager.setup(HistoryBuilder.single(a));
+        Context context = backstackManager.createContext(new ContextWrapper(activity), a);
+
+        assertThat(Navigator.getManager(context)).isSameAs(backstackManager);
+        Mockito.verifyZeroInteractions(fragmentManager);
+    }
+
+    @Test
+    public void managerOfOtherContextsIsLookedUpInTheActivity() {
+        Context context = new ContextWrapper(activity);
+        try {
+            Navigator.getManager(context);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+        Mockito.verify(fragmentManager).findFragmentByTag("NAVIGATOR_BACKSTACK_HOST");
+    }
+
+    @Test
+    public void managerOfContextOfKeyNotCreatedByTheManagerIsLookedUpInTheActivity() {
+        Context context = new KeyContextWrapper(new ContextWrapper(activity), a);
+        try {
+            Navigator.getManager(context);
+            Assert.fail();
+        } catch(IllegalStateException e) {
+            // OK!
+        }
+        Mockito.verify(fragmentManager).findFragmentByTag("NAVIGATOR_BACKSTACK_HOST");
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack.navigator.changehandlers;
+
+import android.animation.Animator;
+import android.support.annotation.NonNull;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+
+import com.zhuinden.simplestack.StateChange;
+import com.zhuinden.simplestack.navigator.ViewChangeHandler;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnimatorViewChangeHandlerTest {
+    private static class RecordingAnimatorViewChangeHandler
+            extends AnimatorViewChangeHandler {
+        List<Animator> animators = new ArrayList<>();
+
+        @Override
+        protected Animator createAnimator(@NonNull View previousView, @NonNull View newView, int direction) {
+            Animator animator = Mockito.mock(Animator.class);
+            animators.add(animator);
+            return animator;
+        }
+    }
+
+    private static class ViewChange {
+        ViewGroup container = Mockito.mock(ViewGroup.class);
+        View previousView = Mockito.mock(View.class);
+        View newView = Mockito.mock(View.class);
+        ViewTreeObserver viewTreeObserver = createViewTreeObserver();
+        boolean isCompleted;
+
+        ViewChange() {
+            Mockito.when(newView.getViewTreeObserver()).thenReturn(viewTreeObserver);
+        }
+
+        private static ViewTreeObserver createViewTreeObserver() {
+            try { // the class is final, and its constructor is package-private
+                Constructor<ViewTreeObserver> constructor = ViewTreeObserver.class.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                return constructor.newInstance();
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void perform(ViewChangeHandler viewChangeHandler) {
+            viewChangeHandler.performViewChange(container, previousView, newView, StateChange.FORWARD, new ViewChangeHandler.CompletionCallback() {
+                @Override
+                public void onCompleted() {
+                    isCompleted = true;
+                }
+            });
+        }
+
+        void measure() {
+            try { // getWidth() and getHeight() are final
+                Field right = View.class.getDeclaredField("mRight");
+                right.setAccessible(true);
+                right.setInt(newView, 100);
+                Field bottom = View.class.getDeclaredField("mBottom");
+                bottom.setAccessible(true);
+                bottom.setInt(newView, 100);
+            } catch(Exception e) {
+                throw new RuntimeException(e);
+            }
+            viewTreeObserver.dispatchOnPreDraw();
+        }
+    }
+
+    RecordingAnimatorViewChangeHandler viewChangeHandler = new RecordingAnimatorViewChangeHandler();
+
+    @Test
+    public void cancellationBeforeTheAnimatorStartsSkipsTheAnimation() {
+        ViewChange viewChange = new ViewChange();
+        viewChange.perform(viewChangeHandler);
+        viewChangeHandler.cancelViewChange(viewChange.container);
+        assertThat(viewChange.isCompleted).isFalse();
+
+        viewChange.measure();
+        assertThat(viewChangeHandler.animators).isEmpty();
+        assertThat(viewChange.isCompleted).isTrue();
+        Mockito.verify(viewChange.container).removeView(viewChange.previousView);
+    }
+
+    @Test
+    public void cancellationEndsTheRunningAnimator() {
+        ViewChange viewChange = new ViewChange();
+        viewChange.perform(viewChangeHandler);
+        viewChange.measure();
+        assertThat(viewChangeHandler.animators).hasSize(1);
+        Animator animator = viewChangeHandler.animators.get(0);
+        Mockito.verify(animator).start();
+
+        viewChangeHandler.cancelViewChange(viewChange.container);
+        Mockito.verify(animator).end();
+    }
+
+    @Test
+    public void sharedHandlerOnlyCancelsTheViewChangeOfTheContainer() {
+        ViewChange first = new ViewChange();
+        ViewChange second = new ViewChange();
+        first.perform(viewChangeHandler);
+        second.perform(viewChangeHandler);
+        viewChangeHandler.cancelViewChange(first.container);
+
+        first.measure();
+        second.measure();
+        assertThat(first.isCompleted).isTrue();
+        assertThat(second.isCompleted).isFalse();
+        assertThat(viewChangeHandler.animators).hasSize(1);
+    }
+
+    @Test
+    public void cancellationOfPreviousViewChangeDoesNotCancelTheNextOne() {
+        ViewChange first = new ViewChange();
+        first.perform(viewChangeHandler);
+        viewChangeHandler.cancelViewChange(first.container);
+        first.measure();
+
+        ViewChange second = new ViewChange();
+        second.container = first.container;
+        second.perform(viewChangeHandler);
+        second.measure();
+        assertThat(second.isCompleted).isFalse();
+        assertThat(viewChangeHandler.animators).hasSize(1);
+    }
+}
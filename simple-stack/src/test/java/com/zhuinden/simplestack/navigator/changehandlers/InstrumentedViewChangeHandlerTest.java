@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Gabor Varadi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zhuinden.simplestack.navigator.changehandlers;
+
+import android.support.annotation.NonNull;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.zhuinden.simplestack.StateChange;
+import com.zhuinden.simplestack.navigator.ViewChangeHandler;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InstrumentedViewChangeHandlerTest {
+    private static final long FRAME = TimeUnit.MILLISECONDS.toNanos(16);
+    private static final long LONG_FRAME_THRESHOLD = TimeUnit.MILLISECONDS.toNanos(24);
+
+    private static class FakeFrameClock
+            implements InstrumentedViewChangeHandler.FrameClock {
+        long now = 1000;
+        List<FrameCallback> frameCallbacks = new ArrayList<>();
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void postFrameCallback(@NonNull FrameCallback frameCallback) {
+            frameCallbacks.add(frameCallback);
+        }
+
+        void frame(long frameNanos) {
+            now += frameNanos;
+            List<FrameCallback> callbacks = frameCallbacks;
+            frameCallbacks = new ArrayList<>();
+            for(FrameCallback frameCallback : callbacks) {
+                frameCallback.doFrame(now);
+            }
+        }
+    }
+
+    private static class ManualViewChangeHandler
+            implements ViewChangeHandler, ViewChangeHandler.Cancellable {
+        CompletionCallback completionCallback;
+        ViewGroup cancelledContainer;
+
+        @Override
+        public void performViewChange(@NonNull ViewGroup container, @NonNull View previousView, @NonNull View newView, int direction, @NonNull CompletionCallback completionCallback) {
+            this.completionCallback = completionCallback;
+        }
+
+        @Override
+        public void cancelViewChange(@NonNull ViewGroup container) {
+            cancelledContainer = container;
+        }
+    }
+
+    private static class RecordingMetricsSink
+            implements InstrumentedViewChangeHandler.MetricsSink {
+        List<InstrumentedViewChangeHandler.Metrics> metrics = new ArrayList<>();
+        ViewChangeHandler viewChangeHandler;
+        int direction;
+
+        @Override
+        public void onViewChangeMeasured(@NonNull ViewChangeHandler viewChangeHandler, int direction, @NonNull InstrumentedViewChangeHandler.Metrics metrics) {
+            this.viewChangeHandler = viewChangeHandler;
+            this.direction = direction;
+            this.metrics.add(metrics);
+        }
+    }
+
+    FakeFrameClock frameClock = new FakeFrameClock();
+    ManualViewChangeHandler manualViewChangeHandler = new ManualViewChangeHandler();
+    RecordingMetricsSink metricsSink = new RecordingMetricsSink();
+
+    InstrumentedViewChangeHandler instrumentedViewChangeHandler = new InstrumentedViewChangeHandler(manualViewChangeHandler,
+            metricsSink,
+            frameClock,
+            LONG_FRAME_THRESHOLD);
+
+    private boolean[] performViewChange() {
+        final boolean[] completed = new boolean[1];
+        instrumentedViewChangeHandler.performViewChange(Mockito.mock(ViewGroup.class),
+                Mockito.mock(View.class),
+                Mockito.mock(View.class),
+                StateChange.FORWARD,
+                new ViewChangeHandler.CompletionCallback() {
+                    @Override
+                    public void onCompleted() {
+                        completed[0] = true;
+                    }
+                });
+        return completed;
+    }
+
+    @Test
+    public void framesOfViewChangeAreReportedOnCompletion() {
+        boolean[] completed = performViewChange();
+        frameClock.frame(3 * FRAME);
+        frameClock.frame(FRAME);
+        frameClock.frame(2 * FRAME);
+        frameClock.frame(FRAME);
+        assertThat(metricsSink.metrics).isEmpty();
+        frameClock.now += FRAME / 2;
+        manualViewChangeHandler.completionCallback.onCompleted();
+
+        assertThat(completed[0]).isTrue();
+        assertThat(metricsSink.metrics).hasSize(1);
+        assertThat(metricsSink.viewChangeHandler).isSameAs(manualViewChangeHandler);
+        assertThat(metricsSink.direction).isEqualTo(StateChange.FORWARD);
+        InstrumentedViewChangeHandler.Metrics metrics = metricsSink.metrics.get(0);
+        assertThat(metrics.getTimeToFirstFrameNanos()).isEqualTo(3 * FRAME);
+        assertThat(metrics.getFrameCount()).isEqualTo(4);
+        assertThat(metrics.getLongFrameCount()).isEqualTo(2);
+        assertThat(metrics.getLongestFrameNanos()).isEqualTo(3 * FRAME);
+        assertThat(metrics.getDurationNanos()).isEqualTo(7 * FRAME + FRAME / 2);
+    }
+
+    @Test
+    public void framesAfterCompletionAreNotCounted() {
+        performViewChange();
+        frameClock.frame(FRAME);
+        manualViewChangeHandler.completionCallback.onCompleted();
+        frameClock.frame(FRAME);
+        frameClock.frame(FRAME);
+        assertThat(frameClock.frameCallbacks).isEmpty();
+        assertThat(metricsSink.metrics.get(0).getFrameCount()).isEqualTo(1);
+        assertThat(metricsSink.metrics.get(0).getLongFrameCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void viewChangeCompletedBeforeFirstFrameHasNoTimeToFirstFrame() {
+        performViewChange();
+        manualViewChangeHandler.completionCallback.onCompleted();
+        InstrumentedViewChangeHandler.Metrics metrics = metricsSink.metrics.get(0);
+        assertThat(metrics.getTimeToFirstFrameNanos()).isEqualTo(-1);
+        assertThat(metrics.getFrameCount()).isEqualTo(0);
+        assertThat(metrics.getDurationNanos()).isEqualTo(0);
+    }
+
+    @Test
+    public void cancellationIsDelegated() {
+        performViewChange();
+        ViewGroup container = Mockito.mock(ViewGroup.class);
+        instrumentedViewChangeHandler.cancelViewChange(container);
+        assertThat(manualViewChangeHandler.cancelledContainer).isSameAs(container);
+    }
+
+    @Test
+    public void nonPositiveLongFrameThresholdThrows() {
+        try {
+            new InstrumentedViewChangeHandler(manualViewChangeHandler, metricsSink, frameClock, 0);
+            Assert.fail();
+        } catch(IllegalArgumentException e) {
+            // OK!
+        }
+    }
+}